@@ -0,0 +1,14 @@
+package android.os;
+
+// No-op stand-in of the platform class, for host builds of sources that record Metrics
+public final class Trace {
+    private Trace() {}
+
+    public static void beginSection(String sectionName) {}
+
+    public static void endSection() {}
+
+    public static void beginAsyncSection(String methodName, int cookie) {}
+
+    public static void endAsyncSection(String methodName, int cookie) {}
+}
@@ -0,0 +1,101 @@
+package app.grapheneos.logviewer;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+// Minimal JMH-style runner: each benchmark is run for a number of warmup iterations and then for a
+// number of measured iterations. Time and allocated bytes are measured per iteration.
+class BenchmarkRunner {
+    interface Benchmark {
+        // returns the number of processed lines
+        long run(LogFixtures.Fixture f) throws Exception;
+    }
+
+    // results are consumed to prevent the JIT from eliminating benchmarked code
+    static volatile long sink;
+
+    static void consume(Object o) {
+        sink += System.identityHashCode(o);
+    }
+
+    static void consume(long v) {
+        sink += v;
+    }
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    BenchmarkRunner(int warmupIterations, int iterations) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+    }
+
+    static class Result {
+        final String name;
+        final String fixture;
+        final double meanMs;
+        final double stdDevMs;
+        final double mibPerSec;
+        final double nsPerLine;
+        final double allocBytesPerLine;
+
+        Result(String name, String fixture, double meanMs, double stdDevMs, double mibPerSec,
+               double nsPerLine, double allocBytesPerLine) {
+            this.name = name;
+            this.fixture = fixture;
+            this.meanMs = meanMs;
+            this.stdDevMs = stdDevMs;
+            this.mibPerSec = mibPerSec;
+            this.nsPerLine = nsPerLine;
+            this.allocBytesPerLine = allocBytesPerLine;
+        }
+
+        static String header() {
+            return String.format("%-24s %-22s %12s %10s %10s %10s %12s",
+                    "benchmark", "fixture", "ms/op", "+-", "MiB/s", "ns/line", "B/line");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %-22s %12.3f %10.3f %10.1f %10.2f %12.2f",
+                    name, fixture, meanMs, stdDevMs, mibPerSec, nsPerLine, allocBytesPerLine);
+        }
+    }
+
+    Result run(String name, Benchmark b, LogFixtures.Fixture f) throws Exception {
+        for (int i = 0; i < warmupIterations; ++i) {
+            consume(b.run(f));
+        }
+
+        long tid = Thread.currentThread().getId();
+        List<Long> durations = new ArrayList<>(iterations);
+        long lines = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; ++i) {
+            long alloc0 = threadBean.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            lines += b.run(f);
+            long t1 = System.nanoTime();
+            allocated += threadBean.getThreadAllocatedBytes(tid) - alloc0;
+            durations.add(t1 - t0);
+        }
+
+        double sumNs = 0;
+        for (long d : durations) {
+            sumNs += d;
+        }
+        double meanNs = sumNs / iterations;
+        double var = 0;
+        for (long d : durations) {
+            var += (d - meanNs) * (d - meanNs);
+        }
+        double stdDevNs = Math.sqrt(var / iterations);
+        double mibPerSec = (f.bytes.length / (double) (1 << 20)) / (meanNs / 1e9);
+        double nsPerLine = lines == 0 ? 0 : sumNs / lines;
+        double allocPerLine = lines == 0 ? 0 : allocated / (double) lines;
+        return new Result(name, f.name, meanNs / 1e6, stdDevNs / 1e6, mibPerSec, nsPerLine, allocPerLine);
+    }
+}
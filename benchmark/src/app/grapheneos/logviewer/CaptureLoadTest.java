@@ -0,0 +1,187 @@
+package app.grapheneos.logviewer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+// Load test of LogcatCapture with LogcatReplay as the logcat binary, see README.md.
+// Two runs are made:
+// - dump: a "logcat -d" capture of --lines lines that are written as fast as they are read,
+//   measures parsing throughput of the capture pipeline, including the pipe
+// - tail: a capture of lines that are written at --rate lines/s, with --burst pauses, measures
+//   latency from the time a line is written to the time its row is visible in the store
+// The process exits with status 1 if a result doesn't meet its threshold.
+public class CaptureLoadTest {
+    // interval of checks for new rows of the store
+    private static final long POLL_INTERVAL_NS = 200_000;
+
+    public static void main(String[] args) throws Exception {
+        long lines = 1_000_000;
+        long tailLines = 50_000;
+        String rate = "20000";
+        String burst = null;
+        String source = null;
+        List<String> buffers = List.of("main", "system", "crash");
+        boolean parallel = false;
+        double minLinesPerSec = 0;
+        long maxP99LatencyMs = Long.MAX_VALUE;
+
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            switch (arg) {
+                case "--lines" -> lines = Long.parseLong(args[++i]);
+                case "--tail-lines" -> tailLines = Long.parseLong(args[++i]);
+                case "--rate" -> rate = args[++i];
+                case "--burst" -> burst = args[++i];
+                case "--source" -> source = args[++i];
+                case "--buffers" -> buffers = List.of(args[++i].split(","));
+                case "--parallel" -> parallel = true;
+                case "--min-lines-per-sec" -> minLinesPerSec = Double.parseDouble(args[++i]);
+                case "--max-p99-latency-ms" -> maxP99LatencyMs = Long.parseLong(args[++i]);
+                default -> {
+                    System.err.println("unknown argument: " + arg);
+                    System.exit(1);
+                }
+            }
+        }
+
+        var replayCmd = new ArrayList<String>();
+        replayCmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        replayCmd.add("-cp");
+        replayCmd.add(System.getProperty("java.class.path"));
+        replayCmd.add(LogcatReplay.class.getName());
+        if (source != null) {
+            replayCmd.add("--source=" + source);
+        }
+
+        var failures = new ArrayList<String>();
+
+        var dumpCmd = new ArrayList<>(replayCmd);
+        dumpCmd.add("--lines=" + lines);
+        Run dump = run(dumpCmd, buffers, parallel, true);
+        double linesPerSec = dump.records / (dump.durationNs / 1e9);
+        System.out.printf("dump: %d rows, %.1f MiB in %.1f ms, %.0f lines/s, %.1f MiB/s%n",
+                dump.records, dump.bytes / (double) (1 << 20), dump.durationNs / 1e6, linesPerSec,
+                dump.bytes / (double) (1 << 20) / (dump.durationNs / 1e9));
+        // each process of a parallel capture writes all lines
+        if (dump.records != lines * dump.processes) {
+            failures.add("dump: expected " + lines * dump.processes + " rows, got " + dump.records);
+        }
+        if (linesPerSec < minLinesPerSec) {
+            failures.add("dump: " + (long) linesPerSec + " lines/s is below " + (long) minLinesPerSec);
+        }
+
+        var tailCmd = new ArrayList<>(replayCmd);
+        tailCmd.add("--lines=" + tailLines);
+        tailCmd.add("--rate=" + rate);
+        if (burst != null) {
+            tailCmd.add("--burst=" + burst);
+        }
+        Run tail = run(tailCmd, buffers, parallel, false);
+        long[] latencies = Arrays.copyOf(tail.latenciesMs, tail.latencyCount);
+        Arrays.sort(latencies);
+        long p99 = percentile(latencies, 0.99);
+        System.out.printf("tail: %d rows in %.1f ms, latency p50 %d ms, p99 %d ms, max %d ms%n",
+                tail.records, tail.durationNs / 1e6, percentile(latencies, 0.5), p99,
+                latencies.length != 0 ? latencies[latencies.length - 1] : 0);
+        if (tail.records != tailLines * tail.processes) {
+            failures.add("tail: expected " + tailLines * tail.processes + " rows, got " + tail.records);
+        }
+        if (p99 > maxP99LatencyMs) {
+            failures.add("tail: p99 latency of " + p99 + " ms is above " + maxP99LatencyMs + " ms");
+        }
+
+        for (String f : failures) {
+            System.out.println("FAIL " + f);
+        }
+        // threads of TaskExecutors would keep the process alive
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    static class Run {
+        int processes;
+        long records;
+        long bytes;
+        // from the first row to the end of the capture, which excludes startup of the replay
+        // process
+        long durationNs;
+        long[] latenciesMs = new long[1024];
+        int latencyCount;
+
+        void addLatency(long ms) {
+            if (latencyCount == latenciesMs.length) {
+                latenciesMs = Arrays.copyOf(latenciesMs, latencyCount * 2);
+            }
+            latenciesMs[latencyCount++] = ms;
+        }
+    }
+
+    private static Run run(List<String> replayCmd, List<String> buffers, boolean parallel,
+                           boolean dump) throws Exception {
+        var args = new ArrayList<String>();
+        if (dump) {
+            args.add("-d");
+        }
+        // same format as the captures of LogcatActivity
+        args.add("--dividers");
+        args.add("--format=epoch,printable,uid,descriptive");
+        args.add("*:V");
+        var capture = new LogcatCapture(buffers, args, parallel);
+        capture.setLogcatCommand(replayCmd);
+        var res = new Run();
+        res.processes = capture.createCommands().size();
+
+        Throwable[] error = new Throwable[1];
+        var thread = new Thread(() -> {
+            try {
+                capture.run();
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        }, "capture");
+        long startNs = System.nanoTime();
+        thread.start();
+
+        LogStore store = capture.store;
+        long firstRowNs = 0;
+        int seen = 0;
+        while (thread.isAlive()) {
+            int size = store.size();
+            if (size != seen) {
+                long nowMs = System.currentTimeMillis();
+                if (firstRowNs == 0) {
+                    firstRowNs = System.nanoTime();
+                }
+                for (int row = seen; row < size; ++row) {
+                    if (store.isRecord(row)) {
+                        res.addLatency(nowMs - store.getTime(row));
+                    }
+                }
+                seen = size;
+            }
+            LockSupport.parkNanos(POLL_INTERVAL_NS);
+        }
+        thread.join();
+        long endNs = System.nanoTime();
+        if (error[0] != null) {
+            throw new Exception(error[0]);
+        }
+        for (int row = 0, n = store.size(); row < n; ++row) {
+            if (store.isRecord(row)) {
+                ++res.records;
+            }
+        }
+        res.bytes = store.getTextBytes();
+        res.durationNs = endNs - (firstRowNs == 0 ? startNs : firstRowNs);
+        return res;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * p))];
+    }
+}
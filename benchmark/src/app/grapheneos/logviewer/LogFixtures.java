@@ -0,0 +1,134 @@
+package app.grapheneos.logviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Synthetic and recorded logcat text in the format that is used by LogcatActivity
+// ("epoch,printable,uid,descriptive" with dividers)
+class LogFixtures {
+    static class Fixture {
+        final String name;
+        final byte[] bytes;
+
+        Fixture(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final String[] BUFFERS = { "main", "system", "crash", "events" };
+    private static final String[] TAGS = {
+        "ActivityManager", "PackageManager", "WindowManager", "InputDispatcher", "chatty",
+        "am_proc_start", "NetworkMonitor", "BluetoothAdapter", "SurfaceFlinger", "Zygote",
+        "libc", "DEBUG", "AndroidRuntime", "wm_on_resume_called", "ConnectivityService",
+    };
+    private static final String[] UIDS = { "root", "system", "radio", "u0_a97", "u0_a142", "u10_a97", "1047" };
+    private static final char[] LEVELS = { 'V', 'D', 'D', 'I', 'I', 'I', 'W', 'E' };
+    private static final String[] WORDS = {
+        "start", "proc", "for", "activity", "com.example.app/.MainActivity", "pid", "uid", "failed",
+        "connection", "timeout", "0x7f3a2c10", "Displayed", "+312ms", "k\u00e4se", "\u041e\u0448\u0438\u0431\u043a\u0430", "\u5b8c\u6210",
+        "\\x1b", "null", "true", "{com.android.systemui/.SystemUIService}", "=", "[0,1234,10097]",
+    };
+
+    static Fixture synthetic(int sizeBytes, long seed) {
+        var rnd = new Random(seed);
+        var sb = new StringBuilder(sizeBytes + 1000);
+        long timeMs = 1_700_000_000_000L;
+        int buffer = -1;
+        int lines = 0;
+        while (sb.length() < sizeBytes) {
+            if (lines % 50 == 0) {
+                int next = rnd.nextInt(BUFFERS.length);
+                if (next != buffer) {
+                    sb.append(buffer < 0 ? "--------- beginning of " : "--------- switch to ");
+                    sb.append(BUFFERS[next]).append('\n');
+                    buffer = next;
+                }
+            }
+            timeMs += rnd.nextInt(20);
+            int pid = 100 + rnd.nextInt(30000);
+            String tag = TAGS[rnd.nextInt(TAGS.length)];
+            sb.append(String.format("%10d.%03d %5s %5d %5d %c %-8s: ",
+                    timeMs / 1000, timeMs % 1000, UIDS[rnd.nextInt(UIDS.length)], pid,
+                    pid + rnd.nextInt(50), LEVELS[rnd.nextInt(LEVELS.length)], tag));
+            for (int i = 0, n = 3 + rnd.nextInt(20); i < n; ++i) {
+                if (i != 0) {
+                    sb.append(rnd.nextInt(30) == 0 ? '\t' : ' ');
+                }
+                sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+            }
+            sb.append('\n');
+            ++lines;
+        }
+        return new Fixture("synthetic-" + (sizeBytes >> 20) + "MiB", sb.toString().getBytes(UTF_8));
+    }
+
+    static Fixture load(Path path) throws IOException {
+        byte[] bytes;
+        try (InputStream s = Files.newInputStream(path)) {
+            if (path.toString().endsWith(".gz")) {
+                try (var gz = new GZIPInputStream(s)) {
+                    bytes = gz.readAllBytes();
+                }
+            } else {
+                bytes = s.readAllBytes();
+            }
+        }
+        return new Fixture(path.getFileName().toString(), bytes);
+    }
+
+    // native crash report in the format that is used by ApplicationErrorReport.CrashInfo
+    private static final String[] KERNEL_SUBSYSTEMS = {
+        "init", "binder", "healthd", "lowmemorykiller", "audit", "wlan", "ufshcd", "thermal",
+    };
+
+    // output of "dmesg -r"
+    static byte[] dmesg(int sizeBytes, long seed) {
+        var rnd = new Random(seed);
+        var b = new StringBuilder(sizeBytes + 200);
+        long usec = 0;
+        while (b.length() < sizeBytes) {
+            usec += rnd.nextInt(20_000);
+            int pri = rnd.nextInt(8) + (rnd.nextInt(8) == 0 ? 8 : 0);
+            b.append('<').append(pri).append(">[");
+            b.append(String.format("%5d.%06d", usec / 1_000_000, usec % 1_000_000)).append("] ");
+            b.append(KERNEL_SUBSYSTEMS[rnd.nextInt(KERNEL_SUBSYSTEMS.length)]).append(": ");
+            for (int i = 0, n = 2 + rnd.nextInt(10); i < n; ++i) {
+                b.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+            }
+            b.append('\n');
+        }
+        return b.toString().getBytes(UTF_8);
+    }
+
+    static String nativeCrashReport(int frames) {
+        var sb = new StringBuilder();
+        sb.append("Build fingerprint: 'google/husky/husky:14/AP1A/2024:user/release-keys'\n");
+        sb.append("Revision: 'MP1.0'\nABI: 'arm64'\n");
+        sb.append("Process uptime: 12s\n");
+        sb.append("Cmdline: com.example.app\n");
+        sb.append("pid: 12345, tid: 12399, name: RenderThread  >>> com.example.app <<<\n");
+        sb.append("uid: 10097\n");
+        sb.append("signal 11 (SIGSEGV), code 1 (SEGV_MAPERR), fault addr 0x0000000000000010\n");
+        sb.append("Abort message: 'null pointer dereference'\n");
+        for (int i = 0; i < 32; ++i) {
+            sb.append(String.format("    x%-2d %016x  x%-2d %016x\n", i, i * 0x1000L, i + 1, i * 0x2000L));
+        }
+        sb.append("\nbacktrace:\n");
+        for (int i = 0; i < frames; ++i) {
+            sb.append(String.format("      #%02d pc %016x  /system/lib64/libhwui.so (android::uirenderer::frame%d+%d)\n",
+                    i, 0x7f00000000L + i * 0x40L, i, i * 4));
+        }
+        sb.append("\nmemory near x0:\n");
+        for (int i = 0; i < 16; ++i) {
+            sb.append(String.format("    0000007f%08x 0000000000000000 0000000000000000  ................\n", i * 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,201 @@
+package app.grapheneos.logviewer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Stand-in for the logcat binary in host-side load tests, see LogcatCapture.setLogcatCommand().
+// It writes synthetic or recorded log lines in the "epoch,printable[,uid],descriptive" format at a
+// configurable rate, with optional bursts. Each line gets the current time as its timestamp, which
+// allows readers to measure latency from emission to parsing.
+//
+// Replay options:
+// - --lines=<n>: number of lines, default is 100000
+// - --rate=<lines/s>: 0 means as fast as the reader accepts them, which is the default
+// - --burst=<lines>:<ms>: pause for <ms> after each <lines> lines
+// - --source=<path>: recorded lines (plain text or .gz) in the requested format, they are repeated
+//   if there are fewer of them than --lines. Their timestamps are replaced, divider lines are
+//   skipped. Lines of LogFixtures.synthetic() are used by default.
+// - --seed=<n>: seed of synthetic lines and of buffer switches
+// Supported logcat arguments are --buffer, --format (only the uid modifier is checked) and
+// --dividers. Other logcat arguments, e.g. -d, -T and filter specs, are accepted and ignored:
+// output always ends after --lines lines.
+public class LogcatReplay {
+    // buffers are switched at most every SWITCH_INTERVAL lines, as in LogFixtures
+    private static final int SWITCH_INTERVAL = 50;
+
+    public static void main(String[] args) throws IOException {
+        long lines = 100_000;
+        double rate = 0;
+        int burstLines = 0;
+        long burstPauseMs = 0;
+        Path source = null;
+        long seed = 1;
+        String[] buffers = { "main" };
+        boolean uid = false;
+        boolean dividers = false;
+
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String name = eq >= 0 ? arg.substring(0, eq) : arg;
+            String value = eq >= 0 ? arg.substring(eq + 1) : "";
+            switch (name) {
+                case "--lines" -> lines = Long.parseLong(value);
+                case "--rate" -> rate = Double.parseDouble(value);
+                case "--burst" -> {
+                    String[] parts = value.split(":");
+                    burstLines = Integer.parseInt(parts[0]);
+                    burstPauseMs = Long.parseLong(parts[1]);
+                }
+                case "--source" -> source = Path.of(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--buffer", "-b" -> buffers = (eq >= 0 ? value : args[++i]).split(",");
+                case "--format", "-v" -> uid = (eq >= 0 ? value : args[++i]).contains("uid");
+                case "--dividers", "-D" -> dividers = true;
+                case "-T", "-t", "--pid" -> {
+                    if (eq < 0) {
+                        ++i;
+                    }
+                }
+                case "--binary", "-B" -> {
+                    System.err.println("binary output isn't supported");
+                    System.exit(1);
+                }
+                default -> {
+                    // e.g. -d, --uid=<uid> and filter specs
+                }
+            }
+        }
+
+        List<byte[]> pool = source != null ? loadLines(source, uid) : syntheticLines(seed, uid);
+        if (pool.isEmpty()) {
+            System.err.println("no lines to replay");
+            System.exit(1);
+        }
+        var out = new BufferedOutputStream(System.out, 1 << 16);
+        try {
+            replay(out, pool, lines, rate, burstLines, burstPauseMs, buffers, dividers, new Random(seed));
+            out.flush();
+        } catch (IOException e) {
+            // reader went away, e.g. the capture was cancelled
+        }
+    }
+
+    private static void replay(OutputStream out, List<byte[]> pool, long lines, double rate,
+                               int burstLines, long burstPauseMs, String[] buffers, boolean dividers,
+                               Random rnd) throws IOException {
+        byte[] time = new byte[14];
+        int buffer = -1;
+        long start = System.nanoTime();
+        // start of the current burst, pacing restarts after each pause
+        long pacingStart = start;
+        long pacingLines = 0;
+        for (long i = 0; i < lines; ++i) {
+            if (rate > 0) {
+                long target = pacingStart + (long) (pacingLines * 1e9 / rate);
+                long now = System.nanoTime();
+                if (now < target) {
+                    // the reader sees lines as soon as they're due, as with logcat
+                    out.flush();
+                    LockSupport.parkNanos(target - now);
+                }
+            }
+            if (dividers && i % SWITCH_INTERVAL == 0) {
+                int next = buffers.length > 1 ? rnd.nextInt(buffers.length) : 0;
+                if (next != buffer) {
+                    String s = (buffer < 0 ? "--------- beginning of " : "--------- switch to ")
+                            + buffers[next] + '\n';
+                    out.write(s.getBytes(US_ASCII));
+                    buffer = next;
+                }
+            }
+            formatTime(System.currentTimeMillis(), time);
+            out.write(time);
+            out.write(pool.get((int) (i % pool.size())));
+            ++pacingLines;
+            if (burstLines > 0 && (i + 1) % burstLines == 0) {
+                out.flush();
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(burstPauseMs));
+                pacingStart = System.nanoTime();
+                pacingLines = 0;
+            }
+        }
+    }
+
+    // "%10d.%03d"
+    private static void formatTime(long timeMs, byte[] dst) {
+        long sec = timeMs / 1000;
+        long ms = timeMs % 1000;
+        for (int i = 13; i >= 11; --i) {
+            dst[i] = (byte) ('0' + ms % 10);
+            ms /= 10;
+        }
+        dst[10] = '.';
+        for (int i = 9; i >= 0; --i) {
+            dst[i] = sec != 0 || i == 9 ? (byte) ('0' + sec % 10) : (byte) ' ';
+            sec /= 10;
+        }
+    }
+
+    // lines without their timestamps, each one ends with '\n'
+    private static List<byte[]> syntheticLines(long seed, boolean uid) {
+        return splitLines(LogFixtures.synthetic(1 << 20, seed).bytes, uid, true);
+    }
+
+    private static List<byte[]> loadLines(Path path, boolean uid) throws IOException {
+        // recorded lines are in the requested format already
+        return splitLines(LogFixtures.load(path).bytes, uid, false);
+    }
+
+    private static List<byte[]> splitLines(byte[] text, boolean uid, boolean hasUid) {
+        var res = new ArrayList<byte[]>();
+        for (String line : new String(text, UTF_8).split("\n")) {
+            int dot = line.indexOf('.');
+            if (!hasTimestamp(line, dot)) {
+                // e.g. dividers
+                continue;
+            }
+            String rest = line.substring(dot + 4);
+            if (hasUid && !uid) {
+                // remove the uid column, along with the spaces that precede it
+                int p = 0;
+                while (p < rest.length() && rest.charAt(p) == ' ') {
+                    ++p;
+                }
+                while (p < rest.length() && rest.charAt(p) != ' ') {
+                    ++p;
+                }
+                rest = rest.substring(p);
+            }
+            res.add((rest + '\n').getBytes(UTF_8));
+        }
+        return res;
+    }
+
+    // "<seconds>.<millis>" with leading spaces
+    private static boolean hasTimestamp(String line, int dot) {
+        if (dot < 0 || dot + 4 > line.length()) {
+            return false;
+        }
+        String sec = line.substring(0, dot).trim();
+        if (sec.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < sec.length(); ++i) {
+            if (!Character.isDigit(sec.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,245 @@
+package app.grapheneos.logviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class PipelineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizesMiB = { 1, 10, 100 };
+        var fixturePaths = new ArrayList<Path>();
+        Pattern filter = null;
+        int warmup = 3;
+        int iterations = 5;
+
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            switch (arg) {
+                case "--sizes" -> {
+                    String[] parts = args[++i].split(",");
+                    sizesMiB = new int[parts.length];
+                    for (int j = 0; j < parts.length; ++j) {
+                        sizesMiB[j] = Integer.parseInt(parts[j].trim());
+                    }
+                }
+                case "--fixture" -> fixturePaths.add(Path.of(args[++i]));
+                case "--bench" -> filter = Pattern.compile(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--iterations" -> iterations = Integer.parseInt(args[++i]);
+                default -> {
+                    System.err.println("unknown argument: " + arg);
+                    System.exit(1);
+                }
+            }
+        }
+
+        var fixtures = new ArrayList<LogFixtures.Fixture>();
+        for (int size : sizesMiB) {
+            fixtures.add(LogFixtures.synthetic(size << 20, size));
+        }
+        for (Path p : fixturePaths) {
+            fixtures.add(LogFixtures.load(p));
+        }
+
+        var runner = new BenchmarkRunner(warmup, iterations);
+        System.out.println(BenchmarkRunner.Result.header());
+        for (LogFixtures.Fixture f : fixtures) {
+            for (Map.Entry<String, BenchmarkRunner.Benchmark> e : createBenchmarks(f).entrySet()) {
+                String name = e.getKey();
+                if (filter != null && !filter.matcher(name).find()) {
+                    continue;
+                }
+                System.out.println(runner.run(name, e.getValue(), f));
+            }
+        }
+    }
+
+    private static Map<String, BenchmarkRunner.Benchmark> createBenchmarks(LogFixtures.Fixture fixture) {
+        // inputs of the later pipeline stages are prepared once per fixture
+        String text = new String(fixture.bytes, UTF_8);
+        List<String> lines = LogText.splitLines(text);
+        List<String> headerLines = LogText.splitLines("type: logcat\nosVersion: benchmark\nbuffers: main,system,crash,events\nlevel: verbose");
+        String crashReport = LogFixtures.nativeCrashReport(Math.max(8, fixture.bytes.length >> 14));
+        int crashReportLines = LogText.splitLines(crashReport).size();
+        byte[] kernelLog = LogFixtures.dmesg(fixture.bytes.length, 1);
+        var parsed = new LogStore();
+        try {
+            new LogParser().parse(new ByteArrayInputStream(fixture.bytes), parsed);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // typical keyword filter
+        String filterRegex = "connection timeout|FATAL";
+
+        var map = new LinkedHashMap<String, BenchmarkRunner.Benchmark>();
+        map.put("decode+splitLines", f -> {
+            List<String> l = LogText.splitLines(new String(f.bytes, UTF_8));
+            BenchmarkRunner.consume(l);
+            return l.size();
+        });
+        map.put("indexLines", f -> {
+            int[] starts = LogText.indexLines(f.bytes, f.bytes.length);
+            BenchmarkRunner.consume(starts);
+            return starts.length;
+        });
+        map.put("parseIntoStore", f -> {
+            var store = new LogStore();
+            new LogParser().parse(new ByteArrayInputStream(f.bytes), store);
+            BenchmarkRunner.consume(store);
+            return store.size();
+        });
+        // import of a saved .gz log, decompression is streamed into the parser
+        byte[] fixtureGz = Gzip.compress(fixture.bytes);
+        map.put("importGzip", f -> {
+            var store = new LogStore();
+            new LogImporter().read(new ByteArrayInputStream(fixtureGz), store);
+            BenchmarkRunner.consume(store);
+            return store.size();
+        });
+        map.put("parseKernelLog", f -> {
+            var store = new LogStore();
+            new KernelLogParser(1_700_000_000_000L).parse(new ByteArrayInputStream(kernelLog), store);
+            BenchmarkRunner.consume(store);
+            return store.size();
+        });
+        map.put("regexFilter", f -> {
+            var filter = RegexFilter.compile(filterRegex);
+            int matches = 0;
+            for (int row = 0, n = parsed.size(); row < n; ++row) {
+                if (parsed.isRecord(row) && filter.matches(parsed, row)) {
+                    ++matches;
+                }
+            }
+            BenchmarkRunner.consume(matches);
+            return parsed.size();
+        });
+        // regex matching of each message, without literal prefiltering
+        map.put("regexFilterBaseline", f -> {
+            Matcher m = Pattern.compile(filterRegex).matcher("");
+            int matches = 0;
+            for (int row = 0, n = parsed.size(); row < n; ++row) {
+                if (!parsed.isRecord(row)) {
+                    continue;
+                }
+                int off = parsed.textOffset(row) + parsed.getMsgStart(row);
+                int len = parsed.textLength(row) - parsed.getMsgStart(row);
+                if (m.reset(new String(parsed.textBlock(row), off, len, UTF_8)).find()) {
+                    ++matches;
+                }
+            }
+            BenchmarkRunner.consume(matches);
+            return parsed.size();
+        });
+        // field predicates are evaluated before the message substring
+        map.put("query", f -> {
+            var query = LogQuery.parse("level>=E uid:1000 -tag:chatty");
+            int matches = 0;
+            for (int row = 0, n = parsed.size(); row < n; ++row) {
+                if (parsed.isRecord(row) && query.matches(parsed, row)) {
+                    ++matches;
+                }
+            }
+            BenchmarkRunner.consume(matches);
+            return parsed.size();
+        });
+        // building of row lists and bitmaps of LogIndex
+        map.put("buildIndex", f -> {
+            var index = new LogIndex(parsed);
+            BenchmarkRunner.consume(index);
+            return parsed.size();
+        });
+        // same query as above, with candidate rows computed with bitmaps of the index
+        var parsedIndex = new LogIndex(parsed);
+        map.put("indexedQuery", f -> {
+            var query = LogQuery.parse("level>=E uid:1000 -tag:chatty");
+            int[] matches = new int[1];
+            query.getCandidateRows(parsedIndex).forEach(row -> {
+                if (query.matches(parsed, row)) {
+                    ++matches[0];
+                }
+            });
+            BenchmarkRunner.consume(matches[0]);
+            return parsed.size();
+        });
+        // display text of each row, as it's prepared when list items are bound
+        var line = new LineChars();
+        map.put("displayLines", f -> {
+            int chars = 0;
+            for (int row = 0, n = parsed.size(); row < n; ++row) {
+                line.set(parsed, row, LineChars.REPLACE_TABS | LineChars.TRIM);
+                chars += line.length;
+            }
+            BenchmarkRunner.consume(chars);
+            return parsed.size();
+        });
+        // decoding of a String for each row, with String transforms
+        map.put("displayLinesBaseline", f -> {
+            int chars = 0;
+            for (int row = 0, n = parsed.size(); row < n; ++row) {
+                chars += parsed.getText(row).replace('\t', ' ').trim().length();
+            }
+            BenchmarkRunner.consume(chars);
+            return parsed.size();
+        });
+        map.put("clipTruncation", f -> {
+            int start = LogText.findTruncationStart(lines, 1000, 200_000);
+            BenchmarkRunner.consume(start);
+            return lines.size() - start;
+        });
+        map.put("snapshotCreate", f -> {
+            String s = LogText.createSnapshotText(headerLines, Collections.emptyList(), lines, "");
+            BenchmarkRunner.consume(s.getBytes(UTF_8));
+            return lines.size();
+        });
+        // structured exports, streamed from the columns of the parsed store
+        String[] exportNames = { "exportJsonLines", "exportCsv", "exportTraceEvents" };
+        for (int i = 0; i < exportNames.length; ++i) {
+            int format = i;
+            map.put(exportNames[i], f -> {
+                var os = new CountingOutputStream();
+                LogExporter.write(parsed, null, parsed.size(), format, os);
+                BenchmarkRunner.consume(os.count);
+                return parsed.size();
+            });
+        }
+        map.put("gzipRoundTrip", f -> {
+            byte[] gz = Gzip.compress(f.bytes);
+            byte[] res = Gzip.decompress(gz);
+            BenchmarkRunner.consume(res);
+            return lines.size();
+        });
+        map.put("nativeCrashParse", f -> {
+            String res = LogText.simplifyNativeCrash(crashReport);
+            BenchmarkRunner.consume(res);
+            return crashReportLines;
+        });
+        return map;
+    }
+
+    // discards the output, to measure formatting without the cost of buffering it
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
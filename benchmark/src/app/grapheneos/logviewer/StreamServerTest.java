@@ -0,0 +1,358 @@
+package app.grapheneos.logviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Test of LogStreamServer with a local HTTP client, see README.md. The server listens on a
+// loopback TCP port instead of the abstract local socket that is used on the device. Checks:
+// - requests without the token, with a wrong token or before a source is set are rejected
+// - responses use chunked transfer encoding, and their bodies match LogExporter output for the
+//   rows of the source
+// - followed streams get rows that are appended after the request, and end when the source is
+//   replaced
+// - open connections are closed by close()
+// The process exits with status 1 if a check fails.
+public class StreamServerTest {
+    private static final String TOKEN = "0123456789abcdef0123456789abcdef";
+    // socket read timeout, a stream that doesn't end is a failure
+    private static final int TIMEOUT_MS = 10_000;
+
+    private static final ArrayList<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        byte[] text = LogFixtures.synthetic(1 << 18, 1).bytes;
+        LogStore store = parse(text);
+
+        var listener = new TcpListener();
+        var server = new LogStreamServer(listener, TOKEN);
+        server.start();
+        int port = listener.getPort();
+        try {
+            Response r = get(port, "/" + TOKEN + "/logs");
+            check(r.status.equals("503"), "request before setSource(): expected 503, got " + r.status);
+
+            server.setSource(new LogStreamServer.Source(store, null));
+            testRejected(port);
+            testChunked(port, store);
+            testFollow(server, port, text, store);
+            testClose(store);
+        } finally {
+            server.close();
+        }
+
+        for (String f : failures) {
+            System.out.println("FAIL " + f);
+        }
+        if (failures.isEmpty()) {
+            System.out.println("all checks passed");
+        }
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void testRejected(int port) throws IOException {
+        String[] paths = {
+            "/logs", "/" + TOKEN.substring(1) + "/logs", "/" + TOKEN + "0/logs",
+            "/" + TOKEN.toUpperCase(Locale.ROOT) + "/logs", "/" + TOKEN, "/" + TOKEN + "/logs/",
+        };
+        for (String path : paths) {
+            Response r = get(port, path);
+            check(r.status.equals("404"), "GET " + path + ": expected 404, got " + r.status);
+            check(r.body.length == 0, "GET " + path + ": expected an empty body");
+        }
+        Response r = request(port, "POST /" + TOKEN + "/logs HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        check(r.status.equals("405"), "POST: expected 405, got " + r.status);
+        r = get(port, "/" + TOKEN + "/logs?format=xml");
+        check(r.status.equals("400"), "unknown format: expected 400, got " + r.status);
+    }
+
+    private static void testChunked(int port, LogStore store) throws IOException {
+        // all rows, and a projection of the store, as with filtered view models
+        var rows = new RowList(store.size() / 2);
+        for (int row = 0; row < store.size(); row += 2) {
+            rows.add(row);
+        }
+        for (int format = 0; format < LogStreamServer.FORMAT_PARAMS.length; ++format) {
+            String param = LogStreamServer.FORMAT_PARAMS[format];
+            Response r = get(port, "/" + TOKEN + "/logs?format=" + param);
+            checkChunked(r, "format=" + param);
+            byte[] expected = export(store, null, store.size(), format);
+            check(Arrays.equals(r.body, expected), "format=" + param + ": body differs from LogExporter output, "
+                    + r.body.length + " bytes instead of " + expected.length);
+        }
+
+        // source with a row list
+        var listener = new TcpListener();
+        var server = new LogStreamServer(listener, TOKEN);
+        server.start();
+        try {
+            server.setSource(new LogStreamServer.Source(store, rows));
+            Response r = get(listener.getPort(), "/" + TOKEN + "/logs?format=csv");
+            checkChunked(r, "row list");
+            byte[] expected = export(store, rows, rows.size(), LogExporter.FORMAT_CSV);
+            check(Arrays.equals(r.body, expected), "row list: body differs from LogExporter output");
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void checkChunked(Response r, String name) {
+        check(r.status.equals("200"), name + ": expected 200, got " + r.status);
+        check(r.headers.contains("transfer-encoding: chunked"), name + ": response isn't chunked");
+        // bodies of these sources are larger than LogStreamServer.CHUNK_SIZE
+        check(r.chunks > 1, name + ": expected more than one chunk, got " + r.chunks);
+    }
+
+    // rows that are appended to the source are streamed, the stream ends when the source is
+    // replaced
+    private static void testFollow(LogStreamServer server, int port, byte[] text, LogStore other)
+            throws IOException, InterruptedException {
+        int split = text.length / 2;
+        while (text[split - 1] != '\n') {
+            ++split;
+        }
+        var store = new LogStore();
+        new LogParser().parse(new ByteArrayInputStream(text, 0, split), store);
+        int initialRows = store.size();
+        server.setSource(new LogStreamServer.Source(store, null));
+
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            sendRequest(socket.getOutputStream(), "GET /" + TOKEN + "/logs?follow=1 HTTP/1.1\r\n\r\n");
+            InputStream is = socket.getInputStream();
+            String head = readHead(is);
+            check(head.startsWith("HTTP/1.1 200 "), "follow: unexpected response " + firstLine(head));
+
+            var body = new ByteArrayOutputStream();
+            int lines = readLines(is, body, initialRows);
+            check(lines == initialRows, "follow: expected " + initialRows + " initial rows, got " + lines);
+
+            new LogParser().parse(new ByteArrayInputStream(text, split, text.length - split), store);
+            int appendedRows = store.size() - initialRows;
+            lines = readLines(is, body, appendedRows);
+            check(lines == appendedRows, "follow: expected " + appendedRows + " appended rows, got " + lines);
+            check(Arrays.equals(body.toByteArray(), export(store, null, store.size(), LogExporter.FORMAT_JSON_LINES)),
+                    "follow: body differs from LogExporter output");
+
+            // the stream stays open until the source is replaced
+            Thread.sleep(500);
+            check(is.available() == 0, "follow: unexpected data before the source was replaced");
+            server.setSource(new LogStreamServer.Source(other, null));
+            byte[] chunk;
+            try {
+                chunk = readChunk(is);
+            } catch (SocketTimeoutException e) {
+                failures.add("follow: stream didn't end after the source was replaced");
+                return;
+            }
+            check(chunk == null, "follow: expected the last chunk after the source was replaced, got "
+                    + (chunk != null ? chunk.length + " bytes" : ""));
+            check(is.read() == -1, "follow: connection wasn't closed after the last chunk");
+        }
+    }
+
+    private static void testClose(LogStore store) throws IOException, InterruptedException {
+        var listener = new TcpListener();
+        var server = new LogStreamServer(listener, TOKEN);
+        server.start();
+        server.setSource(new LogStreamServer.Source(store, null));
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), listener.getPort())) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            sendRequest(socket.getOutputStream(), "GET /" + TOKEN + "/logs?follow=1 HTTP/1.1\r\n\r\n");
+            InputStream is = socket.getInputStream();
+            String head = readHead(is);
+            check(head.startsWith("HTTP/1.1 200 "), "close: unexpected response " + firstLine(head));
+            readLines(is, new ByteArrayOutputStream(), store.size());
+            server.close();
+            try {
+                // rest of the stream, if any, then the end of the connection
+                while (is.read() >= 0) {}
+            } catch (SocketTimeoutException e) {
+                failures.add("close: connection wasn't closed");
+            } catch (IOException e) {
+                // reset by the server
+            }
+        }
+    }
+
+    // reads chunks until count rows were received, returns the number of received rows
+    private static int readLines(InputStream is, ByteArrayOutputStream dst, int count) throws IOException {
+        int lines = 0;
+        while (lines < count) {
+            byte[] chunk = readChunk(is);
+            if (chunk == null) {
+                break;
+            }
+            dst.write(chunk);
+            for (byte b : chunk) {
+                if (b == '\n') {
+                    ++lines;
+                }
+            }
+        }
+        return lines;
+    }
+
+    // listener on a free loopback port
+    static class TcpListener implements LogStreamServer.Listener {
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        TcpListener() throws IOException {}
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public LogStreamServer.Client accept() throws IOException {
+            Socket s = socket.accept();
+            return new LogStreamServer.Client() {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return s.getInputStream();
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return s.getOutputStream();
+                }
+
+                @Override
+                public void setReadTimeout(int ms) throws IOException {
+                    s.setSoTimeout(ms);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    s.close();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    static class Response {
+        String status;
+        // lower case
+        String headers;
+        byte[] body;
+        int chunks;
+    }
+
+    private static Response get(int port, String path) throws IOException {
+        return request(port, "GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    }
+
+    private static Response request(int port, String request) throws IOException {
+        try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            sendRequest(socket.getOutputStream(), request);
+            InputStream is = socket.getInputStream();
+            String head = readHead(is);
+            var res = new Response();
+            String[] statusLine = firstLine(head).split(" ");
+            res.status = statusLine.length > 1 ? statusLine[1] : "";
+            res.headers = head.toLowerCase(Locale.ROOT);
+            var body = new ByteArrayOutputStream();
+            if (res.headers.contains("transfer-encoding: chunked")) {
+                byte[] chunk;
+                while ((chunk = readChunk(is)) != null) {
+                    body.write(chunk);
+                    ++res.chunks;
+                }
+            } else {
+                is.transferTo(body);
+            }
+            res.body = body.toByteArray();
+            return res;
+        }
+    }
+
+    private static void sendRequest(OutputStream os, String request) throws IOException {
+        os.write(request.getBytes(US_ASCII));
+        os.flush();
+    }
+
+    // status line and headers, without the empty line that ends them
+    private static String readHead(InputStream is) throws IOException {
+        var b = new StringBuilder();
+        String line;
+        while (!(line = readLine(is)).isEmpty()) {
+            b.append(line).append("\r\n");
+        }
+        return b.toString();
+    }
+
+    // null for the last chunk
+    private static byte[] readChunk(InputStream is) throws IOException {
+        String sizeLine = readLine(is);
+        int size = Integer.parseInt(sizeLine.trim(), 16);
+        if (size == 0) {
+            // trailers aren't sent
+            check(readLine(is).isEmpty(), "last chunk isn't followed by an empty line");
+            return null;
+        }
+        byte[] res = is.readNBytes(size);
+        if (res.length != size) {
+            throw new EOFException("truncated chunk");
+        }
+        check(readLine(is).isEmpty(), "chunk isn't followed by CRLF");
+        return res;
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        var b = new StringBuilder();
+        int prev = -1;
+        while (true) {
+            int c = is.read();
+            if (c < 0) {
+                throw new EOFException("connection closed after \"" + b + '"');
+            }
+            if (prev == '\r' && c == '\n') {
+                b.setLength(b.length() - 1);
+                return b.toString();
+            }
+            b.append((char) c);
+            prev = c;
+        }
+    }
+
+    private static String firstLine(String head) {
+        int end = head.indexOf("\r\n");
+        return end >= 0 ? head.substring(0, end) : head;
+    }
+
+    private static LogStore parse(byte[] text) throws IOException {
+        var store = new LogStore();
+        new LogParser().parse(new ByteArrayInputStream(text), store);
+        return store;
+    }
+
+    private static byte[] export(LogStore store, RowList rows, int count, int format) throws IOException {
+        var os = new ByteArrayOutputStream();
+        LogExporter.write(store, rows, count, format, os);
+        return os.toByteArray();
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            failures.add(failure);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package app.grapheneos.logviewer;
 
 import android.annotation.Nullable;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Typeface;
@@ -19,6 +20,7 @@ import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -26,9 +28,11 @@ import android.widget.TextView;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 import static android.view.ViewGroup.LayoutParams.MATCH_PARENT;
 import static app.grapheneos.logviewer.Utils.splitLines;
@@ -40,27 +44,72 @@ public abstract class BaseActivity extends Activity {
     // Activity instanceId, used to locate viewModel
     private ParcelUuid instanceId;
     protected ViewModel viewModel;
+    // background tasks of this activity instance, cancelled in onDestroy()
+    protected TaskScope tasks;
 
     @Nullable
     abstract ViewModel createViewModel();
 
-    private static final LruCache<ParcelUuid, ViewModel> viewModels = new LruCache<>(100 * (1 << 20)) {
+    // View models keep growing after they are cached, e.g. while their capture is in progress, so
+    // their size is measured when they are put. LruCache requires sizeOf() to return the same
+    // value for as long as the entry is cached. Entries are put again with a new size once their
+    // view model stops growing, see onViewModelGrew().
+    static class CachedViewModel {
+        final ViewModel viewModel;
+        final int size;
+
+        CachedViewModel(ViewModel viewModel) {
+            this.viewModel = viewModel;
+            this.size = viewModel.estimateMemoryUsage();
+        }
+    }
+
+    private static final LruCache<ParcelUuid, CachedViewModel> viewModels = new LruCache<>(100 * (1 << 20)) {
         @Override
-        protected int sizeOf(ParcelUuid key, ViewModel value) {
-            int multiplier = 2; // at most 2 bytes per char
-            return (value.header.length() + value.body.length() + value.description.length()) * multiplier;
+        protected int sizeOf(ParcelUuid key, CachedViewModel value) {
+            return value.size;
+        }
+    };
+
+    // view models of destroyed activities are recreated when their activity is restored, view
+    // models of live activities stay referenced by them
+    static final CacheManager.Cache VIEW_MODEL_CACHE = new CacheManager.Cache("viewModels") {
+        @Override
+        long size() {
+            return viewModels.size();
+        }
+
+        @Override
+        void compact() {
+            for (CachedViewModel e : viewModels.snapshot().values()) {
+                ViewModel vm = e.viewModel;
+                if (vm.store != null) {
+                    vm.store.releasePagedInBlocks();
+                }
+            }
+        }
+
+        @Override
+        void trimToSize(long maxSize) {
+            viewModels.trimToSize((int) Math.min(maxSize, Integer.MAX_VALUE));
         }
     };
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final Metrics.AsyncSection firstFrame = Metrics.FIRST_FRAME.beginAsync();
+        tasks = new TaskScope(getMainExecutor());
+        CacheManager.init(this);
 
         ParcelUuid instanceId;
         ViewModel vm = null;
         if (savedInstanceState != null) {
             instanceId = savedInstanceState.getParcelable(KEY_INSTANCE_ID, ParcelUuid.class);
-            vm = viewModels.get(instanceId);
+            CachedViewModel cached = viewModels.get(instanceId);
+            if (cached != null) {
+                vm = cached.viewModel;
+            }
         } else {
             instanceId = new ParcelUuid(UUID.randomUUID());
         }
@@ -72,7 +121,8 @@ public abstract class BaseActivity extends Activity {
         }
 
         if (vm != null) {
-            viewModels.put(instanceId, vm);
+            viewModels.put(instanceId, new CachedViewModel(vm));
+            CacheManager.onCacheGrew();
         } else {
             finishAndRemoveTask();
             return;
@@ -94,6 +144,14 @@ public abstract class BaseActivity extends Activity {
             v.setLayoutManager(new LinearLayoutManager(ctx));
             // needed for state restoration
             v.setId(1);
+            v.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    v.getViewTreeObserver().removeOnPreDrawListener(this);
+                    Metrics.FIRST_FRAME.endAsync(firstFrame);
+                    return true;
+                }
+            });
         }
         if (savedInstanceState == null && shouldScrollToBottom()) {
             scrollToBottom();
@@ -138,6 +196,11 @@ public abstract class BaseActivity extends Activity {
             var b = new Button(ctx);
             b.setText(R.string.action_copy);
             b.setOnClickListener(v -> viewModel.copyToClipbord(this));
+            // hidden debug panel
+            b.setOnLongClickListener(v -> {
+                DebugPanel.show(this);
+                return true;
+            });
             btnLayout.addView(b);
         }
         if (shouldShowReportButton()) {
@@ -175,6 +238,19 @@ public abstract class BaseActivity extends Activity {
 
     private static final String KEY_INSTANCE_ID = "instance_id";
 
+    // Updates the cached size of a view model after it has grown, e.g. after its capture, import
+    // or refresh has finished. Its activity might have been destroyed by then, the entry is found
+    // by value. Called on the main thread.
+    static void onViewModelGrew(ViewModel vm) {
+        for (var e : viewModels.snapshot().entrySet()) {
+            if (e.getValue().viewModel == vm) {
+                viewModels.put(e.getKey(), new CachedViewModel(vm));
+                CacheManager.onCacheGrew();
+                return;
+            }
+        }
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -184,6 +260,7 @@ public abstract class BaseActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        tasks.cancel();
 
         if (isFinishing()) {
             ParcelUuid id = this.instanceId;
@@ -193,7 +270,11 @@ public abstract class BaseActivity extends Activity {
         }
     }
 
-    private final ArrayList<String> listItems = new ArrayList<>();
+    // list items are header lines, body lines and description lines, body lines aren't copied
+    // since they can be backed by a LogStore
+    private List<String> listHeaderItems = emptyList();
+    private List<String> listBodyItems = emptyList();
+    private List<String> listFooterItems = emptyList();
     private AListAdapter listAdapter;
     private RecyclerView listView;
 
@@ -201,32 +282,64 @@ public abstract class BaseActivity extends Activity {
     private ScaleGestureDetector listScaleGestureDetector;
 
     void updateListItems() {
-        ArrayList<String> l = listItems;
-        l.clear();
-
+        long start = Metrics.INDEX.begin();
         ViewModel m = viewModel;
-        List<String> headerLines = m.createHeaderLines();
-        l.addAll(headerLines);
-        if (!headerLines.isEmpty()) {
-            l.add("");
+        var header = new ArrayList<String>(m.createHeaderLines());
+        if (!header.isEmpty()) {
+            header.add("");
         }
-        l.addAll(m.createBodyLines());
+        listHeaderItems = header;
+        listBodyItems = m.createBodyLines();
 
+        var footer = new ArrayList<String>();
         String desc = m.description;
         if (!desc.isBlank()) {
-            l.add("");
-            l.addAll(splitLines("description: " + desc));
+            footer.add("");
+            footer.addAll(splitLines("description: " + desc));
         }
+        listFooterItems = footer;
+        Metrics.INDEX.end(start, 0, getListItemCount());
         listAdapter.notifyDataSetChanged();
     }
 
+    int getListItemCount() {
+        return listHeaderItems.size() + listBodyItems.size() + listFooterItems.size();
+    }
+
+    String getListItem(int pos) {
+        int headerSize = listHeaderItems.size();
+        if (pos < headerSize) {
+            return listHeaderItems.get(pos);
+        }
+        pos -= headerSize;
+        int bodySize = listBodyItems.size();
+        if (pos < bodySize) {
+            return listBodyItems.get(pos);
+        }
+        return listFooterItems.get(pos - bodySize);
+    }
+
+    // Called after rows were appended to the LogStore of the view model. Rows might still be
+    // appended concurrently, the row count is sampled once.
+    void onBodyRowsAppended() {
+        int prevSize = listBodyItems.size();
+        listBodyItems = viewModel.createBodyLines();
+        int count = listBodyItems.size() - prevSize;
+        if (count > 0) {
+            listAdapter.notifyItemRangeInserted(listHeaderItems.size() + prevSize, count);
+            scrollToBottom();
+        }
+    }
+
     void scrollToBottom() {
-        listView.scrollToPosition(listItems.size() - 1);
+        listView.scrollToPosition(getListItemCount() - 1);
     }
 
     class AListAdapter extends RecyclerView.Adapter<AListAdapter.VHolder> {
         static class VHolder extends RecyclerView.ViewHolder {
             final TextView textView;
+            // text of textView, it's referenced by the TextView until the next bind
+            final LineChars line = new LineChars();
 
             VHolder(TextView item) {
                 super(item);
@@ -248,14 +361,32 @@ public abstract class BaseActivity extends Activity {
 
         @Override
         public void onBindViewHolder(VHolder holder, int pos) {
+            long start = Metrics.BIND.begin();
             TextView v = holder.textView;
             v.setTextSize(fontSizeSp);
-            v.setText(prepareLineForDisplay(listItems.get(pos)));
+            LineChars line = holder.line;
+            int flags = getDisplayFlags();
+            int bodyPos = pos - listHeaderItems.size();
+            LogStore store = viewModel.store;
+            if (store != null && bodyPos >= 0 && bodyPos < listBodyItems.size()) {
+                // decoded straight from the store, without creating a String for the row
+                int row = viewModel.getBodyRow(bodyPos);
+                String label = getRowLabel(store, row);
+                if (label != null) {
+                    line.set(label, store, row, flags);
+                } else {
+                    line.set(store, row, flags);
+                }
+            } else {
+                line.set(getListItem(pos), flags);
+            }
+            v.setText(line.chars, 0, line.length);
+            Metrics.BIND.end(start);
         }
 
         @Override
         public int getItemCount() {
-            return listItems.size();
+            return getListItemCount();
         }
     }
 
@@ -266,14 +397,53 @@ public abstract class BaseActivity extends Activity {
     }
 
     void onActionShare() {
-        ViewModel.Snapshot s = ViewModel.Snapshot.create(viewModel);
-        Uri uri = BlobProvider.getUri(s.fileName, s.textBytes);
-        var i = new Intent(Intent.ACTION_SEND);
-        i.putExtra(Intent.EXTRA_SUBJECT, s.fileName);
-        i.setType(ViewModel.Snapshot.MIME_TYPE);
-        i.putExtra(Intent.EXTRA_STREAM, uri);
-        i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-        startActivity(Intent.createChooser(i, s.fileName));
+        // contents of the view model are captured on the main thread, the text is created by
+        // share()
+        Supplier<ViewModel.Snapshot> snapshot = ViewModel.Snapshot.prepare(viewModel);
+        share(snapshot::get);
+    }
+
+    private void share(Supplier<SnapshotSaver.Document> documentSupplier) {
+        // snapshot text creation and compression of large logs would stall the UI
+        tasks.execute(TaskExecutors.CPU, () -> {
+            long start = Metrics.SHARE.begin();
+            SnapshotSaver.Document s = documentSupplier.get();
+            String fileName = s.getFileName();
+            BlobProvider.Blob blob;
+            try {
+                blob = BlobProvider.put(this, s);
+            } catch (IOException e) {
+                Metrics.SHARE.end(start);
+                tasks.post(() -> ErrorDialog.show(this, getText(R.string.unable_to_share), e));
+                return;
+            }
+            Uri uri = blob.getUri(fileName);
+            Metrics.SHARE.end(start, blob.size, 1);
+            tasks.post(() -> {
+                var i = new Intent(Intent.ACTION_SEND);
+                i.putExtra(Intent.EXTRA_SUBJECT, fileName);
+                i.setType(ViewModel.Snapshot.MIME_TYPE);
+                i.putExtra(Intent.EXTRA_STREAM, uri);
+                i.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(Intent.createChooser(i, fileName));
+            });
+        });
+    }
+
+    // structured formats of LogExporter, for view models with a store
+    private void showExportDialog() {
+        int[] format = { LogExporter.FORMAT_JSON_LINES };
+        var b = new AlertDialog.Builder(this);
+        b.setTitle(R.string.action_export);
+        b.setSingleChoiceItems(LogExporter.FORMAT_NAMES, format[0], (d, idx) -> format[0] = idx);
+        b.setPositiveButton(R.string.action_save, (d, w) ->
+                SnapshotSaver.start(this, new ViewModel.Export(viewModel, format[0])));
+        b.setNeutralButton(R.string.action_share, (d, w) -> {
+            // the set of rows is captured on the main thread
+            var export = new ViewModel.Export(viewModel, format[0]);
+            share(() -> export);
+        });
+        b.show();
     }
 
     int dpToPx(int dp) {
@@ -301,8 +471,16 @@ public abstract class BaseActivity extends Activity {
         return s;
     }
 
-    String prepareLineForDisplay(String s) {
-        return s;
+    // Shown before the text of a store row, e.g. name of its uid. Called on the bind path, it must
+    // not create objects.
+    @Nullable
+    String getRowLabel(LogStore store, int row) {
+        return null;
+    }
+
+    // LineChars flags for displayed lines
+    int getDisplayFlags() {
+        return 0;
     }
 
     static class BottomButton {
@@ -321,6 +499,7 @@ public abstract class BaseActivity extends Activity {
 
     private MenuItem miShare;
     private MenuItem miSave;
+    private MenuItem miExport;
     private MenuItem miSetDescription;
 
     @Override
@@ -329,6 +508,9 @@ public abstract class BaseActivity extends Activity {
             miShare = menu.add(R.string.action_share);
         }
         miSave = menu.add(R.string.action_save);
+        if (viewModel.store != null) {
+            miExport = menu.add(R.string.action_export);
+        }
         miSetDescription = menu.add(getDescriptionActionTitle())
             .setIcon(R.drawable.ic_add_description)
             .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_IF_ROOM);
@@ -350,6 +532,10 @@ public abstract class BaseActivity extends Activity {
             SnapshotSaver.start(this);
             return true;
         }
+        if (miExport == item) {
+            showExportDialog();
+            return true;
+        }
         if (miSetDescription == item) {
             EditorDialog.show(this, false, getDescriptionActionTitle(),
                     viewModel.description, null, (Editable res) -> {
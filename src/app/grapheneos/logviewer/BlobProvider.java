@@ -4,6 +4,7 @@ import android.annotation.Nullable;
 import android.content.ContentProvider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
@@ -15,91 +16,237 @@ import android.system.OsConstants;
 import android.util.Log;
 import android.util.LruCache;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
 // The purpose of this provider is to support sending blobs to other apps as a Uri without writing
-// them to storage
+// them to shared storage.
+// Blobs are content-addressed: they are keyed by the SHA-256 of their contents, which is computed
+// while they are streamed into the compressor, and sharing the same contents again reuses the
+// stored blob. Uris are "content://<authority>/<hash>/<display name>", a blob can have any number
+// of display names.
+// Blobs are also written to the app cache dir, so that their Uris stay valid for DISK_TTL_MS after
+// the process is stopped or after the in-memory entry is evicted, e.g. for slow receiving apps.
 public class BlobProvider extends ContentProvider {
     private static final String TAG = BlobProvider.class.getSimpleName();
 
+    private static final String DISK_DIR = "blobs";
+    private static final long DISK_TTL_MS = 60 * 60 * 1000;
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
     @Override
     public boolean onCreate() {
+        File dir = new File(getContext().getCacheDir(), DISK_DIR);
+        TaskExecutors.IO.execute(() -> deleteExpiredFiles(dir));
         return true;
     }
 
-    static class Entry {
-        final Uri uri;
+    static class Blob {
+        // hex SHA-256 of the contents
+        final String hash;
         // blob is gzipped to reduce memory usage
         final byte[] gzBytes;
-        final int size;
+        final long size;
 
-        public Entry(Uri uri, byte[] gzBytes, int size) {
-            this.uri = uri;
+        Blob(String hash, byte[] gzBytes, long size) {
+            this.hash = hash;
             this.gzBytes = gzBytes;
             this.size = size;
         }
+
+        Uri getUri(String displayName) {
+            var b = new Uri.Builder();
+            b.scheme(ContentResolver.SCHEME_CONTENT);
+            b.authority(BlobProvider.class.getName());
+            b.appendPath(hash);
+            b.appendPath(displayName);
+            return b.build();
+        }
     }
 
-    private static final LruCache<Uri, Entry> entries = new LruCache<>(40 * (1 << 20)) { // 40 MiB
+    // by hash
+    private static final LruCache<String, Blob> entries = new LruCache<>(40 * (1 << 20)) { // 40 MiB
         @Override
-        protected int sizeOf(Uri key, Entry value) {
+        protected int sizeOf(String key, Blob value) {
             return value.gzBytes.length;
         }
     };
 
-    // Uri will be valid until our process is stopped or until the backing entry is evicted by new entries
-    public static Uri getUri(String blobName, byte[] bytes) {
-        var b = new Uri.Builder();
-        b.scheme(ContentResolver.SCHEME_CONTENT);
-        b.authority(BlobProvider.class.getName());
-        b.path(blobName);
-        Uri uri = b.build();
-
-        var bos = new ByteArrayOutputStream(bytes.length);
-        try (var s = new GZIPOutputStream(bos)) {
-            s.write(bytes);
-        } catch (IOException e) {
+    // evicted blobs are still served from disk
+    static final CacheManager.Cache CACHE = new CacheManager.Cache("blobs") {
+        @Override
+        long size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        @Override
+        void trimToSize(long maxSize) {
+            synchronized (entries) {
+                entries.trimToSize((int) Math.min(maxSize, Integer.MAX_VALUE));
+            }
+        }
+    };
+
+    // Streams the document into a blob, or returns the stored blob with the same contents. Uris of
+    // the blob stay valid until the process is stopped or the blob is evicted, and then until the
+    // disk copy expires.
+    static Blob put(Context ctx, SnapshotSaver.Document doc) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException(e);
         }
+        var bos = new ByteArrayOutputStream(1 << 16);
+        long size;
+        try (var os = new DigestOutputStream(new GZIPOutputStream(bos, 1 << 16), digest)) {
+            size = doc.writeTo(os);
+        }
+        String hash = toHex(digest.digest());
 
-        var entry = new Entry(uri, bos.toByteArray(), bytes.length);
+        Blob blob;
         synchronized (entries) {
-            entries.put(uri, entry);
+            blob = entries.get(hash);
+            if (blob == null) {
+                blob = new Blob(hash, bos.toByteArray(), size);
+                entries.put(hash, blob);
+            }
         }
-        return uri;
+        CacheManager.onCacheGrew();
+
+        File file = getDiskFile(ctx, hash);
+        Blob b = blob;
+        TaskExecutors.IO.execute(() -> writeDiskFile(file, b));
+        return blob;
     }
 
     @Nullable
-    private static Entry getEntryForUri(Uri uri) {
+    private static Blob getBlob(Context ctx, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !HASH_PATTERN.matcher(segments.get(0)).matches()) {
+            return null;
+        }
+        String hash = segments.get(0);
         synchronized (entries) {
-            return entries.get(uri);
+            Blob b = entries.get(hash);
+            if (b != null) {
+                return b;
+            }
+        }
+        Blob b = readDiskFile(getDiskFile(ctx, hash), hash);
+        if (b != null) {
+            synchronized (entries) {
+                entries.put(hash, b);
+            }
+            CacheManager.onCacheGrew();
         }
+        return b;
     }
 
-    private static byte[] getEntryBytes(Entry e) {
-        try (var s = new GZIPInputStream(new ByteArrayInputStream(e.gzBytes))) {
-            return s.readAllBytes();
+    private static byte[] getBlobBytes(Blob b) {
+        try {
+            return Gzip.decompress(b.gzBytes);
         } catch (IOException ex) {
             Log.e(TAG, "", ex);
             throw new IllegalStateException();
         }
     }
 
+    private static File getDiskFile(Context ctx, String hash) {
+        return new File(new File(ctx.getCacheDir(), DISK_DIR), hash);
+    }
+
+    // file contains the uncompressed size followed by the gzipped contents
+    private static void writeDiskFile(File file, Blob b) {
+        if (file.exists()) {
+            // shared again, TTL starts over
+            file.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (var os = new DataOutputStream(new FileOutputStream(tmp))) {
+            os.writeLong(b.size);
+            os.write(b.gzBytes);
+        } catch (IOException e) {
+            // blob is served only from memory
+            Log.w(TAG, "unable to write " + file, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    @Nullable
+    private static Blob readDiskFile(File file, String hash) {
+        long modified = file.lastModified();
+        if (modified == 0) {
+            return null;
+        }
+        if (System.currentTimeMillis() - modified > DISK_TTL_MS) {
+            file.delete();
+            return null;
+        }
+        try (var is = new DataInputStream(new FileInputStream(file))) {
+            long size = is.readLong();
+            return new Blob(hash, is.readAllBytes(), size);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to read " + file, e);
+            return null;
+        }
+    }
+
+    private static void deleteExpiredFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (now - f.lastModified() > DISK_TTL_MS || f.getName().endsWith(".tmp")) {
+                f.delete();
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        byte[] res = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            res[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            res[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(res, US_ASCII);
+    }
+
     @Override
     public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
         Log.d(TAG, "openFile uri " + uri + ", mode " + mode + ", caller " + getCallingPackage());
-        Entry entry = getEntryForUri(uri);
-        if (entry == null) {
+        Blob blob = getBlob(getContext(), uri);
+        if (blob == null) {
             throw new FileNotFoundException();
         }
-        byte[] bytes = getEntryBytes(entry);
+        byte[] bytes = getBlobBytes(blob);
         try (SharedMemory mem = SharedMemory.create(null, bytes.length)) {
             ByteBuffer bb = mem.mapReadWrite();
             bb.put(bytes);
@@ -120,8 +267,8 @@ public class BlobProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         Log.d(TAG, "query " + uri + ", proj " + Arrays.toString(projection) + ", caller " + getCallingPackage());
-        Entry entry = getEntryForUri(uri);
-        if (entry == null) {
+        Blob blob = getBlob(getContext(), uri);
+        if (blob == null) {
             return null;
         }
         if (projection == null) {
@@ -137,7 +284,7 @@ public class BlobProvider extends ContentProvider {
             if (OpenableColumns.DISPLAY_NAME.equals(column)) {
                 row[i] = uri.getLastPathSegment();
             } else if (OpenableColumns.SIZE.equals(column)) {
-                row[i] = Long.valueOf(entry.size);
+                row[i] = Long.valueOf(blob.size);
             }
         }
         c.addRow(row);
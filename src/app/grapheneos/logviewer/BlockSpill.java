@@ -0,0 +1,170 @@
+package app.grapheneos.logviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Disk tier of LogStore text blocks. Old blocks are compressed and appended to a cache file, and are
+// paged back in on access through a memory-mapped view of their file region. A small LRU cache of
+// paged in blocks keeps scrolling through spilled rows cheap.
+class BlockSpill {
+    private static final Cleaner cleaner = Cleaner.create();
+    private static boolean staleFilesDeleted;
+
+    private final FileState state;
+    private final int maxPagedIn;
+
+    private long[] offsets = new long[16];
+    private int[] compressedLengths = new int[16];
+    private int[] lengths = new int[16];
+    private long fileSize;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] compressBuf = new byte[1 << 16];
+
+    private final LinkedHashMap<Integer, byte[]> pagedIn;
+
+    // the file is deleted when the owner becomes unreachable
+    private static class FileState implements Runnable {
+        final File file;
+        final RandomAccessFile raf;
+
+        FileState(File file) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+        }
+
+        @Override
+        public void run() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // file is deleted anyway
+            }
+            file.delete();
+        }
+    }
+
+    BlockSpill(Object owner, File dir, int maxPagedIn) throws IOException {
+        synchronized (BlockSpill.class) {
+            if (!staleFilesDeleted) {
+                // left over by a previous process
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        f.delete();
+                    }
+                }
+                staleFilesDeleted = true;
+            }
+        }
+        dir.mkdirs();
+        state = new FileState(File.createTempFile("blocks", ".spill", dir));
+        cleaner.register(owner, state);
+        this.maxPagedIn = maxPagedIn;
+        pagedIn = new LinkedHashMap<>(maxPagedIn * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > BlockSpill.this.maxPagedIn;
+            }
+        };
+    }
+
+    // Writes out the first len bytes of blocks[idx] and removes the block from the array
+    synchronized void spill(byte[][] blocks, int idx, int len) throws IOException {
+        byte[] block = blocks[idx];
+        Deflater d = deflater;
+        d.reset();
+        d.setInput(block, 0, len);
+        d.finish();
+        int compressedLen = 0;
+        while (!d.finished()) {
+            if (compressedLen == compressBuf.length) {
+                compressBuf = Arrays.copyOf(compressBuf, compressBuf.length * 2);
+            }
+            compressedLen += d.deflate(compressBuf, compressedLen, compressBuf.length - compressedLen);
+        }
+
+        FileChannel ch = state.raf.getChannel();
+        var src = ByteBuffer.wrap(compressBuf, 0, compressedLen);
+        long pos = fileSize;
+        while (src.hasRemaining()) {
+            pos += ch.write(src, pos);
+        }
+
+        if (idx >= offsets.length) {
+            int cap = Math.max(idx + 1, offsets.length * 2);
+            offsets = Arrays.copyOf(offsets, cap);
+            compressedLengths = Arrays.copyOf(compressedLengths, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+        }
+        offsets[idx] = fileSize;
+        compressedLengths[idx] = compressedLen;
+        lengths[idx] = len;
+        fileSize = pos;
+        // readers that see null call pageIn(), which takes this lock
+        blocks[idx] = null;
+    }
+
+    synchronized byte[] pageIn(byte[][] blocks, int idx) {
+        byte[] b = blocks[idx];
+        if (b != null) {
+            // spill() wasn't completed when the caller read the block
+            return b;
+        }
+        b = pagedIn.get(idx);
+        if (b != null) {
+            return b;
+        }
+        b = new byte[lengths[idx]];
+        try {
+            MappedByteBuffer mapped = state.raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    offsets[idx], compressedLengths[idx]);
+            Inflater inf = inflater;
+            inf.reset();
+            inf.setInput(mapped);
+            int pos = 0;
+            while (pos < b.length && !inf.finished()) {
+                pos += inf.inflate(b, pos, b.length - pos);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        }
+        pagedIn.put(idx, b);
+        return b;
+    }
+
+    // drops paged in blocks, they are paged in again on access
+    synchronized void releasePagedInBlocks() {
+        pagedIn.clear();
+        if (compressBuf.length > 1 << 16) {
+            compressBuf = new byte[1 << 16];
+        }
+    }
+
+    synchronized long estimateMemoryUsage() {
+        long res = compressBuf.length;
+        for (byte[] b : pagedIn.values()) {
+            res += b.length;
+        }
+        return res;
+    }
+
+    synchronized long getFileSize() {
+        return fileSize;
+    }
+}
@@ -0,0 +1,269 @@
+package app.grapheneos.logviewer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Index of sections of a bugreport zip, for opening them separately instead of parsing the whole
+// bugreport. It's built in one streaming pass over the zip: the main text entry, tombstones and ANR
+// traces are decompressed into a cache file, and sections of the main entry are found by their
+// header lines, e.g.
+//   ------ SYSTEM LOG (logcat -v threadtime -v printable -v uid -d *:v) ------
+//   ------ 0.612s was the duration of 'SYSTEM LOG' ------
+// Sections are read back through a memory-mapped view of their region of the cache file, nothing
+// is decompressed into memory. The cache file is deleted when the index becomes unreachable.
+class BugreportIndex {
+    private static final Cleaner cleaner = Cleaner.create();
+    private static boolean staleFilesDeleted;
+
+    static final int KIND_LOGCAT = 0;
+    static final int KIND_KERNEL_LOG = 1;
+    static final int KIND_DUMPSYS = 2;
+    static final int KIND_TOMBSTONE = 3;
+    static final int KIND_ANR = 4;
+    static final int KIND_OTHER = 5;
+
+    private static final byte[] SECTION_PREFIX = "------ ".getBytes();
+    private static final byte[] SECTION_SUFFIX = " ------".getBytes();
+    private static final String DURATION_MARKER = " was the duration of '";
+    // see LogImporter
+    private static final byte[] DUMPSTATE_PREFIX = "== dumpstate: ".getBytes();
+
+    static class Section {
+        final String title;
+        final int kind;
+        // region of the cache file
+        final long start;
+        final long end;
+
+        Section(String title, int kind, long start, long end) {
+            this.title = title;
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start;
+        }
+    }
+
+    private final File file;
+    final List<Section> sections;
+    // year of the bugreport, for timestamps of its logs, LogStore.UNKNOWN if it wasn't found
+    final int year;
+
+    private BugreportIndex(File file, List<Section> sections, int year) {
+        this.file = file;
+        this.sections = Collections.unmodifiableList(sections);
+        this.year = year;
+        cleaner.register(this, file::delete);
+    }
+
+    // Reads a bugreport zip, cancelled is checked between reads. Throws IOException if the zip
+    // doesn't contain a bugreport.
+    static BugreportIndex build(InputStream zip, File cacheDir, BooleanSupplier cancelled) throws IOException {
+        synchronized (BugreportIndex.class) {
+            if (!staleFilesDeleted) {
+                // left over by a previous process
+                File[] files = cacheDir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        f.delete();
+                    }
+                }
+                staleFilesDeleted = true;
+            }
+        }
+        cacheDir.mkdirs();
+        File file = File.createTempFile("bugreport", ".txt", cacheDir);
+        boolean success = false;
+        try (var out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            var b = new Builder(out, cancelled);
+            var zis = new ZipInputStream(zip);
+            boolean hasMainEntry = false;
+            ZipEntry e;
+            while (!cancelled.getAsBoolean() && (e = zis.getNextEntry()) != null) {
+                String name = e.getName();
+                if (LogImporter.isBugreportMainEntry(name)) {
+                    hasMainEntry = true;
+                    b.addMainEntry(zis);
+                } else if (name.startsWith("FS/data/tombstones/") && !name.endsWith(".pb")) {
+                    b.addEntry(zis, name.substring(name.lastIndexOf('/') + 1), KIND_TOMBSTONE);
+                } else if (name.startsWith("FS/data/anr/")) {
+                    b.addEntry(zis, name.substring(name.lastIndexOf('/') + 1), KIND_ANR);
+                }
+            }
+            if (!hasMainEntry && !cancelled.getAsBoolean()) {
+                throw new IOException("zip file doesn't contain a bugreport");
+            }
+            out.flush();
+            success = true;
+            return new BugreportIndex(file, b.sections, b.year);
+        } finally {
+            if (!success) {
+                file.delete();
+            }
+        }
+    }
+
+    private static class Builder {
+        final OutputStream out;
+        final BooleanSupplier cancelled;
+        final ArrayList<Section> sections = new ArrayList<>();
+        long pos;
+        int year = LogStore.UNKNOWN;
+
+        // section of the main entry that is being read
+        String title;
+        int kind;
+        long start;
+
+        Builder(OutputStream out, BooleanSupplier cancelled) {
+            this.out = out;
+            this.cancelled = cancelled;
+        }
+
+        // copies the entry to the cache file, splitting it into sections
+        void addMainEntry(InputStream is) throws IOException {
+            title = "header";
+            kind = KIND_OTHER;
+            start = pos;
+            LogParser.readLines(copying(is), (b, lineStart, lineEnd) -> {
+                long lineOffset = pos;
+                pos += lineEnd - lineStart + 1;
+                if (year == LogStore.UNKNOWN && LogParser.startsWith(b, lineStart, lineEnd, DUMPSTATE_PREFIX)) {
+                    int p = lineStart + DUMPSTATE_PREFIX.length;
+                    year = LogParser.parseInt(b, p, Math.min(lineEnd, p + 4));
+                }
+                if (LogParser.startsWith(b, lineStart, lineEnd, SECTION_PREFIX)
+                        && endsWith(b, lineStart, lineEnd, SECTION_SUFFIX)) {
+                    String s = new String(b, lineStart + SECTION_PREFIX.length,
+                            lineEnd - lineStart - SECTION_PREFIX.length - SECTION_SUFFIX.length);
+                    if (s.contains(DURATION_MARKER)) {
+                        // end of the current section, including the duration line
+                        endSection(pos);
+                    } else {
+                        endSection(lineOffset);
+                        title = s;
+                        kind = getKind(s);
+                        start = lineOffset;
+                    }
+                }
+            });
+            // the last line might not have a terminator
+            pos = copied;
+            endSection(pos);
+        }
+
+        private void endSection(long end) {
+            if (title != null && end > start) {
+                sections.add(new Section(title, kind, start, end));
+            }
+            title = null;
+            start = end;
+        }
+
+        void addEntry(InputStream is, String name, int kind) throws IOException {
+            long entryStart = pos;
+            byte[] buf = new byte[1 << 16];
+            InputStream src = copying(is);
+            while (src.read(buf) >= 0) {
+                // copied by the stream
+            }
+            pos = copied;
+            sections.add(new Section(name, kind, entryStart, pos));
+        }
+
+        // total number of bytes that were written to the cache file
+        long copied;
+
+        // stream that writes the bytes that are read from it to the cache file
+        private InputStream copying(InputStream is) {
+            return new FilterInputStream(is) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (cancelled.getAsBoolean()) {
+                        return -1;
+                    }
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        out.write(b, off, n);
+                        copied += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() {
+                    // the zip stream is closed by build()
+                }
+            };
+        }
+    }
+
+    static int getKind(String title) {
+        if (title.startsWith("KERNEL LOG") || title.startsWith("LAST KMSG")) {
+            return KIND_KERNEL_LOG;
+        }
+        if (title.contains("LOG (logcat") || title.contains("LOGCAT")) {
+            return KIND_LOGCAT;
+        }
+        if (title.startsWith("DUMPSYS")) {
+            return KIND_DUMPSYS;
+        }
+        if (title.startsWith("VM TRACES") || title.contains("ANR")) {
+            return KIND_ANR;
+        }
+        if (title.contains("TOMBSTONE")) {
+            return KIND_TOMBSTONE;
+        }
+        return KIND_OTHER;
+    }
+
+    private static boolean endsWith(byte[] b, int start, int end, byte[] suffix) {
+        return end - start >= suffix.length && LogParser.startsWith(b, end - suffix.length, end, suffix);
+    }
+
+    // section text, read through a memory-mapped view of the cache file
+    InputStream openSection(Section s) throws IOException {
+        if (s.length() > Integer.MAX_VALUE) {
+            throw new IOException("section is too large: " + s.length());
+        }
+        ByteBuffer buf;
+        try (var raf = new RandomAccessFile(file, "r")) {
+            // mapping stays valid after the file is closed
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, s.start, s.length());
+        }
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, buf.remaining());
+                buf.get(b, off, n);
+                return n;
+            }
+        };
+    }
+}
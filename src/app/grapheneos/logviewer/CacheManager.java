@@ -0,0 +1,125 @@
+package app.grapheneos.logviewer;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+// Shared memory budget of the in-process caches. Caches are trimmed in the order of CACHES, the
+// ones that are the cheapest to recreate first:
+// - the shared system log capture, which is recaptured on the next use
+// - blobs that were shared with other apps, which are still served from their disk copies
+// - view models of activities, which are recreated (e.g. recaptured) when their activity is
+//   restored
+// - documents that are waiting for the user to pick where they are saved, which are compressed,
+//   but are never dropped
+// Caches are trimmed when their total size exceeds the budget after an insertion, and on
+// onTrimMemory(): all levels compact the caches, i.e. entries are compressed and copies of spilled
+// data are dropped, and higher levels shrink the budget, down to zero for TRIM_MEMORY_COMPLETE.
+// Sizes of the caches are reported as Metrics gauges.
+class CacheManager {
+    abstract static class Cache {
+        final String name;
+
+        Cache(String name) {
+            this.name = name;
+        }
+
+        // estimated heap usage in bytes
+        abstract long size();
+
+        // Reduces memory usage without dropping entries, e.g. by compressing them
+        void compact() {}
+
+        // Drops entries until size() is at most maxSize
+        abstract void trimToSize(long maxSize);
+    }
+
+    private static final Cache[] CACHES = {
+        SystemCaptureCache.CACHE, BlobProvider.CACHE, BaseActivity.VIEW_MODEL_CACHE, SnapshotSaver.CACHE,
+    };
+
+    private static final long BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+    // guarded by the class lock
+    private static boolean initialized;
+    private static int trimCount;
+
+    static {
+        for (Cache c : CACHES) {
+            Metrics.addGauge("cache." + c.name, () -> formatSize(c.size()));
+        }
+        Metrics.addGauge("cache.total", () -> formatSize(totalSize()) + " budget=" + formatSize(BUDGET)
+                + " trims=" + getTrimCount());
+    }
+
+    static synchronized void init(Context ctx) {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        ctx.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // compression of large documents would stall the UI
+                TaskExecutors.CPU.execute(() -> trim(level));
+            }
+
+            @Override
+            public void onLowMemory() {
+                TaskExecutors.CPU.execute(() -> trim(TRIM_MEMORY_COMPLETE));
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        });
+    }
+
+    // called after an entry is added to one of the caches, can be called from any thread
+    static synchronized void onCacheGrew() {
+        if (totalSize() > BUDGET) {
+            trimToBudget(BUDGET);
+        }
+    }
+
+    private static synchronized void trim(int level) {
+        for (Cache c : CACHES) {
+            c.compact();
+        }
+        trimToBudget(getBudget(level));
+    }
+
+    private static long getBudget(int level) {
+        return switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> BUDGET / 2;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, ComponentCallbacks2.TRIM_MEMORY_MODERATE -> BUDGET / 4;
+            default -> level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ? 0 : BUDGET;
+        };
+    }
+
+    private static void trimToBudget(long budget) {
+        long excess = totalSize() - budget;
+        for (int i = 0; i < CACHES.length && excess > 0; ++i) {
+            Cache c = CACHES[i];
+            long size = c.size();
+            c.trimToSize(Math.max(0, size - excess));
+            excess -= size - c.size();
+            ++trimCount;
+        }
+    }
+
+    private static long totalSize() {
+        long res = 0;
+        for (Cache c : CACHES) {
+            res += c.size();
+        }
+        return res;
+    }
+
+    private static synchronized int getTrimCount() {
+        return trimCount;
+    }
+
+    private static String formatSize(long bytes) {
+        return (bytes >> 10) + "KiB";
+    }
+}
@@ -0,0 +1,130 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+// Speculative logcat captures, e.g. of the app log of the app that an error report is shown for.
+// Captures are keyed by capture parameters and are dropped if they aren't taken within TTL_MS.
+class CapturePrefetcher {
+    private static final String TAG = CapturePrefetcher.class.getSimpleName();
+
+    static final long TTL_MS = 30_000;
+
+    static class Entry {
+        final LogcatCapture capture;
+        // guarded by this entry
+        private boolean done;
+        private boolean failed;
+        @Nullable
+        private Runnable onDone;
+
+        private Entry(LogcatCapture capture) {
+            this.capture = capture;
+        }
+
+        // Returns the captured store if the capture has finished, null if it's still in progress,
+        // has failed or was cancelled. Doesn't block.
+        @Nullable
+        synchronized LogStore getResult() {
+            return done && !failed && !capture.isCancelled() ? capture.store : null;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        // true if the capture has finished without an error, it might have been cancelled
+        synchronized boolean isSuccessful() {
+            return done && !failed;
+        }
+
+        // Sets the callback that is run on a background thread once the capture finishes, or right
+        // away if it has finished already
+        void setOnDone(Runnable r) {
+            synchronized (this) {
+                if (!done) {
+                    onDone = r;
+                    return;
+                }
+            }
+            r.run();
+        }
+    }
+
+    // guarded by the class lock
+    private static final HashMap<String, Entry> entries = new HashMap<>();
+
+    static void start(String key, LogcatCapture capture) {
+        var e = new Entry(capture);
+        synchronized (CapturePrefetcher.class) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+            entries.put(key, e);
+        }
+        Log.d(TAG, "prefetching " + key);
+        TaskExecutors.IO.execute(() -> run(e));
+        TaskExecutors.SCHEDULER.schedule(() -> {
+            if (remove(key, e)) {
+                Log.d(TAG, "prefetched capture expired: " + key);
+                e.capture.cancel();
+            }
+        }, TTL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void run(Entry e) {
+        LogcatCapture capture = e.capture;
+        boolean failed = true;
+        if (!capture.isCancelled()) {
+            long start = Metrics.CAPTURE.begin();
+            try {
+                capture.run();
+                failed = false;
+            } catch (IOException|InterruptedException ex) {
+                Log.d(TAG, "", ex);
+            } finally {
+                Metrics.CAPTURE.end(start, capture.store.getTextBytes(), capture.store.size());
+            }
+        }
+        Runnable onDone;
+        synchronized (e) {
+            e.failed = failed;
+            e.done = true;
+            onDone = e.onDone;
+            e.onDone = null;
+        }
+        if (onDone != null) {
+            onDone.run();
+        }
+    }
+
+    private static synchronized boolean remove(String key, Entry e) {
+        return entries.remove(key, e);
+    }
+
+    // Returns the prefetched capture and removes it from the cache, null if there's no such
+    // capture. Doesn't wait for a capture that is still in progress: its rows are already in its
+    // store, and the caller is notified when it finishes, see Entry.setOnDone().
+    @Nullable
+    static Entry take(String key) {
+        synchronized (CapturePrefetcher.class) {
+            return entries.remove(key);
+        }
+    }
+
+    // cancels capture that hasn't been taken
+    static void cancel(String key) {
+        Entry e;
+        synchronized (CapturePrefetcher.class) {
+            e = entries.remove(key);
+        }
+        if (e != null) {
+            Log.d(TAG, "cancelled prefetch of " + key);
+            e.capture.cancel();
+        }
+    }
+}
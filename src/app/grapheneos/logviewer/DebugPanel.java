@@ -0,0 +1,27 @@
+package app.grapheneos.logviewer;
+
+import android.app.AlertDialog;
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+
+// Hidden panel that shows pipeline metrics, opened by long-pressing the Copy button
+public class DebugPanel {
+
+    public static void show(Context ctx) {
+        var b = new AlertDialog.Builder(ctx);
+        b.setTitle(R.string.debug_panel_title);
+        String msg = String.join("\n", Metrics.createReportLines());
+        b.setMessage(msg);
+        b.setPositiveButton(R.string.action_copy, (d, w) -> {
+            var cd = ClipData.newPlainText(null, msg);
+            var cm = ctx.getSystemService(ClipboardManager.class);
+            cm.setPrimaryClip(cd);
+        });
+        b.setNegativeButton(R.string.action_reset, (d, w) -> Metrics.reset());
+        boolean include = Metrics.includeInExports;
+        b.setNeutralButton(include ? R.string.metrics_exclude_from_exports : R.string.metrics_include_in_exports,
+                (d, w) -> Metrics.includeInExports = !include);
+        b.show();
+    }
+}
@@ -1,19 +1,24 @@
 package app.grapheneos.logviewer;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ApplicationErrorReport;
 import android.content.Intent;
 import android.ext.LogViewerApp;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.StringBuilderPrinter;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
@@ -22,6 +27,110 @@ import static java.util.Collections.singletonList;
 public class ErrorReportActivity extends BaseActivity {
     private static final String TAG = ErrorReportActivity.class.getSimpleName();
 
+    // Crash-looping apps produce bursts of reports. A report that has the same signature as the
+    // report of an open activity (see LogText.crashSignature()) and that arrives within
+    // COALESCE_WINDOW_MS of its previous occurrence is added to that activity instead of opening
+    // a new one, before the report is processed.
+    private static final long COALESCE_WINDOW_MS = 60_000;
+    // groups of open activities, by crash signature, accessed only on the main thread
+    private static final HashMap<Long, CrashGroup> crashGroups = new HashMap<>();
+
+    // Occurrences of a crash, shown in the header of the activity of its first report
+    static class CrashGroup {
+        // details of older occurrences are dropped, they are still counted
+        private static final int MAX_STORED_OCCURRENCES = 1000;
+        private static final int MAX_SHOWN_OCCURRENCES = 20;
+        private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+        final long signature;
+        int count;
+        private long firstTime;
+        // ring buffers with wall clock time and pid of the last occurrences, pid is -1 if it's
+        // unknown
+        private long[] times = new long[4];
+        private int[] pids = new int[4];
+        private long lastElapsedRealtime;
+
+        // task of the activity that shows the group
+        int taskId = -1;
+        // called when an occurrence is added, set by the activity that shows the group
+        @Nullable
+        Runnable listener;
+
+        CrashGroup(long signature) {
+            this.signature = signature;
+        }
+
+        void add(long time, int pid) {
+            int i = count % MAX_STORED_OCCURRENCES;
+            if (i == times.length) {
+                int len = Math.min(MAX_STORED_OCCURRENCES, times.length * 2);
+                times = Arrays.copyOf(times, len);
+                pids = Arrays.copyOf(pids, len);
+            }
+            times[i] = time;
+            pids[i] = pid;
+            if (count == 0) {
+                firstTime = time;
+            }
+            ++count;
+            lastElapsedRealtime = SystemClock.elapsedRealtime();
+        }
+
+        void addHeaderLines(List<String> dst) {
+            if (count <= 1) {
+                return;
+            }
+            dst.add("occurrences: " + count + ", first at " + formatTime(firstTime));
+            for (int k = 0, m = Math.min(count, MAX_SHOWN_OCCURRENCES); k < m; ++k) {
+                int i = (count - 1 - k) % MAX_STORED_OCCURRENCES;
+                String s = "  " + formatTime(times[i]);
+                dst.add(pids[i] >= 0 ? s + " pid " + pids[i] : s);
+            }
+            if (count > MAX_SHOWN_OCCURRENCES) {
+                dst.add("  ...");
+            }
+        }
+
+        private static String formatTime(long time) {
+            return TIME_FORMAT.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+        }
+    }
+
+    // reports of restored activities aren't coalesced
+    private boolean isNewInstance;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        isNewInstance = savedInstanceState == null;
+        super.onCreate(savedInstanceState);
+        if (viewModel != null && viewModel.crashGroup != null) {
+            CrashGroup g = viewModel.crashGroup;
+            g.taskId = getTaskId();
+            g.listener = this::updateListItems;
+        }
+        if (savedInstanceState == null && viewModel != null && viewModel.sourcePackage != null) {
+            // "Show log" would open without waiting for the capture
+            LogcatActivity.prefetchAppLog(this, viewModel.sourcePackage);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (viewModel != null && viewModel.crashGroup != null) {
+            CrashGroup g = viewModel.crashGroup;
+            g.listener = null;
+            if (isFinishing()) {
+                crashGroups.remove(g.signature, g);
+            }
+        }
+        if (isFinishing() && viewModel != null && viewModel.sourcePackage != null) {
+            // no-op if the capture was used by LogcatActivity
+            LogcatActivity.cancelAppLogPrefetch(this, viewModel.sourcePackage);
+        }
+    }
+
     @Override
     ViewModel createViewModel() {
         Intent intent = getIntent();
@@ -49,19 +158,28 @@ public class ErrorReportActivity extends BaseActivity {
             return null;
         }
 
+        long decodeStart = Metrics.DECODE.begin();
         byte[] msgBytes;
-        try (var s = new GZIPInputStream(new ByteArrayInputStream(msgGz))) {
-            msgBytes = s.readAllBytes();
+        try {
+            msgBytes = Gzip.decompress(msgGz);
         } catch (IOException e) {
             Log.d(TAG, "", e);
+            Metrics.DECODE.end(decodeStart);
             return null;
         }
 
         String msg = new String(msgBytes, UTF_8);
+        Metrics.DECODE.end(decodeStart, msgBytes.length, 1);
+        String sourcePkg = extras.getString(LogViewerApp.EXTRA_SOURCE_PACKAGE);
+        String type = extras.getString(LogViewerApp.EXTRA_ERROR_TYPE, "crash");
+        CrashGroup crashGroup = addToCrashGroup(sourcePkg + ':' + type, msg,
+                System.currentTimeMillis(), LogText.findCrashPid(msg));
+        if (crashGroup == null) {
+            return null;
+        }
         String body;
         {
             var sb = new StringBuilder(msg.length() + 200);
-            String type = extras.getString(LogViewerApp.EXTRA_ERROR_TYPE, "crash");
             sb.append("type: ").append(type).append('\n');
             if (!msg.contains(Build.FINGERPRINT)) {
                 sb.append("osVersion: ").append(Build.FINGERPRINT).append('\n');
@@ -69,7 +187,6 @@ public class ErrorReportActivity extends BaseActivity {
             sb.append(msg);
             body = sb.toString();
         }
-        String sourcePkg = extras.getString(LogViewerApp.EXTRA_SOURCE_PACKAGE);
 
         String title = extras.getString(Intent.EXTRA_TITLE);
         if (title == null) {
@@ -77,7 +194,9 @@ public class ErrorReportActivity extends BaseActivity {
                     getString(R.string.error_report_title, Utils.loadAppLabel(this, sourcePkg)) : "";
         }
 
-        return new ViewModel(sourcePkg, title, "", body);
+        var vm = new ViewModel(sourcePkg, title, "", body);
+        vm.crashGroup = crashGroup;
+        return vm;
     }
 
     @Nullable
@@ -87,14 +206,58 @@ public class ErrorReportActivity extends BaseActivity {
             return null;
         }
         String sourcePkg = aer.packageName;
+        String body = createAerBody(aer);
+        CrashGroup crashGroup = addToCrashGroup(sourcePkg + ':' + aerTypeToString(aer.type),
+                body != null ? body : "", aer.time, -1);
+        if (crashGroup == null) {
+            return null;
+        }
         String title = createTitle(sourcePkg);
         String header = createAerHeader(aer);
         String headerExt = i.getStringExtra(Intent.EXTRA_TEXT);
         if (headerExt != null) {
             header += '\n' + headerExt;
         }
-        String body = createAerBody(aer);
-        return new ViewModel(sourcePkg, title, header, body);
+        var vm = new ViewModel(sourcePkg, title, header, body);
+        vm.crashGroup = crashGroup;
+        return vm;
+    }
+
+    // Returns the group of a new view model for the report, or null if the report was added to
+    // the group of an open activity, which is brought to front
+    @Nullable
+    private CrashGroup addToCrashGroup(String kind, String report, long time, int pid) {
+        long signature = LogText.crashSignature(kind, report);
+        CrashGroup g = crashGroups.get(signature);
+        if (!isNewInstance && g != null) {
+            // view model of a restored activity was evicted, the report is already in the group
+            return g;
+        }
+        if (g != null && SystemClock.elapsedRealtime() - g.lastElapsedRealtime <= COALESCE_WINDOW_MS) {
+            g.add(time, pid);
+            if (g.listener != null) {
+                g.listener.run();
+            }
+            moveTaskToFront(g.taskId);
+            return null;
+        }
+        g = new CrashGroup(signature);
+        g.add(time, pid);
+        crashGroups.put(signature, g);
+        return g;
+    }
+
+    private void moveTaskToFront(int taskId) {
+        for (ActivityManager.AppTask t : getSystemService(ActivityManager.class).getAppTasks()) {
+            try {
+                if (t.getTaskInfo().taskId == taskId) {
+                    t.moveToFront();
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                // task was removed
+            }
+        }
     }
 
     private String createTitle(String sourcePkg) {
@@ -126,34 +289,8 @@ public class ErrorReportActivity extends BaseActivity {
     private static String createAerBody(ApplicationErrorReport r) {
         if (r.type == ApplicationErrorReport.TYPE_CRASH) {
             String stackTrace = r.crashInfo.stackTrace;
-            int nativeCrashMarkerIdx = stackTrace.indexOf("\nProcess uptime: ");
-            if (nativeCrashMarkerIdx > 0) {
-                // This is a native crash, filter out most of the header lines to make the report easier to read
-                var sb = new StringBuilder();
-                String[] prefixes = { "signal ", "Abort message: " };
-                boolean backtraceStarted = false;
-                for (String line : stackTrace.substring(nativeCrashMarkerIdx).split("\n")) {
-                    if (backtraceStarted) {
-                        sb.append(line);
-                        sb.append('\n');
-                    }
-                    for (String prefix : prefixes) {
-                        if (line.startsWith(prefix)) {
-                            sb.append(line);
-                            sb.append('\n');
-                        }
-                    }
-                    if (line.startsWith("backtrace:")) {
-                        sb.append('\n');
-                        sb.append(line);
-                        sb.append('\n');
-                        backtraceStarted = true;
-                    }
-                }
-                return sb.toString();
-            } else {
-                return stackTrace;
-            }
+            String nativeCrash = LogText.simplifyNativeCrash(stackTrace);
+            return nativeCrash != null ? nativeCrash : stackTrace;
         }
 
         var sb = new StringBuilder();
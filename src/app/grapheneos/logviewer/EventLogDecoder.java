@@ -0,0 +1,324 @@
+package app.grapheneos.logviewer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Decodes binary output of "logcat -B" for the events buffer into a LogStore. Rows are formatted
+// the same way as "logcat --format=epoch,printable,uid,descriptive" formats them, e.g.
+//   1697712345.123  1000  1234  1250 I am_proc_start: [User=0,PID=4321,...]
+// Tag and field names are looked up in EventLogTags, instead of being formatted by logcat.
+class EventLogDecoder {
+    // payload value types, see android/log.h
+    private static final int TYPE_INT = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_STRING = 2;
+    private static final int TYPE_LIST = 3;
+    private static final int TYPE_FLOAT = 4;
+
+    // struct logger_entry
+    private static final int MIN_HEADER_SIZE = 28;
+    private static final int MAX_PAYLOAD_SIZE = 0xffff;
+
+    private static final byte LEVEL_INFO = 4;
+
+    private final EventLogTags tags;
+    private final Filter filter; // null if all events are accepted
+    private final LogStore.Record rec = new LogStore.Record();
+
+    private final RowWriter w = new RowWriter();
+    // start and end offsets of top-level list values in the row, used by the filter
+    private int[] valueBounds = new int[32];
+    private int numValues;
+
+    EventLogDecoder(EventLogTags tags, Filter filter) {
+        this.tags = tags;
+        this.filter = filter;
+        rec.buffer = (byte) LogStore.getBufferId("events");
+    }
+
+    // returns the number of bytes that were read
+    long decode(InputStream is, LogStore store) throws IOException {
+        byte[] header = new byte[MIN_HEADER_SIZE];
+        byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+        long total = 0;
+        for (;;) {
+            if (!readFully(is, header, 0, 4, true)) {
+                break;
+            }
+            int len = getU16(header, 0);
+            int hdrSize = getU16(header, 2);
+            if (hdrSize < MIN_HEADER_SIZE) {
+                throw new IOException("unsupported logger_entry header size " + hdrSize);
+            }
+            readFully(is, header, 4, MIN_HEADER_SIZE - 4, false);
+            // newer header versions might have additional fields
+            for (int skip = hdrSize - MIN_HEADER_SIZE; skip > 0; --skip) {
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+            }
+            readFully(is, payload, 0, len, false);
+            total += hdrSize + len;
+
+            LogStore.Record r = rec;
+            r.reset();
+            r.pid = getI32(header, 4);
+            r.tid = getI32(header, 8);
+            long sec = getI32(header, 12) & 0xffff_ffffL;
+            long nsec = getI32(header, 16) & 0xffff_ffffL;
+            r.time = sec * 1000 + nsec / 1_000_000;
+            r.uid = getI32(header, 24);
+            r.level = LEVEL_INFO;
+            decodeEvent(payload, len, store);
+        }
+        return total;
+    }
+
+    private void decodeEvent(byte[] p, int len, LogStore store) {
+        if (len < 4) {
+            return;
+        }
+        int tag = getI32(p, 0);
+        int tagIdx = tags.indexOf(tag);
+        if (filter != null && !filter.acceptsTag(tag)) {
+            return;
+        }
+
+        LogStore.Record r = rec;
+        RowWriter w = this.w;
+        w.reset();
+        numValues = 0;
+        w.appendHeader(r);
+        int tagStart = w.len;
+        if (tagIdx >= 0) {
+            w.appendBytes(tags.getNameBytes(tagIdx), 0, tags.getNameBytes(tagIdx).length);
+        } else {
+            w.appendAscii("[" + tag + "]");
+        }
+        int tagEnd = w.len;
+        w.appendAscii(": ");
+        r.msgStart = w.len;
+
+        if (formatValue(p, 4, len, tagIdx, 0) < 0) {
+            // malformed or truncated payload
+            w.appendAscii("!");
+        }
+        if (len > 4 && p[4] != TYPE_LIST) {
+            // single value events are treated as single field lists by the filter
+            addValueBounds(r.msgStart, w.len);
+        }
+
+        if (filter != null && !filter.acceptsValues(tagIdx, w.buf, valueBounds, numValues)) {
+            return;
+        }
+        r.tag = store.tags.intern(w.buf, tagStart, tagEnd);
+        store.append(w.buf, 0, w.len, r);
+    }
+
+    // returns position after the value, or -1 if the payload is malformed
+    private int formatValue(byte[] p, int pos, int end, int tagIdx, int depth) {
+        if (pos >= end) {
+            return pos;
+        }
+        int type = p[pos++];
+        int size = switch (type) {
+            case TYPE_INT, TYPE_FLOAT, TYPE_STRING -> 4;
+            case TYPE_LONG -> 8;
+            case TYPE_LIST -> 1;
+            default -> -1;
+        };
+        if (size < 0 || pos + size > end) {
+            return -1;
+        }
+        switch (type) {
+            case TYPE_INT -> {
+                w.appendNumber(getI32(p, pos));
+                return pos + 4;
+            }
+            case TYPE_LONG -> {
+                w.appendNumber(getI64(p, pos));
+                return pos + 8;
+            }
+            case TYPE_FLOAT -> {
+                w.appendAscii(Float.toString(Float.intBitsToFloat(getI32(p, pos))));
+                return pos + 4;
+            }
+            case TYPE_STRING -> {
+                int len = getI32(p, pos);
+                pos += 4;
+                if (len < 0 || pos + len > end) {
+                    return -1;
+                }
+                w.appendBytes(p, pos, pos + len);
+                return pos + len;
+            }
+            case TYPE_LIST -> {
+                int count = p[pos++] & 0xff;
+                w.appendByte((byte) '[');
+                for (int i = 0; i < count; ++i) {
+                    if (i != 0) {
+                        w.appendByte((byte) ',');
+                    }
+                    if (depth == 0 && tagIdx >= 0 && i < tags.getFieldCount(tagIdx)) {
+                        w.appendAscii(tags.getFieldName(tagIdx, i));
+                        w.appendByte((byte) '=');
+                    }
+                    int valueStart = w.len;
+                    pos = formatValue(p, pos, end, tagIdx, depth + 1);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                    if (depth == 0) {
+                        addValueBounds(valueStart, w.len);
+                    }
+                }
+                w.appendByte((byte) ']');
+                return pos;
+            }
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    private void addValueBounds(int start, int end) {
+        if (numValues * 2 == valueBounds.length) {
+            valueBounds = Arrays.copyOf(valueBounds, valueBounds.length * 2);
+        }
+        valueBounds[numValues * 2] = start;
+        valueBounds[numValues * 2 + 1] = end;
+        ++numValues;
+    }
+
+    private static boolean readFully(InputStream is, byte[] b, int off, int len, boolean eofAllowed) throws IOException {
+        int pos = 0;
+        while (pos < len) {
+            int n = is.read(b, off + pos, len - pos);
+            if (n < 0) {
+                if (eofAllowed && pos == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    private static int getU16(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private static int getI32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static long getI64(byte[] b, int off) {
+        return (getI32(b, off) & 0xffff_ffffL) | ((long) getI32(b, off + 4) << 32);
+    }
+
+    // Structured event filter, e.g. "am_proc_start am_kill PID=1234".
+    // Tags (names or numbers) are ORed, "<field>=<value>" conditions are ANDed. Field names are
+    // matched ignoring case, spaces and underscores, e.g. "process_name" matches "Process Name".
+    static class Filter {
+        final String spec;
+        private final int[] tagNumbers; // sorted, empty means all tags
+        private final String[] fields;
+        private final byte[][] values;
+        // field index of each condition for each tag index, computed lazily, -2 means not computed
+        private final int[][] fieldIndexCache;
+        private final EventLogTags tags;
+
+        private Filter(String spec, int[] tagNumbers, String[] fields, byte[][] values, EventLogTags tags) {
+            this.spec = spec;
+            this.tagNumbers = tagNumbers;
+            this.fields = fields;
+            this.values = values;
+            this.tags = tags;
+            this.fieldIndexCache = new int[fields.length][];
+        }
+
+        // Returns null if the spec is empty. Unknown tag names are ignored.
+        static Filter parse(String spec, EventLogTags tags) {
+            var tagNumbers = new ArrayList<Integer>();
+            var fields = new ArrayList<String>();
+            var values = new ArrayList<byte[]>();
+            for (String token : spec.trim().split("\\s+")) {
+                if (token.isEmpty()) {
+                    continue;
+                }
+                int eq = token.indexOf('=');
+                if (eq > 0) {
+                    fields.add(normalizeFieldName(token.substring(0, eq)));
+                    values.add(token.substring(eq + 1).getBytes(UTF_8));
+                    continue;
+                }
+                int idx = tags.indexOfName(token);
+                if (idx >= 0) {
+                    tagNumbers.add(tags.getTag(idx));
+                } else {
+                    try {
+                        tagNumbers.add(Integer.parseInt(token));
+                    } catch (NumberFormatException e) {
+                        // unknown tag
+                    }
+                }
+            }
+            if (tagNumbers.isEmpty() && fields.isEmpty()) {
+                return null;
+            }
+            int[] tagArr = tagNumbers.stream().mapToInt(Integer::intValue).sorted().toArray();
+            return new Filter(spec, tagArr, fields.toArray(new String[0]), values.toArray(new byte[0][]), tags);
+        }
+
+        private static String normalizeFieldName(String s) {
+            return s.replace(" ", "").replace("_", "").toLowerCase(Locale.ROOT);
+        }
+
+        boolean acceptsTag(int tag) {
+            return tagNumbers.length == 0 || Arrays.binarySearch(tagNumbers, tag) >= 0;
+        }
+
+        boolean acceptsValues(int tagIdx, byte[] b, int[] bounds, int numValues) {
+            for (int i = 0; i < fields.length; ++i) {
+                if (tagIdx < 0) {
+                    return false;
+                }
+                int field = getFieldIndex(i, tagIdx);
+                if (field < 0 || field >= numValues) {
+                    return false;
+                }
+                byte[] v = values[i];
+                if (!Arrays.equals(b, bounds[field * 2], bounds[field * 2 + 1], v, 0, v.length)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int getFieldIndex(int condition, int tagIdx) {
+            int[] cache = fieldIndexCache[condition];
+            if (cache == null) {
+                cache = new int[tags.size()];
+                Arrays.fill(cache, -2);
+                fieldIndexCache[condition] = cache;
+            }
+            int res = cache[tagIdx];
+            if (res == -2) {
+                res = -1;
+                for (int f = 0, n = tags.getFieldCount(tagIdx); f < n; ++f) {
+                    if (normalizeFieldName(tags.getFieldName(tagIdx, f)).equals(fields[condition])) {
+                        res = f;
+                        break;
+                    }
+                }
+                cache[tagIdx] = res;
+            }
+            return res;
+        }
+    }
+}
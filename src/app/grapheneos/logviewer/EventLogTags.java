@@ -0,0 +1,258 @@
+package app.grapheneos.logviewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Dictionary of event log tags, see system/logging/logcat/event.logtags for the text format:
+//   <tag number> <tag name> [(<field name>|<data type>[|<data unit>]),...]
+// Tags are sorted by number, lookups are binary searches over a primitive array.
+//
+// Parsed dictionary is cached in a compact binary form, which is invalidated when the OS build
+// changes.
+class EventLogTags {
+    static final String SYSTEM_TAGS_FILE = "/system/etc/event-log-tags";
+    private static final String CACHE_FILE_NAME = "event-log-tags.bin";
+    private static final int CACHE_MAGIC = 0x454c5431; // "ELT1"
+
+    private final int[] tags;
+    private final String[] names;
+    private final byte[][] nameBytes;
+    // fields of tag i are in [fieldStart[i], fieldStart[i + 1])
+    private final int[] fieldStart;
+    private final String[] fieldNames;
+
+    private EventLogTags(int[] tags, String[] names, int[] fieldStart, String[] fieldNames) {
+        this.tags = tags;
+        this.names = names;
+        this.fieldStart = fieldStart;
+        this.fieldNames = fieldNames;
+        nameBytes = new byte[names.length][];
+        for (int i = 0; i < names.length; ++i) {
+            nameBytes[i] = names[i].getBytes(UTF_8);
+        }
+    }
+
+    int size() {
+        return tags.length;
+    }
+
+    // returns index of the tag, or -1 if it's unknown
+    int indexOf(int tag) {
+        int i = Arrays.binarySearch(tags, tag);
+        return i >= 0 ? i : -1;
+    }
+
+    // returns index of the tag, or -1 if it's unknown
+    int indexOfName(String name) {
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int getTag(int idx) {
+        return tags[idx];
+    }
+
+    String getName(int idx) {
+        return names[idx];
+    }
+
+    byte[] getNameBytes(int idx) {
+        return nameBytes[idx];
+    }
+
+    int getFieldCount(int idx) {
+        return fieldStart[idx + 1] - fieldStart[idx];
+    }
+
+    String getFieldName(int idx, int field) {
+        return fieldNames[fieldStart[idx] + field];
+    }
+
+    private static volatile EventLogTags systemTags;
+
+    // Returns the dictionary of system event log tags, or null if it's unavailable.
+    // Slow on the first call, don't call it on the main thread.
+    static EventLogTags getSystemTags(File cacheDir, String buildFingerprint) {
+        EventLogTags res = systemTags;
+        if (res != null) {
+            return res;
+        }
+        synchronized (EventLogTags.class) {
+            res = systemTags;
+            if (res == null) {
+                res = load(new File(SYSTEM_TAGS_FILE), new File(cacheDir, CACHE_FILE_NAME), buildFingerprint);
+                systemTags = res;
+            }
+        }
+        return res;
+    }
+
+    static EventLogTags load(File src, File cacheFile, String buildFingerprint) {
+        try (var s = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            EventLogTags res = readCache(s, buildFingerprint);
+            if (res != null) {
+                return res;
+            }
+        } catch (IOException e) {
+            // cache is absent or corrupt
+        }
+
+        EventLogTags res;
+        try (var r = new InputStreamReader(new FileInputStream(src), UTF_8)) {
+            res = parse(r);
+        } catch (IOException e) {
+            return null;
+        }
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        try (var s = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            res.writeCache(s, buildFingerprint);
+        } catch (IOException e) {
+            tmpFile.delete();
+            return res;
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            tmpFile.delete();
+        }
+        return res;
+    }
+
+    private static class Entry {
+        final int tag;
+        final String name;
+        final ArrayList<String> fields;
+
+        Entry(int tag, String name, ArrayList<String> fields) {
+            this.tag = tag;
+            this.name = name;
+            this.fields = fields;
+        }
+    }
+
+    static EventLogTags parse(Reader reader) throws IOException {
+        var entries = new ArrayList<Entry>();
+        var br = new BufferedReader(reader);
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            int nameStart = indexOfSpace(line, 0);
+            if (nameStart < 0) {
+                continue;
+            }
+            int tag;
+            try {
+                tag = Integer.parseInt(line.substring(0, nameStart));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            while (nameStart < line.length() && Character.isWhitespace(line.charAt(nameStart))) {
+                ++nameStart;
+            }
+            int nameEnd = indexOfSpace(line, nameStart);
+            if (nameEnd < 0) {
+                nameEnd = line.length();
+            }
+            var fields = new ArrayList<String>();
+            // (<name>|<type>[|<unit>])
+            int pos = nameEnd;
+            for (;;) {
+                int open = line.indexOf('(', pos);
+                if (open < 0) {
+                    break;
+                }
+                int close = line.indexOf(')', open);
+                if (close < 0) {
+                    break;
+                }
+                int sep = line.indexOf('|', open);
+                fields.add(line.substring(open + 1, sep > 0 && sep < close ? sep : close));
+                pos = close + 1;
+            }
+            entries.add(new Entry(tag, line.substring(nameStart, nameEnd), fields));
+        }
+
+        entries.sort((a, b) -> Integer.compare(a.tag, b.tag));
+        int n = entries.size();
+        int[] tags = new int[n];
+        String[] names = new String[n];
+        int[] fieldStart = new int[n + 1];
+        var fieldNames = new ArrayList<String>();
+        for (int i = 0; i < n; ++i) {
+            Entry e = entries.get(i);
+            tags[i] = e.tag;
+            names[i] = e.name;
+            fieldStart[i] = fieldNames.size();
+            fieldNames.addAll(e.fields);
+        }
+        fieldStart[n] = fieldNames.size();
+        return new EventLogTags(tags, names, fieldStart, fieldNames.toArray(new String[0]));
+    }
+
+    private static int indexOfSpace(String s, int from) {
+        for (int i = from; i < s.length(); ++i) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void writeCache(DataOutputStream s, String buildFingerprint) throws IOException {
+        s.writeInt(CACHE_MAGIC);
+        s.writeUTF(buildFingerprint);
+        int n = tags.length;
+        s.writeInt(n);
+        for (int i = 0; i < n; ++i) {
+            s.writeInt(tags[i]);
+            s.writeUTF(names[i]);
+            int numFields = getFieldCount(i);
+            s.writeShort(numFields);
+            for (int f = 0; f < numFields; ++f) {
+                s.writeUTF(getFieldName(i, f));
+            }
+        }
+    }
+
+    // returns null if the cache was created by a different OS build
+    static EventLogTags readCache(DataInputStream s, String buildFingerprint) throws IOException {
+        if (s.readInt() != CACHE_MAGIC || !buildFingerprint.equals(s.readUTF())) {
+            return null;
+        }
+        int n = s.readInt();
+        int[] tags = new int[n];
+        String[] names = new String[n];
+        int[] fieldStart = new int[n + 1];
+        var fieldNames = new ArrayList<String>(n * 2);
+        for (int i = 0; i < n; ++i) {
+            tags[i] = s.readInt();
+            names[i] = s.readUTF();
+            fieldStart[i] = fieldNames.size();
+            int numFields = s.readUnsignedShort();
+            for (int f = 0; f < numFields; ++f) {
+                fieldNames.add(s.readUTF());
+            }
+        }
+        fieldStart[n] = fieldNames.size();
+        return new EventLogTags(tags, names, fieldStart, fieldNames.toArray(new String[0]));
+    }
+}
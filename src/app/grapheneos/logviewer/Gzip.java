@@ -0,0 +1,27 @@
+package app.grapheneos.logviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class Gzip {
+
+    static byte[] compress(byte[] bytes) {
+        var bos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (var s = new GZIPOutputStream(bos)) {
+            s.write(bytes);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw IOException
+            throw new IllegalStateException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    static byte[] decompress(byte[] gzBytes) throws IOException {
+        try (var s = new GZIPInputStream(new ByteArrayInputStream(gzBytes))) {
+            return s.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.app.AlertDialog;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+// Shows log files that are opened or shared with the app, e.g. saved snapshots, .gz logs and
+// bugreports, see LogImporter.
+// Bugreport zips are indexed with BugreportIndex and only their logcat sections are parsed, other
+// sections, e.g. dumpsys, kernel log and tombstones, are opened separately from the Sections menu.
+public class ImportActivity extends BaseActivity {
+    private static final String TAG = ImportActivity.class.getSimpleName();
+
+    // key of bugreports map and index of BugreportIndex section, set by the Sections menu
+    private static final String EXTRA_BUGREPORT = "bugreport";
+    private static final String EXTRA_SECTION = "section";
+
+    // Indexes of imported bugreports, for opening their sections in new activities. Intents refer
+    // to them by random keys, to not expose paths of cache files. Indexes are kept alive by view
+    // models of activities that show them. Accessed only on the main thread.
+    private static final HashMap<String, WeakReference<Bugreport>> bugreports = new HashMap<>();
+
+    static class Bugreport {
+        final String key = UUID.randomUUID().toString();
+        final String name;
+        final BugreportIndex index;
+
+        Bugreport(String name, BugreportIndex index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    // Rows are shown at this interval while the file is being read, the same way as rows of an
+    // in-progress logcat capture
+    private static final long IMPORT_POLL_INTERVAL_MS = 250;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable importPoller = this::pollPendingImport;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if (viewModel == null) {
+            Utils.showToast(this, getText(R.string.toast_unable_to_open_file));
+            return;
+        }
+        PendingImport pending = viewModel.pendingImport;
+        if (pending != null) {
+            pending.activity = this;
+            pollPendingImport();
+        }
+    }
+
+    @Nullable
+    @Override
+    ViewModel createViewModel() {
+        String bugreportKey = getIntent().getStringExtra(EXTRA_BUGREPORT);
+        if (bugreportKey != null) {
+            return createSectionViewModel(bugreportKey, getIntent().getIntExtra(EXTRA_SECTION, -1));
+        }
+        Uri uri = getSourceUri(getIntent());
+        if (uri == null) {
+            return null;
+        }
+        String name = getDisplayName(uri);
+
+        LogStore store = createStore();
+        String header =
+            "type: import"
+            + "\nfile: " + name
+        ;
+        var vm = new ViewModel(null, name, header, store);
+        new PendingImport(uri, name, store).start(this, vm);
+        return vm;
+    }
+
+    @Nullable
+    private ViewModel createSectionViewModel(String bugreportKey, int sectionIdx) {
+        WeakReference<Bugreport> ref = bugreports.get(bugreportKey);
+        Bugreport bugreport = ref != null ? ref.get() : null;
+        if (bugreport == null || sectionIdx < 0 || sectionIdx >= bugreport.index.sections.size()) {
+            // index was deleted, e.g. after process death
+            return null;
+        }
+        BugreportIndex.Section section = bugreport.index.sections.get(sectionIdx);
+
+        LogStore store = createStore();
+        String header =
+            "type: import"
+            + "\nfile: " + bugreport.name
+            + "\nsection: " + section.title
+        ;
+        var vm = new ViewModel(null, section.title, header, store);
+        vm.bugreport = bugreport;
+        new PendingImport(bugreport, section, store).start(this, vm);
+        return vm;
+    }
+
+    private LogStore createStore() {
+        var store = new LogStore();
+        try {
+            store.enableSpilling(new File(getCacheDir(), "spill"),
+                    LogcatCapture.MAX_RESIDENT_BLOCKS, LogcatCapture.MAX_PAGED_IN_BLOCKS);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to enable spilling", e);
+        }
+        return store;
+    }
+
+    // Returns the file of a VIEW or SEND intent, null if it's missing or isn't allowed
+    @Nullable
+    private Uri getSourceUri(Intent i) {
+        Uri uri = Intent.ACTION_SEND.equals(i.getAction())
+                ? i.getParcelableExtra(Intent.EXTRA_STREAM, Uri.class)
+                : i.getData();
+        if (uri == null || !ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            // file URIs would allow the sender to read private files of this app
+            return null;
+        }
+        ProviderInfo provider = getPackageManager().resolveContentProvider(uri.getAuthority(), 0);
+        if (provider != null && getPackageName().equals(provider.packageName)) {
+            // same for blobs of BlobProvider
+            return null;
+        }
+        return uri;
+    }
+
+    private String getDisplayName(Uri uri) {
+        try (Cursor c = getContentResolver().query(uri, new String[] { OpenableColumns.DISPLAY_NAME },
+                null, null, null)) {
+            if (c != null && c.moveToFirst() && !c.isNull(0)) {
+                return c.getString(0);
+            }
+        } catch (RuntimeException e) {
+            Log.d(TAG, "", e);
+        }
+        String s = uri.getLastPathSegment();
+        return s != null ? s : uri.toString();
+    }
+
+    // Reads the file in background. Like LogcatActivity.PendingCapture, it survives activity
+    // recreation and can be cancelled with the back button.
+    static class PendingImport {
+        // either uri and name of an opened file, or a section of an already imported bugreport
+        @Nullable
+        private final Uri uri;
+        @Nullable
+        private final String name;
+        @Nullable
+        private final Bugreport bugreport;
+        @Nullable
+        private final BugreportIndex.Section section;
+        private final LogStore store;
+        private final LogImporter importer = new LogImporter();
+        // activity that shows the view model, accessed only on the main thread
+        @Nullable
+        private ImportActivity activity;
+
+        PendingImport(Uri uri, String name, LogStore store) {
+            this.uri = uri;
+            this.name = name;
+            this.bugreport = null;
+            this.section = null;
+            this.store = store;
+        }
+
+        PendingImport(Bugreport bugreport, BugreportIndex.Section section, LogStore store) {
+            this.uri = null;
+            this.name = null;
+            this.bugreport = bugreport;
+            this.section = section;
+            this.store = store;
+        }
+
+        void start(Context ctx, ViewModel vm) {
+            vm.pendingImport = this;
+            ContentResolver cr = ctx.getContentResolver();
+            File cacheDir = new File(ctx.getCacheDir(), "bugreports");
+            Executor mainExecutor = ctx.getMainExecutor();
+            TaskExecutors.IO.execute(() -> {
+                Exception error = null;
+                Bugreport indexed = null;
+                long start = Metrics.PARSE.begin();
+                long bytes = 0;
+                try {
+                    if (section != null) {
+                        bytes = readSection(bugreport.index, section);
+                    } else {
+                        try (InputStream is = cr.openInputStream(uri)) {
+                            if (is == null) {
+                                throw new IOException("unable to open " + uri);
+                            }
+                            var bis = new BufferedInputStream(is, 1 << 16);
+                            if (isZip(bis)) {
+                                var index = BugreportIndex.build(bis, cacheDir, importer::isCancelled);
+                                indexed = new Bugreport(name, index);
+                                bytes = readLogSections(index);
+                            } else {
+                                bytes = importer.read(bis, store);
+                            }
+                        }
+                    }
+                } catch (IOException|RuntimeException e) {
+                    Log.e(TAG, "", e);
+                    error = e;
+                } finally {
+                    Metrics.PARSE.end(start, bytes, store.size());
+                }
+                final Exception err = error;
+                final Bugreport br = indexed;
+                mainExecutor.execute(() -> onFinished(vm, br, err));
+            });
+        }
+
+        private static boolean isZip(InputStream is) throws IOException {
+            is.mark(2);
+            boolean res = is.read() == 'P' && is.read() == 'K';
+            is.reset();
+            return res;
+        }
+
+        private long readLogSections(BugreportIndex index) throws IOException {
+            long res = 0;
+            for (BugreportIndex.Section s : index.sections) {
+                if (s.kind == BugreportIndex.KIND_LOGCAT && !importer.isCancelled()) {
+                    res += readSection(index, s);
+                }
+            }
+            return res;
+        }
+
+        private long readSection(BugreportIndex index, BugreportIndex.Section s) throws IOException {
+            if (index.year != LogStore.UNKNOWN) {
+                importer.setYear(index.year);
+            }
+            try (InputStream is = index.openSection(s)) {
+                return importer.read(is, store);
+            }
+        }
+
+        private void onFinished(ViewModel vm, @Nullable Bugreport indexed, @Nullable Exception error) {
+            vm.pendingImport = null;
+            if (indexed != null) {
+                vm.bugreport = indexed;
+                bugreports.values().removeIf(r -> r.get() == null);
+                bugreports.put(indexed.key, new WeakReference<>(indexed));
+            }
+            if (error != null) {
+                vm.partialReason = "error";
+            } else if (importer.isCancelled()) {
+                vm.partialReason = "cancelled";
+            }
+            BaseActivity.onViewModelGrew(vm);
+            ImportActivity a = activity;
+            if (a != null && !a.isDestroyed()) {
+                a.onImportFinished(error);
+                a.invalidateOptionsMenu();
+            }
+        }
+    }
+
+    private void pollPendingImport() {
+        if (viewModel.pendingImport == null) {
+            return;
+        }
+        onBodyRowsAppended();
+        handler.postDelayed(importPoller, IMPORT_POLL_INTERVAL_MS);
+    }
+
+    private void onImportFinished(@Nullable Exception error) {
+        handler.removeCallbacks(importPoller);
+        // header contains the partial import marker
+        updateListItems();
+        if (error != null) {
+            ErrorDialog.show(this, getText(R.string.toast_unable_to_open_file), error);
+        }
+    }
+
+    private MenuItem miSections;
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        // not shown for sections, they are opened from the activity of the whole bugreport
+        Bugreport bugreport = viewModel.bugreport;
+        if (bugreport != null && viewModel.pendingImport == null
+                && getIntent().getStringExtra(EXTRA_BUGREPORT) == null) {
+            miSections = menu.add(R.string.bugreport_sections);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (super.onOptionsItemSelected(item)) {
+            return true;
+        }
+        if (item == miSections) {
+            Bugreport bugreport = viewModel.bugreport;
+            var sections = bugreport.index.sections;
+            String[] items = new String[sections.size()];
+            for (int i = 0; i < items.length; ++i) {
+                BugreportIndex.Section s = sections.get(i);
+                items[i] = s.title + " (" + Formatter.formatShortFileSize(this, s.length()) + ')';
+            }
+            var b = new AlertDialog.Builder(this);
+            b.setTitle(R.string.bugreport_sections);
+            b.setItems(items, (d, idx) -> {
+                var i = new Intent(this, ImportActivity.class);
+                i.putExtra(EXTRA_BUGREPORT, bugreport.key);
+                i.putExtra(EXTRA_SECTION, idx);
+                startActivity(i);
+            });
+            b.show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public void onBackPressed() {
+        PendingImport pending = viewModel != null ? viewModel.pendingImport : null;
+        if (pending != null) {
+            // keep the rows that were read so far
+            pending.importer.cancel();
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(importPoller);
+        PendingImport pending = viewModel != null ? viewModel.pendingImport : null;
+        if (pending != null && pending.activity == this) {
+            pending.activity = null;
+            if (isFinishing()) {
+                pending.importer.cancel();
+            }
+        }
+    }
+
+    @Override
+    float getInitialFontSizeSp() {
+        return 9f;
+    }
+
+    @Override
+    int getDisplayFlags() {
+        return LineChars.REPLACE_TABS;
+    }
+}
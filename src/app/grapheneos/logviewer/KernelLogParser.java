@@ -0,0 +1,170 @@
+package app.grapheneos.logviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Parses kernel log lines into a LogStore, in one streaming pass. Supported formats:
+//   <6>[  123.456789] message     (dmesg -r)
+//   [  123.456789] message        (dmesg)
+//   6,1234,123456789,-;message    (/dev/kmsg)
+//
+// Kernel timestamps are relative to boot. They are converted to epoch time by adding a single
+// offset, which is computed by the caller as (current epoch time - current time of the kernel log
+// clock), so that kernel and userspace records are merged correctly.
+//
+// Rows are formatted like rows of the logcat kernel buffer, with the facility name used as the
+// tag and the original timestamp kept in the message:
+//   1697712345.123     0     0     0 I kernel: [  123.456789] message
+class KernelLogParser {
+    // syslog facilities, see sys/syslog.h
+    private static final String[] FACILITY_NAMES = {
+        "kernel", "user", "mail", "daemon", "auth", "syslog", "lpr", "news",
+        "uucp", "cron", "authpriv", "ftp",
+    };
+
+    private final long epochOffsetMs;
+    private final byte[][] facilityTags = new byte[FACILITY_NAMES.length][];
+    private final LogStore.Record rec = new LogStore.Record();
+    private final RowWriter w = new RowWriter();
+
+    private byte minLevel = 2; // VERBOSE
+    private long minTime = LogStore.NO_TIME;
+    // whether continuation lines of the previous record should be skipped
+    private boolean skipping;
+
+    KernelLogParser(long epochOffsetMs) {
+        this.epochOffsetMs = epochOffsetMs;
+        for (int i = 0; i < FACILITY_NAMES.length; ++i) {
+            facilityTags[i] = FACILITY_NAMES[i].getBytes();
+        }
+        rec.time = LogStore.NO_TIME;
+        rec.buffer = (byte) LogStore.getBufferId("kernel");
+    }
+
+    // records with lower levels are skipped
+    void setMinLevel(byte level) {
+        minLevel = level;
+    }
+
+    // records that are older than time are skipped
+    void setMinTime(long time) {
+        minTime = time;
+    }
+
+    // returns the number of bytes that were read
+    long parse(InputStream is, LogStore store) throws IOException {
+        return LogParser.readLines(is, (b, start, end) -> parseLine(b, start, end, store));
+    }
+
+    void parseLine(byte[] b, int start, int end, LogStore store) {
+        LogStore.Record r = rec;
+        r.reset();
+        r.uid = 0;
+        r.pid = 0;
+        r.tid = 0;
+
+        int pos = start;
+        int pri = -1;
+        long tsUs = -1;
+        if (pos < end && b[pos] == '<') {
+            // <pri>
+            int close = LogText.indexOf(b, (byte) '>', pos + 1, end);
+            if (close > 0) {
+                pri = LogParser.parseInt(b, pos + 1, close);
+                pos = close + 1;
+            }
+        } else if (pos < end && LogParser.isDigit(b[pos])) {
+            // pri,seq,usec,flags[,...];message
+            int semicolon = LogText.indexOf(b, (byte) ';', pos, end);
+            if (semicolon > 0) {
+                int c1 = LogText.indexOf(b, (byte) ',', pos, semicolon);
+                int c2 = c1 < 0 ? -1 : LogText.indexOf(b, (byte) ',', c1 + 1, semicolon);
+                int c3 = c2 < 0 ? -1 : LogText.indexOf(b, (byte) ',', c2 + 1, semicolon);
+                if (c3 > 0) {
+                    pri = LogParser.parseInt(b, pos, c1);
+                    tsUs = parseLong(b, c2 + 1, c3);
+                    pos = semicolon + 1;
+                }
+            }
+        }
+
+        int msgStart = pos;
+        if (tsUs < 0 && pos < end && b[pos] == '[') {
+            // [sec.usec]
+            int close = LogText.indexOf(b, (byte) ']', pos + 1, end);
+            int dot = close < 0 ? -1 : LogText.indexOf(b, (byte) '.', pos + 1, close);
+            if (dot > 0) {
+                int secStart = LogParser.skipSpaces(b, pos + 1, dot);
+                long sec = parseLong(b, secStart, dot);
+                long usec = parseLong(b, dot + 1, close);
+                // fraction normally has 6 digits
+                for (int digits = close - dot - 1; digits < 6 && usec >= 0; ++digits) {
+                    usec *= 10;
+                }
+                if (sec >= 0 && usec >= 0) {
+                    tsUs = sec * 1_000_000 + usec;
+                    msgStart = LogParser.skipSpaces(b, close + 1, end);
+                }
+            }
+        }
+
+        if (tsUs < 0) {
+            // continuation line or unknown format, store it as plain text
+            if (!skipping) {
+                store.append(b, start, end, r);
+            }
+            return;
+        }
+
+        r.time = epochOffsetMs + tsUs / 1000;
+        r.level = pri >= 0 ? getLevel(pri & 7) : 4;
+        skipping = r.level < minLevel || r.time < minTime;
+        if (skipping) {
+            return;
+        }
+        int facility = pri >= 0 ? pri >> 3 : 0;
+        byte[] tag = facility < facilityTags.length ? facilityTags[facility] : facilityTags[0];
+
+        RowWriter w = this.w;
+        w.reset();
+        w.appendHeader(r);
+        int tagStart = w.len;
+        w.appendBytes(tag, 0, tag.length);
+        r.tag = store.tags.intern(w.buf, tagStart, w.len);
+        w.appendAscii(": [");
+        r.msgStart = w.len - 1;
+        w.appendPadded(tsUs / 1_000_000, 5);
+        w.appendByte((byte) '.');
+        w.appendZeroPadded(tsUs % 1_000_000, 6);
+        w.appendAscii("] ");
+        w.appendBytes(b, msgStart, end);
+        store.append(w.buf, 0, w.len, r);
+    }
+
+    // same mapping as the one that is used by logd for the kernel buffer
+    static byte getLevel(int syslogLevel) {
+        return switch (syslogLevel) {
+            case 0, 1, 2 -> 7; // EMERG, ALERT, CRIT -> FATAL
+            case 3 -> 6; // ERR
+            case 4 -> 5; // WARNING
+            case 5, 6 -> 4; // NOTICE, INFO
+            default -> 3; // DEBUG
+        };
+    }
+
+    // returns -1 if the range isn't a non-negative decimal number
+    private static long parseLong(byte[] b, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long v = 0;
+        for (int i = start; i < end; ++i) {
+            byte c = b[i];
+            if (!LogParser.isDigit(c)) {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+}
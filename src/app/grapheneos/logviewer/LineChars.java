@@ -0,0 +1,182 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+
+// Reusable char buffer with the display form of a single line, filled straight from the UTF-8
+// text of a LogStore row or from a String. Display transforms (tabs replaced with spaces, trimming)
+// are applied in the same pass, so binding a row doesn't create Strings: the buffer is passed to
+// TextView.setText(char[], int, int), which reuses its wrapper of the array.
+// Rows that are all ASCII, which is the common case for logcat, are widened byte by byte, other
+// rows go through a small UTF-8 decoder that writes into the same buffer.
+// Also a CharSequence view of the current line, valid until the next set() call.
+class LineChars implements CharSequence {
+    static final int REPLACE_TABS = 1;
+    // removes leading and trailing chars that are <= ' ', like String.trim()
+    static final int TRIM = 1 << 1;
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    char[] chars = new char[128];
+    int length;
+
+    void set(LogStore store, int row, int flags) {
+        set(store.textBlock(row), store.textOffset(row), store.textLength(row), flags);
+    }
+
+    // label is followed by a space, e.g. name of the uid of the row
+    void set(String label, LogStore store, int row, int flags) {
+        set(label, 0);
+        ensureCapacity(length + 1)[length++] = ' ';
+        append(store.textBlock(row), store.textOffset(row), store.textLength(row), flags);
+    }
+
+    void set(byte[] b, int off, int len, int flags) {
+        length = 0;
+        append(b, off, len, flags);
+    }
+
+    private void append(byte[] b, int off, int len, int flags) {
+        int start = off;
+        int end = off + len;
+        if ((flags & TRIM) != 0) {
+            // whitespace is ASCII, trim bounds are found before decoding
+            while (start < end && (b[start] & 0xff) <= ' ') {
+                ++start;
+            }
+            while (end > start && (b[end - 1] & 0xff) <= ' ') {
+                --end;
+            }
+        }
+        // a char per byte is enough for any UTF-8 input
+        int n = length;
+        char[] c = ensureCapacity(n + end - start);
+        boolean replaceTabs = (flags & REPLACE_TABS) != 0;
+        int i = start;
+        // ASCII fast path, it falls back to decoding at the first non-ASCII byte
+        for (; i < end; ++i) {
+            byte v = b[i];
+            if (v < 0) {
+                break;
+            }
+            c[n++] = replaceTabs && v == '\t' ? ' ' : (char) v;
+        }
+        if (i < end) {
+            n = decodeUtf8(b, i, end, c, n, replaceTabs);
+        }
+        length = n;
+    }
+
+    void set(String s, int flags) {
+        int start = 0;
+        int end = s.length();
+        if ((flags & TRIM) != 0) {
+            while (start < end && s.charAt(start) <= ' ') {
+                ++start;
+            }
+            while (end > start && s.charAt(end - 1) <= ' ') {
+                --end;
+            }
+        }
+        char[] c = ensureCapacity(end - start);
+        s.getChars(start, end, c, 0);
+        int n = end - start;
+        if ((flags & REPLACE_TABS) != 0) {
+            for (int i = 0; i < n; ++i) {
+                if (c[i] == '\t') {
+                    c[i] = ' ';
+                }
+            }
+        }
+        length = n;
+    }
+
+    private char[] ensureCapacity(int capacity) {
+        if (chars.length < capacity) {
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+        }
+        return chars;
+    }
+
+    // Malformed sequences are replaced with U+FFFD, a byte at a time. Returns the new length of c.
+    private static int decodeUtf8(byte[] b, int i, int end, char[] c, int n, boolean replaceTabs) {
+        while (i < end) {
+            int b0 = b[i] & 0xff;
+            if (b0 < 0x80) {
+                c[n++] = replaceTabs && b0 == '\t' ? ' ' : (char) b0;
+                ++i;
+                continue;
+            }
+            int cp;
+            int seqLen;
+            int min;
+            if (b0 >= 0xc2 && b0 <= 0xdf) {
+                cp = b0 & 0x1f;
+                seqLen = 2;
+                min = 0x80;
+            } else if (b0 >= 0xe0 && b0 <= 0xef) {
+                cp = b0 & 0x0f;
+                seqLen = 3;
+                min = 0x800;
+            } else if (b0 >= 0xf0 && b0 <= 0xf4) {
+                cp = b0 & 0x07;
+                seqLen = 4;
+                min = 0x10000;
+            } else {
+                c[n++] = REPLACEMENT;
+                ++i;
+                continue;
+            }
+            if (i + seqLen > end) {
+                c[n++] = REPLACEMENT;
+                ++i;
+                continue;
+            }
+            boolean valid = true;
+            for (int j = 1; j < seqLen; ++j) {
+                int v = b[i + j] & 0xff;
+                if ((v & 0xc0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                cp = (cp << 6) | (v & 0x3f);
+            }
+            if (!valid || cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff)) {
+                c[n++] = REPLACEMENT;
+                ++i;
+                continue;
+            }
+            if (cp >= 0x10000) {
+                // 4 bytes become 2 chars
+                c[n++] = Character.highSurrogate(cp);
+                c[n++] = Character.lowSurrogate(cp);
+            } else {
+                c[n++] = (char) cp;
+            }
+            i += seqLen;
+        }
+        return n;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,66 @@
+package app.grapheneos.logviewer;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Listener of LogStreamServer on an abstract local socket. Unlike loopback TCP ports, it doesn't
+// need the INTERNET permission, and adb reaches it with "adb forward tcp:<port> localabstract:<name>".
+class LocalStreamListener implements LogStreamServer.Listener {
+    static final String SOCKET_NAME = "app.grapheneos.logviewer.stream";
+
+    private final LocalServerSocket socket;
+    private volatile boolean closed;
+
+    LocalStreamListener() throws IOException {
+        // fails if the name is taken, e.g. by another app
+        socket = new LocalServerSocket(SOCKET_NAME);
+    }
+
+    @Override
+    public LogStreamServer.Client accept() throws IOException {
+        LocalSocket s = socket.accept();
+        if (closed) {
+            s.close();
+            throw new IOException("closed");
+        }
+        return new LogStreamServer.Client() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return s.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return s.getOutputStream();
+            }
+
+            @Override
+            public void setReadTimeout(int ms) throws IOException {
+                s.setSoTimeout(ms);
+            }
+
+            @Override
+            public void close() throws IOException {
+                s.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // closing the socket doesn't unblock a pending accept(), a connection does
+        try (var s = new LocalSocket()) {
+            s.connect(new LocalSocketAddress(SOCKET_NAME));
+        } catch (IOException ignored) {}
+        socket.close();
+    }
+}
@@ -0,0 +1,281 @@
+package app.grapheneos.logviewer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes rows of a LogStore in structured formats, with the parsed fields of each record:
+// - JSON Lines, one object per row:
+//   {"time":1697711696123,"uid":1000,"pid":123,"tid":124,"level":"I","buffer":"main","tag":"Tag","msg":"..."}
+// - CSV (RFC 4180) with a header row, text fields are always quoted
+// - JSON trace events (the Chrome trace format), which is loaded by the Perfetto UI. Records
+//   become instant events on their pid/tid tracks, rows that aren't records are skipped.
+// Fields that are unknown, e.g. uid of rows that weren't captured with the uid format, are null in
+// JSON and empty in CSV. Rows that aren't log records, e.g. text lines of imported files, are
+// exported with their whole text as the message.
+//
+// Rows are read straight from the columns and formatted into a reusable buffer, which is flushed
+// to the stream in large chunks. No objects are created per row.
+// Besides write(), exports can be produced incrementally with appendHeader(), appendRow() and
+// appendFooter(), e.g. by LogStreamServer, the caller takes output from buffer.
+class LogExporter {
+    static final int FORMAT_JSON_LINES = 0;
+    static final int FORMAT_CSV = 1;
+    static final int FORMAT_TRACE_EVENTS = 2;
+
+    // indexed by format
+    static final String[] FORMAT_NAMES = { "JSON Lines", "CSV", "Perfetto (JSON trace)" };
+    static final String[] FILE_EXTENSIONS = { ".jsonl", ".csv", ".json" };
+
+    private static final int FLUSH_THRESHOLD = 1 << 16;
+
+    private static final String CSV_HEADER = "time,uid,pid,tid,level,buffer,tag,message\r\n";
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final LogStore store;
+    private final int format;
+    // formatted output that wasn't taken by the caller yet
+    final RowWriter buffer = new RowWriter();
+    // whether a trace event was written, they are separated by commas
+    private boolean hasTraceEvents;
+
+    LogExporter(LogStore store, int format) {
+        if (format < 0 || format >= FILE_EXTENSIONS.length) {
+            throw new IllegalArgumentException("unknown format " + format);
+        }
+        this.store = store;
+        this.format = format;
+    }
+
+    // Writes the first count rows of rows, or the first count rows of the store if rows is null.
+    // Returns the number of bytes that were written.
+    static long write(LogStore store, RowList rows, int count, int format, OutputStream os) throws IOException {
+        var e = new LogExporter(store, format);
+        RowWriter w = e.buffer;
+        long written = 0;
+        e.appendHeader();
+        for (int i = 0; i < count; ++i) {
+            e.appendRow(rows != null ? rows.get(i) : i);
+            if (w.len >= FLUSH_THRESHOLD) {
+                os.write(w.buf, 0, w.len);
+                written += w.len;
+                w.reset();
+            }
+        }
+        e.appendFooter();
+        os.write(w.buf, 0, w.len);
+        written += w.len;
+        w.reset();
+        return written;
+    }
+
+    void appendHeader() {
+        switch (format) {
+            case FORMAT_CSV -> buffer.appendAscii(CSV_HEADER);
+            case FORMAT_TRACE_EVENTS -> buffer.appendAscii("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        }
+    }
+
+    void appendRow(int row) {
+        switch (format) {
+            case FORMAT_JSON_LINES -> appendJsonLine(row);
+            case FORMAT_CSV -> appendCsvRow(row);
+            case FORMAT_TRACE_EVENTS -> {
+                if (store.isRecord(row) && store.getTime(row) != LogStore.NO_TIME) {
+                    if (hasTraceEvents) {
+                        buffer.appendByte((byte) ',');
+                    }
+                    hasTraceEvents = true;
+                    appendTraceEvent(row);
+                }
+            }
+        }
+    }
+
+    void appendFooter() {
+        if (format == FORMAT_TRACE_EVENTS) {
+            buffer.appendAscii("]}\n");
+        }
+    }
+
+    private void appendJsonLine(int row) {
+        LogStore s = store;
+        RowWriter w = buffer;
+        boolean record = s.isRecord(row);
+        w.appendAscii("{\"time\":");
+        // rows that aren't records inherit time of the previous row
+        appendJsonTime(record ? s.getTime(row) : LogStore.NO_TIME);
+        w.appendAscii(",\"uid\":");
+        appendJsonNumber(s.getUid(row));
+        w.appendAscii(",\"pid\":");
+        appendJsonNumber(s.getPid(row));
+        w.appendAscii(",\"tid\":");
+        appendJsonNumber(s.getTid(row));
+        w.appendAscii(",\"level\":");
+        if (record) {
+            w.appendByte((byte) '"');
+            w.appendByte((byte) LogParser.levelChar(s.getLevel(row)));
+            w.appendByte((byte) '"');
+        } else {
+            w.appendAscii("null");
+        }
+        w.appendAscii(",\"buffer\":");
+        int bufferId = s.getBuffer(row);
+        if (record && bufferId >= 0 && bufferId < LogStore.BUFFER_NAMES.length) {
+            w.appendByte((byte) '"');
+            w.appendAscii(LogStore.BUFFER_NAMES[bufferId]);
+            w.appendByte((byte) '"');
+        } else {
+            w.appendAscii("null");
+        }
+        w.appendAscii(",\"tag\":");
+        int tag = s.getTag(row);
+        if (record && tag != LogStore.UNKNOWN) {
+            byte[] b = s.tags.getBytes(tag);
+            appendJsonString(b, 0, b.length);
+        } else {
+            w.appendAscii("null");
+        }
+        w.appendAscii(",\"msg\":");
+        appendJsonMessage(row);
+        w.appendAscii("}\n");
+    }
+
+    private void appendCsvRow(int row) {
+        LogStore s = store;
+        RowWriter w = buffer;
+        boolean record = s.isRecord(row);
+        long time = s.getTime(row);
+        if (record && time != LogStore.NO_TIME) {
+            w.appendNumber(time);
+        }
+        w.appendByte((byte) ',');
+        appendCsvNumber(s.getUid(row));
+        appendCsvNumber(s.getPid(row));
+        appendCsvNumber(s.getTid(row));
+        if (record) {
+            w.appendByte((byte) LogParser.levelChar(s.getLevel(row)));
+        }
+        w.appendByte((byte) ',');
+        int bufferId = s.getBuffer(row);
+        if (record && bufferId >= 0 && bufferId < LogStore.BUFFER_NAMES.length) {
+            w.appendAscii(LogStore.BUFFER_NAMES[bufferId]);
+        }
+        w.appendByte((byte) ',');
+        int tag = s.getTag(row);
+        if (record && tag != LogStore.UNKNOWN) {
+            byte[] b = s.tags.getBytes(tag);
+            appendCsvString(b, 0, b.length);
+        }
+        w.appendByte((byte) ',');
+        byte[] block = s.textBlock(row);
+        int off = s.textOffset(row);
+        appendCsvString(block, off + s.getMsgStart(row), off + s.textLength(row));
+        w.appendAscii("\r\n");
+    }
+
+    private void appendTraceEvent(int row) {
+        LogStore s = store;
+        RowWriter w = buffer;
+        w.appendAscii("{\"name\":");
+        int tag = s.getTag(row);
+        if (tag != LogStore.UNKNOWN) {
+            byte[] b = s.tags.getBytes(tag);
+            appendJsonString(b, 0, b.length);
+        } else {
+            w.appendAscii("\"\"");
+        }
+        int bufferId = s.getBuffer(row);
+        if (bufferId >= 0 && bufferId < LogStore.BUFFER_NAMES.length) {
+            w.appendAscii(",\"cat\":\"");
+            w.appendAscii(LogStore.BUFFER_NAMES[bufferId]);
+            w.appendByte((byte) '"');
+        }
+        // thread-scoped instant event, timestamps are in microseconds
+        w.appendAscii(",\"ph\":\"i\",\"s\":\"t\",\"ts\":");
+        w.appendNumber(s.getTime(row) * 1000);
+        w.appendAscii(",\"pid\":");
+        w.appendNumber(Math.max(0, s.getPid(row)));
+        w.appendAscii(",\"tid\":");
+        w.appendNumber(Math.max(0, s.getTid(row)));
+        w.appendAscii(",\"args\":{\"level\":\"");
+        w.appendByte((byte) LogParser.levelChar(s.getLevel(row)));
+        w.appendAscii("\",\"uid\":");
+        appendJsonNumber(s.getUid(row));
+        w.appendAscii(",\"msg\":");
+        appendJsonMessage(row);
+        w.appendAscii("}}\n");
+    }
+
+    private void appendJsonTime(long time) {
+        if (time == LogStore.NO_TIME) {
+            buffer.appendAscii("null");
+        } else {
+            buffer.appendNumber(time);
+        }
+    }
+
+    private void appendJsonNumber(int v) {
+        if (v == LogStore.UNKNOWN) {
+            buffer.appendAscii("null");
+        } else {
+            buffer.appendNumber(v);
+        }
+    }
+
+    private void appendCsvNumber(int v) {
+        if (v != LogStore.UNKNOWN) {
+            buffer.appendNumber(v);
+        }
+        buffer.appendByte((byte) ',');
+    }
+
+    private void appendJsonMessage(int row) {
+        LogStore s = store;
+        byte[] block = s.textBlock(row);
+        int off = s.textOffset(row);
+        appendJsonString(block, off + s.getMsgStart(row), off + s.textLength(row));
+    }
+
+    // text is UTF-8, only the characters that JSON requires to be escaped are escaped
+    private void appendJsonString(byte[] b, int start, int end) {
+        RowWriter w = buffer;
+        // most bytes are copied as is
+        w.ensureCapacity(end - start + 2);
+        w.appendByte((byte) '"');
+        for (int i = start; i < end; ++i) {
+            byte c = b[i];
+            if (c == '"' || c == '\\') {
+                w.appendByte((byte) '\\');
+                w.appendByte(c);
+            } else if (c >= 0 && c < 0x20) {
+                switch (c) {
+                    case '\n' -> w.appendAscii("\\n");
+                    case '\r' -> w.appendAscii("\\r");
+                    case '\t' -> w.appendAscii("\\t");
+                    default -> {
+                        w.appendAscii("\\u00");
+                        w.appendByte(HEX[c >> 4]);
+                        w.appendByte(HEX[c & 0xf]);
+                    }
+                }
+            } else {
+                w.appendByte(c);
+            }
+        }
+        w.appendByte((byte) '"');
+    }
+
+    private void appendCsvString(byte[] b, int start, int end) {
+        RowWriter w = buffer;
+        w.ensureCapacity(end - start + 2);
+        w.appendByte((byte) '"');
+        for (int i = start; i < end; ++i) {
+            byte c = b[i];
+            if (c == '"') {
+                w.appendByte(c);
+            }
+            w.appendByte(c);
+        }
+        w.appendByte((byte) '"');
+    }
+}
@@ -0,0 +1,90 @@
+package app.grapheneos.logviewer;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Imports log files into a LogStore: logcat output in the format that is used by this app or in
+// the threadtime format, saved snapshots and bugreports. gzip files and bugreport zips are detected
+// by their magic bytes, the main text entry of a bugreport zip is read.
+// Files are read in chunks and parsed straight into the store. When spilling of the store is
+// enabled, old text blocks are moved to disk, which allows importing files that are much larger
+// than the heap, e.g. 200 MB bugreports.
+// Lines that aren't log records, e.g. snapshot headers and dumpsys sections of bugreports, are
+// kept as LEVEL_NONE rows.
+// Import can be cancelled from another thread, rows that were read up to that point are kept.
+class LogImporter {
+    // header line of bugreports, e.g. "== dumpstate: 2023-10-19 12:34:56"
+    private static final byte[] DUMPSTATE_PREFIX = "== dumpstate: ".getBytes();
+
+    private final LogParser parser = new LogParser();
+    private volatile boolean cancelled;
+
+    // returns the number of bytes that were read after decompression
+    long read(InputStream is, LogStore store) throws IOException {
+        InputStream in = decompress(new BufferedInputStream(is, 1 << 16));
+        var src = new FilterInputStream(in) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return cancelled ? -1 : super.read(b, off, len);
+            }
+        };
+        return LogParser.readLines(src, (b, start, end) -> parseLine(b, start, end, store));
+    }
+
+    // for files that don't contain the bugreport header, e.g. sections of BugreportIndex
+    void setYear(int year) {
+        parser.setYear(year);
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void parseLine(byte[] b, int start, int end, LogStore store) {
+        if (LogParser.startsWith(b, start, end, DUMPSTATE_PREFIX)) {
+            // threadtime timestamps of bugreport logs don't include the year
+            int pos = start + DUMPSTATE_PREFIX.length;
+            int year = LogParser.parseInt(b, pos, Math.min(end, pos + 4));
+            if (year != LogStore.UNKNOWN) {
+                parser.setYear(year);
+            }
+        }
+        parser.parseLine(b, start, end, store);
+    }
+
+    // is must support mark()
+    private static InputStream decompress(InputStream is) throws IOException {
+        is.mark(4);
+        int b0 = is.read();
+        int b1 = is.read();
+        is.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(is, 1 << 16), 1 << 16);
+        }
+        if (b0 == 'P' && b1 == 'K') {
+            var zis = new ZipInputStream(is);
+            ZipEntry e;
+            while ((e = zis.getNextEntry()) != null) {
+                if (isBugreportMainEntry(e.getName())) {
+                    return zis;
+                }
+            }
+            throw new IOException("zip file doesn't contain a bugreport");
+        }
+        return is;
+    }
+
+    // e.g. "bugreport-oriole-UQ1A.240105.004-2024-01-20-12-34-56.txt"
+    static boolean isBugreportMainEntry(String name) {
+        return name.startsWith("bugreport-") && name.endsWith(".txt") && name.indexOf('/') < 0;
+    }
+}
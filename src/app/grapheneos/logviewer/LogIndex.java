@@ -0,0 +1,321 @@
+package app.grapheneos.logviewer;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+// Inverted index of uid and pid columns of a LogStore: maps each value to the list of rows that
+// contain it. The index is updated incrementally after rows are appended to the store, and row
+// lists that were returned earlier are updated in place.
+// Process lifecycle events are tracked by the ProcessIndex at the same time.
+// Filtered row lists, e.g. of regex and query filters, are maintained the same way.
+// Level, tag, uid and pid columns are also indexed with compressed bitmaps, which are used for
+// evaluating filters with bitmap operations instead of row scans, see LogQuery.getCandidateRows()
+class LogIndex {
+    private static final int EVENTS_BUFFER = LogStore.getBufferId("events");
+
+    final LogStore store;
+    final ProcessIndex processes;
+    private final PostingMap<RowList> uidRows = new PostingMap<>(RowList::new, RowList::estimateMemoryUsage);
+    private final PostingMap<RowList> pidRows = new PostingMap<>(RowList::new, RowList::estimateMemoryUsage);
+    // levels are from LEVEL_NONE (0) to ASSERT (7)
+    private final RowBitmap[] levelBitmaps = new RowBitmap[8];
+    private RowBitmap[] tagBitmaps = new RowBitmap[64];
+    private final PostingMap<RowBitmap> uidBitmaps = new PostingMap<>(RowBitmap::new, RowBitmap::estimateMemoryUsage);
+    private final PostingMap<RowBitmap> pidBitmaps = new PostingMap<>(RowBitmap::new, RowBitmap::estimateMemoryUsage);
+    // lists are dropped once they are no longer referenced, e.g. after a filter was changed
+    private final ArrayList<WeakReference<FilteredRows>> filteredRows = new ArrayList<>();
+    private int indexedSize;
+
+    LogIndex(LogStore store) {
+        this.store = store;
+        this.processes = new ProcessIndex(store);
+        update();
+    }
+
+    // indexes rows that were appended to the store since the previous call
+    void update() {
+        LogStore s = store;
+        int size = s.size();
+        for (int row = indexedSize; row < size; ++row) {
+            if (!s.isRecord(row)) {
+                continue;
+            }
+            int uid = s.getUid(row);
+            if (uid != LogStore.UNKNOWN) {
+                uidRows.getOrCreate(uid).add(row);
+                uidBitmaps.getOrCreate(uid).add(row);
+            }
+            int pid = s.getPid(row);
+            if (pid != LogStore.UNKNOWN) {
+                pidRows.getOrCreate(pid).add(row);
+                pidBitmaps.getOrCreate(pid).add(row);
+            }
+            getOrCreateLevelBitmap(s.getLevel(row)).add(row);
+            int tag = s.getTag(row);
+            if (tag != LogStore.UNKNOWN) {
+                getOrCreateTagBitmap(tag).add(row);
+            }
+            if (s.getBuffer(row) == EVENTS_BUFFER) {
+                processes.onEventRow(row);
+            }
+            if (pid != LogStore.UNKNOWN) {
+                processes.onRecordRow(row, pid);
+            }
+        }
+        indexedSize = size;
+        // source lists have been updated above, sources of filtered lists precede them
+        for (Iterator<WeakReference<FilteredRows>> it = filteredRows.iterator(); it.hasNext();) {
+            FilteredRows f = it.next().get();
+            if (f == null) {
+                it.remove();
+            } else {
+                f.update();
+            }
+        }
+    }
+
+    private RowBitmap getOrCreateLevelBitmap(int level) {
+        RowBitmap b = levelBitmaps[level];
+        if (b == null) {
+            b = new RowBitmap();
+            levelBitmaps[level] = b;
+        }
+        return b;
+    }
+
+    private RowBitmap getOrCreateTagBitmap(int tag) {
+        if (tag >= tagBitmaps.length) {
+            tagBitmaps = Arrays.copyOf(tagBitmaps, Math.max(tag + 1, tagBitmaps.length * 2));
+        }
+        RowBitmap b = tagBitmaps[tag];
+        if (b == null) {
+            b = new RowBitmap();
+            tagBitmaps[tag] = b;
+        }
+        return b;
+    }
+
+    // Bitmap getters return indexed records with the given column value. Returned bitmaps must
+    // not be modified, they are updated by update().
+
+    RowBitmap getLevelBitmap(int level) {
+        return getOrCreateLevelBitmap(level);
+    }
+
+    // all indexed records
+    RowBitmap getRecordBitmap() {
+        RowBitmap res = new RowBitmap();
+        for (int l = LogStore.LEVEL_DIVIDER + 1; l < levelBitmaps.length; ++l) {
+            RowBitmap b = levelBitmaps[l];
+            if (b != null) {
+                res = RowBitmap.or(res, b);
+            }
+        }
+        return res;
+    }
+
+    RowBitmap getTagBitmap(int tag) {
+        return getOrCreateTagBitmap(tag);
+    }
+
+    RowBitmap getUidBitmap(int uid) {
+        return uidBitmaps.getOrCreate(uid);
+    }
+
+    RowBitmap getPidBitmap(int pid) {
+        return pidBitmaps.getOrCreate(pid);
+    }
+
+    RowList getUidRows(int uid) {
+        return uidRows.getOrCreate(uid);
+    }
+
+    RowList getPidRows(int pid) {
+        return pidRows.getOrCreate(pid);
+    }
+
+    // Returns records of the source list, or of the whole store if it's null, that match the
+    // filter. Lists are cached by source list and filter spec while they are referenced.
+    // Only candidate rows of LogQuery filters are checked when the list is created, they are
+    // computed with bitmap operations.
+    RowList getFilteredRows(RowList source, RowFilter filter) {
+        for (WeakReference<FilteredRows> ref : filteredRows) {
+            FilteredRows f = ref.get();
+            if (f != null && f.source == source && f.filter.getClass() == filter.getClass()
+                    && f.filter.getSpec().equals(filter.getSpec())) {
+                return f;
+            }
+        }
+        var f = new FilteredRows(source, filter);
+        RowBitmap candidates = filter instanceof LogQuery q ? q.getCandidateRows(this) : null;
+        if (candidates != null) {
+            f.init(candidates);
+        } else {
+            f.update();
+        }
+        filteredRows.add(new WeakReference<>(f));
+        return f;
+    }
+
+    private class FilteredRows extends RowList {
+        final RowList source;
+        final RowFilter filter;
+        // number of source elements (or store rows) that were checked
+        int checked;
+
+        FilteredRows(RowList source, RowFilter filter) {
+            this.source = source;
+            this.filter = filter;
+        }
+
+        // checks only the candidate rows of indexed rows
+        void init(RowBitmap candidates) {
+            LogStore s = store;
+            RowFilter f = filter;
+            RowList src = source;
+            if (src == null) {
+                candidates.forEach(row -> {
+                    if (f.matches(s, row)) {
+                        add(row);
+                    }
+                });
+                checked = indexedSize;
+                return;
+            }
+            // source lists contain only indexed rows
+            int end = src.size();
+            for (int i = 0; i < end; ++i) {
+                int row = src.get(i);
+                if (candidates.contains(row) && f.matches(s, row)) {
+                    add(row);
+                }
+            }
+            checked = end;
+        }
+
+        void update() {
+            LogStore s = store;
+            RowList src = source;
+            int end = src != null ? src.size() : indexedSize;
+            for (int i = checked; i < end; ++i) {
+                int row = src != null ? src.get(i) : i;
+                if (s.isRecord(row) && filter.matches(s, row)) {
+                    add(row);
+                }
+            }
+            checked = end;
+        }
+    }
+
+    int[] getUids() {
+        return uidRows.keys();
+    }
+
+    long estimateMemoryUsage() {
+        long res = uidRows.estimateMemoryUsage() + pidRows.estimateMemoryUsage()
+                + uidBitmaps.estimateMemoryUsage() + pidBitmaps.estimateMemoryUsage();
+        for (RowBitmap b : levelBitmaps) {
+            if (b != null) {
+                res += b.estimateMemoryUsage();
+            }
+        }
+        for (RowBitmap b : tagBitmaps) {
+            if (b != null) {
+                res += b.estimateMemoryUsage();
+            }
+        }
+        for (WeakReference<FilteredRows> ref : filteredRows) {
+            FilteredRows f = ref.get();
+            if (f != null) {
+                res += f.estimateMemoryUsage();
+            }
+        }
+        return res;
+    }
+
+    // open addressing map of int keys to row lists or bitmaps
+    private static class PostingMap<V> {
+        private final Supplier<V> factory;
+        private final ToLongFunction<V> memoryUsage;
+        private int[] keys = new int[64];
+        private Object[] values = new Object[64];
+        private int size;
+
+        PostingMap(Supplier<V> factory, ToLongFunction<V> memoryUsage) {
+            this.factory = factory;
+            this.memoryUsage = memoryUsage;
+        }
+
+        @SuppressWarnings("unchecked")
+        V getOrCreate(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+                V v = (V) values[i];
+                if (v == null) {
+                    v = factory.get();
+                    keys[i] = key;
+                    values[i] = v;
+                    if (++size * 2 > keys.length) {
+                        rehash();
+                    }
+                    return v;
+                }
+                if (keys[i] == key) {
+                    return v;
+                }
+            }
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            int cap = oldKeys.length * 2;
+            keys = new int[cap];
+            values = new Object[cap];
+            int mask = cap - 1;
+            for (int j = 0; j < oldKeys.length; ++j) {
+                if (oldValues[j] == null) {
+                    continue;
+                }
+                int i = mix(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        // keys of non-empty row lists
+        int[] keys() {
+            int[] res = new int[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (values[i] instanceof RowList l && l.size() != 0) {
+                    res[n++] = keys[i];
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+        @SuppressWarnings("unchecked")
+        long estimateMemoryUsage() {
+            long res = keys.length * 8L;
+            for (Object v : values) {
+                if (v != null) {
+                    res += memoryUsage.applyAsLong((V) v);
+                }
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// K-way merge of time-ordered stores, e.g. of per-buffer logcat outputs. Dividers of the source
+// stores are replaced by dividers that reflect buffer switches in the merged output.
+// Sources can still be appended to while they are merged, see advance(): rows are merged as soon
+// as no source can append an older row, which makes rows of parallel captures visible while they
+// are read.
+class LogMerger {
+    private final LogStore[] stores;
+    private final LogStore dst;
+    // next row of each source
+    private final int[] positions;
+    private final int[] sizes;
+    private final boolean[] seenBuffers = new boolean[LogStore.BUFFER_NAMES.length];
+    private int curBuffer = LogStore.UNKNOWN;
+    private final LogStore.Record rec = new LogStore.Record();
+
+    LogMerger(List<LogStore> sources, LogStore dst) {
+        this.stores = sources.toArray(new LogStore[0]);
+        this.dst = dst;
+        positions = new int[stores.length];
+        sizes = new int[stores.length];
+    }
+
+    static void merge(List<LogStore> sources, LogStore dst) {
+        var m = new LogMerger(sources, dst);
+        var finished = new boolean[sources.size()];
+        Arrays.fill(finished, true);
+        m.advance(finished);
+    }
+
+    // Appends rows that can't be preceded by rows that are appended to the sources later: a source
+    // that is still open can only append rows that are at least as new as its last row.
+    // finished[i] is set when source i won't get more rows, it must be sampled before the call.
+    // Returns the number of appended rows.
+    int advance(boolean[] finished) {
+        int n = stores.length;
+        for (int i = 0; i < n; ++i) {
+            sizes[i] = stores[i].size();
+        }
+        int appended = 0;
+        for (;;) {
+            int next = -1;
+            long nextTime = 0;
+            // rows that are newer than this might still be preceded by rows of open sources
+            long bound = Long.MAX_VALUE;
+            for (int i = 0; i < n; ++i) {
+                LogStore s = stores[i];
+                int pos = skipDividers(s, positions[i], sizes[i]);
+                positions[i] = pos;
+                if (pos < sizes[i]) {
+                    long t = s.getTime(pos);
+                    // ties go to the source with the lower index
+                    if (next < 0 || t < nextTime) {
+                        next = i;
+                        nextTime = t;
+                    }
+                } else if (!finished[i]) {
+                    bound = Math.min(bound, sizes[i] > 0 ? s.getTime(sizes[i] - 1) : LogStore.NO_TIME);
+                }
+            }
+            if (next < 0 || nextTime > bound) {
+                return appended;
+            }
+            LogStore s = stores[next];
+            int row = positions[next];
+            int buffer = s.getBuffer(row);
+            if (buffer != curBuffer && buffer >= 0) {
+                appendDivider(dst, buffer, s.getTime(row), seenBuffers[buffer], rec);
+                seenBuffers[buffer] = true;
+                curBuffer = buffer;
+            }
+            dst.append(s, row, rec);
+            positions[next] = row + 1;
+            ++appended;
+        }
+    }
+
+    private static int skipDividers(LogStore s, int row, int size) {
+        while (row < size && s.getLevel(row) == LogStore.LEVEL_DIVIDER) {
+            ++row;
+        }
+        return row;
+    }
+
+    private static void appendDivider(LogStore dst, int buffer, long time, boolean switched, LogStore.Record rec) {
+        rec.reset();
+        rec.time = time;
+        rec.buffer = (byte) buffer;
+        rec.level = LogStore.LEVEL_DIVIDER;
+        byte[] text = ((switched ? "--------- switch to " : "--------- beginning of ")
+                + LogStore.BUFFER_NAMES[buffer]).getBytes(UTF_8);
+        dst.append(text, 0, text.length, rec);
+    }
+}
@@ -0,0 +1,413 @@
+package app.grapheneos.logviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+// Parses logcat output in the "epoch,printable[,uid],descriptive" format into a LogStore, e.g.
+//   1697712345.123  1000  1234  1250 I ActivityManager: message
+//   1697712345.123  1234  1250 I ActivityManager: message (without uid)
+//   --------- beginning of main
+// Output in the "threadtime" format, which is used by bugreports and by most saved logs, is
+// parsed too, e.g.
+//   10-19 12:34:56.789  1000  1234  1250 I ActivityManager: message
+//   2023-10-19 12:34:56.789  1234  1250 I ActivityManager: message ("year" format modifier)
+// Its local times are converted with the default time zone and the year set by setYear().
+// Lines that don't match the format are stored as LEVEL_NONE rows.
+class LogParser {
+    private final LogStore.Record rec = new LogStore.Record();
+    // start and end offsets of [uid] pid tid
+    private final int[] tokens = new int[6];
+    // end of the timestamp that was parsed by parseTime()
+    private int timeEnd;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private int year = Year.now(zone).getValue();
+    // local hour of the previous threadtime timestamp and its epoch millis, lines are mostly in
+    // order, so zone rules are rarely consulted
+    private long cachedHour = -1;
+    private long cachedHourStart;
+
+    LogParser() {
+        rec.time = 0L;
+        rec.buffer = LogStore.UNKNOWN;
+    }
+
+    // buffer of rows when dividers are absent, e.g. in output of single-buffer logcat
+    void setBuffer(int bufferId) {
+        rec.buffer = (byte) bufferId;
+    }
+
+    // year of threadtime timestamps without a year, the current year by default
+    void setYear(int year) {
+        this.year = year;
+        cachedHour = -1;
+    }
+
+    // returns the number of bytes that were read
+    long parse(InputStream is, LogStore store) throws IOException {
+        return readLines(is, (b, start, end) -> parseLine(b, start, end, store));
+    }
+
+    interface LineConsumer {
+        // line doesn't include the '\n' terminator
+        void accept(byte[] b, int start, int end);
+    }
+
+    // Reads lines in chunks, without creating objects for each line. Returns the number of bytes
+    // that were read.
+    static long readLines(InputStream is, LineConsumer consumer) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        int len = 0;
+        long total = 0;
+        for (;;) {
+            if (len == buf.length) {
+                // line is longer than the buffer
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            int n = is.read(buf, len, buf.length - len);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+            int end = len + n;
+            int lineStart = 0;
+            // leftover from the previous read doesn't contain '\n'
+            int searchFrom = len;
+            int nl;
+            while ((nl = LogText.indexOf(buf, (byte) '\n', searchFrom, end)) >= 0) {
+                consumer.accept(buf, lineStart, nl);
+                lineStart = searchFrom = nl + 1;
+            }
+            len = end - lineStart;
+            System.arraycopy(buf, lineStart, buf, 0, len);
+        }
+        if (len > 0) {
+            consumer.accept(buf, 0, len);
+        }
+        return total;
+    }
+
+    void parseLine(byte[] b, int start, int end, LogStore store) {
+        LogStore.Record r = rec;
+        r.reset();
+        parseFields(b, start, end, r, store.tags);
+        store.append(b, start, end, r);
+    }
+
+    private static final byte[] DIVIDER_PREFIX = "--------- ".getBytes();
+
+    private void parseFields(byte[] b, int start, int end, LogStore.Record r, LogStore.TagTable tags) {
+        if (startsWith(b, start, end, DIVIDER_PREFIX)) {
+            r.level = LogStore.LEVEL_DIVIDER;
+            // "beginning of <buffer>" or "switch to <buffer>"
+            int nameStart = lastIndexOf(b, (byte) ' ', start, end) + 1;
+            int bufferId = LogStore.getBufferId(new String(b, nameStart, end - nameStart));
+            if (bufferId != LogStore.UNKNOWN) {
+                r.buffer = (byte) bufferId;
+            }
+            return;
+        }
+
+        long time = parseTime(b, skipSpaces(b, start, end), end);
+        if (time == LogStore.NO_TIME) {
+            return;
+        }
+        int pos = timeEnd;
+
+        // [uid] pid tid level
+        int[] tokens = this.tokens;
+        int numTokens = 0;
+        int levelPos = -1;
+        for (;;) {
+            pos = skipSpaces(b, pos, end);
+            if (pos == end) {
+                return;
+            }
+            int tokenStart = pos;
+            while (pos < end && b[pos] != ' ') {
+                ++pos;
+            }
+            if (pos - tokenStart == 1 && numTokens >= 2) {
+                byte level = parseLevel(b[tokenStart]);
+                if (level != LogStore.LEVEL_NONE) {
+                    r.level = level;
+                    levelPos = tokenStart;
+                    break;
+                }
+            }
+            if (numTokens == 3) {
+                return;
+            }
+            tokens[numTokens * 2] = tokenStart;
+            tokens[numTokens * 2 + 1] = pos;
+            ++numTokens;
+        }
+
+        int t = 0;
+        if (numTokens == 3) {
+            r.uid = parseUid(b, tokens[0], tokens[1]);
+            t = 2;
+        }
+        r.pid = parseInt(b, tokens[t], tokens[t + 1]);
+        r.tid = parseInt(b, tokens[t + 2], tokens[t + 3]);
+        r.time = time;
+
+        // tag is followed by ": ", it's padded with spaces to 8 chars
+        int tagStart = levelPos + 2;
+        int sep = indexOf(b, COLON_SPACE, tagStart, end);
+        int tagEnd;
+        if (sep < 0) {
+            // empty message
+            tagEnd = end;
+            while (tagEnd > tagStart && b[tagEnd - 1] == ':') {
+                --tagEnd;
+            }
+            r.msgStart = end - start;
+        } else {
+            tagEnd = sep;
+            r.msgStart = sep + 2 - start;
+        }
+        while (tagEnd > tagStart && b[tagEnd - 1] == ' ') {
+            --tagEnd;
+        }
+        if (tagStart <= tagEnd) {
+            r.tag = tags.intern(b, tagStart, tagEnd);
+        }
+    }
+
+    // Parses "seconds.millis" or "[year-]month-day hour:minute:second.millis" at pos, returns
+    // NO_TIME if neither is there. Sets timeEnd.
+    private long parseTime(byte[] b, int pos, int end) {
+        long first = 0;
+        int firstStart = pos;
+        while (pos < end && isDigit(b[pos]) && pos - firstStart < 12) {
+            first = first * 10 + (b[pos++] - '0');
+        }
+        if (pos == firstStart || pos == end) {
+            return LogStore.NO_TIME;
+        }
+        if (b[pos] == '.') {
+            int msStart = pos + 1;
+            long ms = parseMillis(b, msStart, end);
+            return ms < 0 ? LogStore.NO_TIME : first * 1000 + ms;
+        }
+        if (b[pos] != '-') {
+            return LogStore.NO_TIME;
+        }
+        int y = year;
+        int month;
+        if (pos - firstStart == 4) {
+            y = (int) first;
+            int monthStart = pos + 1;
+            month = parseInt(b, monthStart, Math.min(end, monthStart + 2));
+            pos = monthStart + 2;
+            if (pos >= end || b[pos] != '-') {
+                return LogStore.NO_TIME;
+            }
+        } else {
+            month = (int) first;
+        }
+        // "-dd hh:mm:ss."
+        int p = pos + 1;
+        if (end - p < 12 || b[p + 2] != ' ' || b[p + 5] != ':' || b[p + 8] != ':' || b[p + 11] != '.') {
+            return LogStore.NO_TIME;
+        }
+        int day = parseInt(b, p, p + 2);
+        int hour = parseInt(b, p + 3, p + 5);
+        int minute = parseInt(b, p + 6, p + 8);
+        int second = parseInt(b, p + 9, p + 11);
+        long ms = parseMillis(b, p + 12, end);
+        if (month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0 || ms < 0) {
+            return LogStore.NO_TIME;
+        }
+        long hourStart = getHourStart(y, month, day, hour);
+        if (hourStart == LogStore.NO_TIME) {
+            return LogStore.NO_TIME;
+        }
+        return hourStart + minute * 60_000L + second * 1000L + ms;
+    }
+
+    // parses fractional seconds at pos as millis, sets timeEnd
+    private long parseMillis(byte[] b, int pos, int end) {
+        long ms = 0;
+        int digits = 0;
+        while (pos < end && isDigit(b[pos])) {
+            if (digits < 3) {
+                ms = ms * 10 + (b[pos] - '0');
+            }
+            ++digits;
+            ++pos;
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        for (int i = digits; i < 3; ++i) {
+            ms *= 10;
+        }
+        timeEnd = pos;
+        return ms;
+    }
+
+    private long getHourStart(int y, int month, int day, int hour) {
+        long key = ((y * 13L + month) * 32 + day) * 24 + hour;
+        if (key != cachedHour) {
+            try {
+                cachedHourStart = LocalDateTime.of(y, month, day, hour, 0).atZone(zone).toInstant().toEpochMilli();
+            } catch (DateTimeException e) {
+                return LogStore.NO_TIME;
+            }
+            cachedHour = key;
+        }
+        return cachedHourStart;
+    }
+
+    static byte parseLevel(byte c) {
+        return switch (c) {
+            case 'V' -> 2;
+            case 'D' -> 3;
+            case 'I' -> 4;
+            case 'W' -> 5;
+            case 'E' -> 6;
+            case 'F', 'A' -> 7;
+            default -> LogStore.LEVEL_NONE;
+        };
+    }
+
+    static char levelChar(int level) {
+        return switch (level) {
+            case 2 -> 'V';
+            case 3 -> 'D';
+            case 4 -> 'I';
+            case 5 -> 'W';
+            case 6 -> 'E';
+            case 7 -> 'F';
+            default -> ' ';
+        };
+    }
+
+    private static final byte[] COLON_SPACE = { ':', ' ' };
+
+    // uid is printed either as a number or as a name, e.g. "system", "u0_a97", "u10_i3"
+    static int parseUid(byte[] b, int start, int end) {
+        if (end > start && b[end - 1] == ':') {
+            --end;
+        }
+        int v = parseInt(b, start, end);
+        if (v != LogStore.UNKNOWN) {
+            return v;
+        }
+        int userId = 0;
+        int pos = start;
+        if (end - pos > 1 && b[pos] == 'u' && isDigit(b[pos + 1])) {
+            int userEnd = pos + 1;
+            while (userEnd < end && isDigit(b[userEnd])) {
+                ++userEnd;
+            }
+            if (userEnd + 2 < end && b[userEnd] == '_') {
+                userId = parseInt(b, pos + 1, userEnd);
+                int appId = parseInt(b, userEnd + 2, end);
+                int base = switch (b[userEnd + 1]) {
+                    case 'a' -> 10_000; // FIRST_APPLICATION_UID
+                    case 'i' -> 99_000; // FIRST_ISOLATED_UID
+                    case 's' -> 90_000; // FIRST_APP_ZYGOTE_ISOLATED_UID
+                    default -> LogStore.UNKNOWN;
+                };
+                if (base != LogStore.UNKNOWN && appId != LogStore.UNKNOWN) {
+                    return userId * 100_000 + base + appId;
+                }
+                pos = userEnd + 1;
+            }
+        }
+        int aid = getAidForName(new String(b, pos, end - pos));
+        return aid == LogStore.UNKNOWN ? aid : userId * 100_000 + aid;
+    }
+
+    // subset of android_filesystem_config.h
+    private static int getAidForName(String name) {
+        return switch (name) {
+            case "root" -> 0;
+            case "system" -> 1000;
+            case "radio" -> 1001;
+            case "bluetooth" -> 1002;
+            case "graphics" -> 1003;
+            case "input" -> 1004;
+            case "audio" -> 1005;
+            case "camera" -> 1006;
+            case "log" -> 1007;
+            case "wifi" -> 1010;
+            case "media" -> 1013;
+            case "keystore" -> 1017;
+            case "drm" -> 1019;
+            case "gps" -> 1021;
+            case "nfc" -> 1027;
+            case "audioserver" -> 1041;
+            case "mediacodec" -> 1046;
+            case "cameraserver" -> 1047;
+            case "statsd" -> 1066;
+            case "lmkd" -> 1069;
+            case "gpu_service" -> 1072;
+            case "network_stack" -> 1073;
+            case "credstore" -> 1076;
+            case "artd" -> 1082;
+            case "shell" -> 2000;
+            case "nobody" -> 9999;
+            default -> LogStore.UNKNOWN;
+        };
+    }
+
+    // returns UNKNOWN if the range isn't a non-negative decimal number
+    static int parseInt(byte[] b, int start, int end) {
+        if (start >= end || end - start > 9) {
+            return LogStore.UNKNOWN;
+        }
+        int v = 0;
+        for (int i = start; i < end; ++i) {
+            byte c = b[i];
+            if (!isDigit(c)) {
+                return LogStore.UNKNOWN;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    static int skipSpaces(byte[] b, int pos, int end) {
+        while (pos < end && (b[pos] == ' ' || b[pos] == '\t')) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    static boolean startsWith(byte[] b, int start, int end, byte[] prefix) {
+        return end - start >= prefix.length
+                && Arrays.equals(b, start, start + prefix.length, prefix, 0, prefix.length);
+    }
+
+    static int indexOf(byte[] b, byte[] needle, int from, int to) {
+        byte first = needle[0];
+        for (int i = from, max = to - needle.length; i <= max; ++i) {
+            if (b[i] == first && Arrays.equals(b, i, i + needle.length, needle, 0, needle.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int lastIndexOf(byte[] b, byte v, int from, int to) {
+        for (int i = to - 1; i >= from; --i) {
+            if (b[i] == v) {
+                return i;
+            }
+        }
+        return from - 1;
+    }
+}
@@ -0,0 +1,780 @@
+package app.grapheneos.logviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Query over parsed log records, e.g.
+//   tag:ActivityManager level>=W pid:1234 "ANR in" -chatty
+// Terms are ANDed, "OR" has lower precedence than the implicit AND, "-" negates a term and
+// parentheses group terms. Supported terms:
+//   tag:<name>           tag name, '*' matches any characters, e.g. tag:Activity*
+//   level:<L>, level>=<L>, level><L>, level<=<L>, level<<L>, level=<L>
+//                        level letter (V, D, I, W, E, F) or name, "level:W" means W and above
+//   pid:<n>, tid:<n>     process and thread ids
+//   uid:<uid>            uid number or name, e.g. uid:1000, uid:system, uid:u0_a97
+//   buffer:<name>        log buffer, e.g. buffer:crash
+//   msg:<text>, <text>, "<text>"
+//                        case-insensitive (for ASCII) substring of the message
+//   /<regex>/            regex that matches a part of the message, see RegexFilter
+// Values of tag, pid, tid, uid and buffer terms can be lists, e.g. tag:ActivityManager,Zygote
+// Words that look like field terms but have an unknown field name are treated as text.
+//
+// The query is compiled into a tree of predicates. Children of AND and OR nodes are evaluated
+// in the order of their cost: predicates on columns of the store (level, pid, uid etc) are checked
+// first, the message text is looked at only for rows that pass them.
+// Predicates on indexed columns (level, tag, pid, uid) can also be evaluated with bitmaps of a
+// LogIndex, see getCandidateRows()
+// Not thread-safe, predicates have per-query caches.
+class LogQuery implements RowFilter {
+    final String spec;
+    private final Node root;
+
+    private LogQuery(String spec, Node root) {
+        this.spec = spec;
+        this.root = root;
+    }
+
+    // throws IllegalArgumentException if the query is invalid, it's a PatternSyntaxException for
+    // invalid regexes
+    static LogQuery parse(String spec) {
+        var p = new Parser(tokenize(spec));
+        Node root = p.parseOr();
+        if (p.pos != p.tokens.size()) {
+            throw new IllegalArgumentException("unexpected " + p.tokens.get(p.pos));
+        }
+        return new LogQuery(spec.trim(), root);
+    }
+
+    @Override
+    public String getSpec() {
+        return spec;
+    }
+
+    @Override
+    public boolean matches(LogStore store, int row) {
+        return root.matches(store, row);
+    }
+
+    // Returns a superset of indexed records that match the query, computed with bitmap operations,
+    // or null if the query doesn't constrain indexed columns. Only these rows need to be checked
+    // with matches(). E.g. for "level>=W -tag:chatty timeout" these are the rows of levels W, E and
+    // F, minus the rows of the chatty tag.
+    RowBitmap getCandidateRows(LogIndex index) {
+        return root.candidates(index);
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    // cost classes of predicates
+    private static final int COST_COLUMN = 1;
+    private static final int COST_TAG = 2;
+    private static final int COST_TEXT = 10;
+    private static final int COST_REGEX = 20;
+    private static final int COST_REGEX_NO_PREFILTER = 100;
+
+    private abstract static class Node {
+        abstract boolean matches(LogStore s, int row);
+
+        abstract int cost();
+
+        // exactly the indexed records that match, null if the predicate isn't on indexed columns
+        RowBitmap toBitmap(LogIndex index) {
+            return null;
+        }
+
+        // superset of the indexed records that match, null if it's all records
+        RowBitmap candidates(LogIndex index) {
+            return toBitmap(index);
+        }
+    }
+
+    private static class And extends Node {
+        private final Node[] children;
+        private final int cost;
+
+        And(List<Node> l) {
+            l.sort(Comparator.comparingInt(Node::cost));
+            children = l.toArray(new Node[0]);
+            int c = 0;
+            for (Node n : children) {
+                c = Math.max(c, n.cost());
+            }
+            cost = c;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            for (Node n : children) {
+                if (!n.matches(s, row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        RowBitmap toBitmap(LogIndex index) {
+            RowBitmap res = null;
+            for (Node n : children) {
+                RowBitmap b = n.toBitmap(index);
+                if (b == null) {
+                    return null;
+                }
+                res = res == null ? b : RowBitmap.and(res, b);
+            }
+            return res;
+        }
+
+        @Override
+        RowBitmap candidates(LogIndex index) {
+            // rows that pass the indexed children, the other children are checked with matches()
+            RowBitmap res = null;
+            for (Node n : children) {
+                if (n instanceof Not) {
+                    continue;
+                }
+                RowBitmap b = n.candidates(index);
+                if (b != null) {
+                    res = res == null ? b : RowBitmap.and(res, b);
+                }
+            }
+            // negated children are subtracted, without computing their complement
+            for (Node n : children) {
+                if (n instanceof Not not) {
+                    RowBitmap b = res != null ? not.child.toBitmap(index) : not.toBitmap(index);
+                    if (b != null) {
+                        res = res != null ? RowBitmap.andNot(res, b) : b;
+                    }
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " ");
+        }
+    }
+
+    private static class Or extends Node {
+        private final Node[] children;
+        private final int cost;
+
+        Or(List<Node> l) {
+            l.sort(Comparator.comparingInt(Node::cost));
+            children = l.toArray(new Node[0]);
+            int c = 0;
+            for (Node n : children) {
+                c = Math.max(c, n.cost());
+            }
+            cost = c;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            for (Node n : children) {
+                if (n.matches(s, row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return cost;
+        }
+
+        @Override
+        RowBitmap toBitmap(LogIndex index) {
+            return union(index, true);
+        }
+
+        @Override
+        RowBitmap candidates(LogIndex index) {
+            return union(index, false);
+        }
+
+        private RowBitmap union(LogIndex index, boolean exact) {
+            RowBitmap res = null;
+            for (Node n : children) {
+                RowBitmap b = exact ? n.toBitmap(index) : n.candidates(index);
+                if (b == null) {
+                    return null;
+                }
+                res = res == null ? b : RowBitmap.or(res, b);
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return '(' + join(children, " OR ") + ')';
+        }
+    }
+
+    private static class Not extends Node {
+        private final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            return !child.matches(s, row);
+        }
+
+        @Override
+        int cost() {
+            return child.cost();
+        }
+
+        @Override
+        RowBitmap toBitmap(LogIndex index) {
+            RowBitmap b = child.toBitmap(index);
+            return b != null ? RowBitmap.andNot(index.getRecordBitmap(), b) : null;
+        }
+
+        @Override
+        public String toString() {
+            return "-" + child;
+        }
+    }
+
+    private static final int FIELD_PID = 0;
+    private static final int FIELD_TID = 1;
+    private static final int FIELD_UID = 2;
+    private static final int FIELD_BUFFER = 3;
+    private static final String[] INT_FIELD_NAMES = { "pid", "tid", "uid", "buffer" };
+
+    // int column value is one of the given values
+    private static class IntColumn extends Node {
+        private final int field;
+        private final int[] values;
+
+        IntColumn(int field, int[] values) {
+            this.field = field;
+            this.values = values;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            int v = switch (field) {
+                case FIELD_PID -> s.getPid(row);
+                case FIELD_TID -> s.getTid(row);
+                case FIELD_UID -> s.getUid(row);
+                case FIELD_BUFFER -> s.getBuffer(row);
+                default -> throw new IllegalStateException();
+            };
+            for (int x : values) {
+                if (x == v) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return COST_COLUMN;
+        }
+
+        @Override
+        RowBitmap toBitmap(LogIndex index) {
+            if (field != FIELD_PID && field != FIELD_UID) {
+                return null;
+            }
+            var res = new RowBitmap();
+            for (int v : values) {
+                res = RowBitmap.or(res, field == FIELD_PID ? index.getPidBitmap(v) : index.getUidBitmap(v));
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            var b = new StringBuilder(INT_FIELD_NAMES[field]).append(':');
+            for (int i = 0; i < values.length; ++i) {
+                if (i != 0) {
+                    b.append(',');
+                }
+                b.append(field == FIELD_BUFFER ? LogStore.BUFFER_NAMES[values[i]] : Integer.toString(values[i]));
+            }
+            return b.toString();
+        }
+    }
+
+    private static class Level extends Node {
+        private final byte min;
+        private final byte max;
+
+        Level(byte min, byte max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            byte l = s.getLevel(row);
+            return l >= min && l <= max;
+        }
+
+        @Override
+        int cost() {
+            return COST_COLUMN;
+        }
+
+        @Override
+        RowBitmap toBitmap(LogIndex index) {
+            var res = new RowBitmap();
+            for (int l = min; l <= max; ++l) {
+                res = RowBitmap.or(res, index.getLevelBitmap(l));
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "level:" + LogParser.levelChar(min) + '-' + LogParser.levelChar(max);
+        }
+    }
+
+    private static class Tag extends Node {
+        private final String[] patterns;
+        // match state of each tag id of the store: 0 not computed, 1 match, 2 no match
+        private byte[] cache = new byte[0];
+        private LogStore cacheStore;
+
+        Tag(String[] patterns) {
+            this.patterns = patterns;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            int id = s.getTag(row);
+            if (id == LogStore.UNKNOWN) {
+                return false;
+            }
+            if (s != cacheStore) {
+                cache = new byte[0];
+                cacheStore = s;
+            }
+            byte[] c = cache;
+            if (id >= c.length) {
+                c = Arrays.copyOf(c, Math.max(id + 1, c.length * 2));
+                cache = c;
+            }
+            byte state = c[id];
+            if (state == 0) {
+                state = matchesName(s.tags.getName(id)) ? (byte) 1 : (byte) 2;
+                c[id] = state;
+            }
+            return state == 1;
+        }
+
+        private boolean matchesName(String name) {
+            for (String p : patterns) {
+                if (globMatches(p, name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return COST_TAG;
+        }
+
+        @Override
+        RowBitmap toBitmap(LogIndex index) {
+            LogStore.TagTable tags = index.store.tags;
+            var res = new RowBitmap();
+            for (int id = 0, n = tags.size(); id < n; ++id) {
+                if (matchesName(tags.getName(id))) {
+                    res = RowBitmap.or(res, index.getTagBitmap(id));
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            return "tag:" + String.join(",", patterns);
+        }
+    }
+
+    // case-insensitive (for ASCII) substring of the message
+    private static class Text extends Node {
+        private final String text;
+        private final byte[] lower;
+
+        Text(String text) {
+            this.text = text;
+            byte[] b = text.getBytes(UTF_8);
+            for (int i = 0; i < b.length; ++i) {
+                b[i] = (byte) toLowerAscii(b[i]);
+            }
+            this.lower = b;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            byte[] b = s.textBlock(row);
+            int off = s.textOffset(row);
+            int start = off + s.getMsgStart(row);
+            int end = off + s.textLength(row);
+            byte[] p = lower;
+            int first = p[0];
+            for (int i = start, last = end - p.length; i <= last; ++i) {
+                if (toLowerAscii(b[i]) != first) {
+                    continue;
+                }
+                int j = 1;
+                while (j < p.length && toLowerAscii(b[i + j]) == p[j]) {
+                    ++j;
+                }
+                if (j == p.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int cost() {
+            return COST_TEXT;
+        }
+
+        @Override
+        public String toString() {
+            return '"' + text + '"';
+        }
+    }
+
+    private static class Regex extends Node {
+        private final RegexFilter filter;
+
+        Regex(RegexFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        boolean matches(LogStore s, int row) {
+            return filter.matches(s, row);
+        }
+
+        @Override
+        int cost() {
+            return filter.hasPrefilter() ? COST_REGEX : COST_REGEX_NO_PREFILTER;
+        }
+
+        @Override
+        public String toString() {
+            return '/' + filter.regex + '/';
+        }
+    }
+
+    private static int toLowerAscii(byte c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    // '*' matches any sequence of characters
+    static boolean globMatches(String pattern, String s) {
+        int star = pattern.indexOf('*');
+        if (star < 0) {
+            return pattern.equals(s);
+        }
+        String[] parts = pattern.split("\\*", -1);
+        if (!s.startsWith(parts[0])) {
+            return false;
+        }
+        int pos = parts[0].length();
+        int last = parts.length - 1;
+        for (int i = 1; i < last; ++i) {
+            int idx = s.indexOf(parts[i], pos);
+            if (idx < 0) {
+                return false;
+            }
+            pos = idx + parts[i].length();
+        }
+        return s.length() - pos >= parts[last].length() && s.endsWith(parts[last]);
+    }
+
+    private static String join(Node[] nodes, String sep) {
+        var b = new StringBuilder();
+        for (int i = 0; i < nodes.length; ++i) {
+            if (i != 0) {
+                b.append(sep);
+            }
+            b.append(nodes[i]);
+        }
+        return b.toString();
+    }
+
+    // token types
+    private static final int T_WORD = 0;
+    private static final int T_QUOTED = 1;
+    private static final int T_REGEX = 2;
+    private static final int T_LPAREN = 3;
+    private static final int T_RPAREN = 4;
+    private static final int T_NOT = 5;
+
+    private static class Token {
+        final int type;
+        final String text;
+
+        Token(int type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return switch (type) {
+                case T_QUOTED -> '"' + text + '"';
+                case T_REGEX -> '/' + text + '/';
+                default -> text;
+            };
+        }
+    }
+
+    private static List<Token> tokenize(String s) {
+        var res = new ArrayList<Token>();
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                ++i;
+            } else if (c == '(') {
+                res.add(new Token(T_LPAREN, "("));
+                ++i;
+            } else if (c == ')') {
+                res.add(new Token(T_RPAREN, ")"));
+                ++i;
+            } else if (c == '-' && i + 1 < n && !Character.isWhitespace(s.charAt(i + 1))) {
+                res.add(new Token(T_NOT, "-"));
+                ++i;
+            } else if (c == '"') {
+                var b = new StringBuilder();
+                i = readQuoted(s, i, '"', b);
+                res.add(new Token(T_QUOTED, b.toString()));
+            } else if (c == '/') {
+                var b = new StringBuilder();
+                i = readQuoted(s, i, '/', b);
+                res.add(new Token(T_REGEX, b.toString()));
+            } else {
+                var b = new StringBuilder();
+                while (i < n) {
+                    c = s.charAt(i);
+                    if (Character.isWhitespace(c) || c == '(' || c == ')') {
+                        break;
+                    }
+                    if (c == '"') {
+                        // quoted value, e.g. tag:"Some Tag"
+                        i = readQuoted(s, i, '"', b);
+                    } else {
+                        b.append(c);
+                        ++i;
+                    }
+                }
+                res.add(new Token(T_WORD, b.toString()));
+            }
+        }
+        return res;
+    }
+
+    // appends text between the quote at start and the closing quote, returns index after it.
+    // Quotes are escaped with a backslash.
+    private static int readQuoted(String s, int start, char quote, StringBuilder dst) {
+        int n = s.length();
+        for (int i = start + 1; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < n && s.charAt(i + 1) == quote) {
+                dst.append(quote);
+                ++i;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                dst.append(c);
+            }
+        }
+        throw new IllegalArgumentException("unterminated " + quote);
+    }
+
+    private static class Parser {
+        final List<Token> tokens;
+        int pos;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        private Token peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        private static boolean isOr(Token t) {
+            return t != null && t.type == T_WORD && t.text.equals("OR");
+        }
+
+        Node parseOr() {
+            var l = new ArrayList<Node>();
+            l.add(parseAnd());
+            while (isOr(peek())) {
+                ++pos;
+                l.add(parseAnd());
+            }
+            return l.size() == 1 ? l.get(0) : new Or(l);
+        }
+
+        private Node parseAnd() {
+            var l = new ArrayList<Node>();
+            for (;;) {
+                Token t = peek();
+                if (t == null || t.type == T_RPAREN || isOr(t)) {
+                    break;
+                }
+                l.add(parseUnary());
+            }
+            if (l.isEmpty()) {
+                throw new IllegalArgumentException("empty query");
+            }
+            return l.size() == 1 ? l.get(0) : new And(l);
+        }
+
+        private Node parseUnary() {
+            Token t = tokens.get(pos++);
+            switch (t.type) {
+                case T_NOT -> {
+                    if (peek() == null) {
+                        throw new IllegalArgumentException("nothing to negate");
+                    }
+                    return new Not(parseUnary());
+                }
+                case T_LPAREN -> {
+                    Node n = parseOr();
+                    Token close = peek();
+                    if (close == null || close.type != T_RPAREN) {
+                        throw new IllegalArgumentException("missing )");
+                    }
+                    ++pos;
+                    return n;
+                }
+                case T_RPAREN -> throw new IllegalArgumentException("unexpected )");
+                case T_QUOTED -> {
+                    if (t.text.isEmpty()) {
+                        throw new IllegalArgumentException("empty text");
+                    }
+                    return new Text(t.text);
+                }
+                case T_REGEX -> {
+                    return new Regex(RegexFilter.compile(t.text));
+                }
+                default -> {
+                    return parseWord(t.text);
+                }
+            }
+        }
+
+        private static Node parseWord(String w) {
+            int opStart = 0;
+            while (opStart < w.length() && Character.isLetter(w.charAt(opStart))) {
+                ++opStart;
+            }
+            String field = w.substring(0, opStart).toLowerCase(Locale.ROOT);
+            int opEnd = opStart;
+            while (opEnd < w.length() && opEnd - opStart < 2 && "<>=:".indexOf(w.charAt(opEnd)) >= 0) {
+                ++opEnd;
+            }
+            String op = w.substring(opStart, opEnd);
+            String value = w.substring(opEnd);
+            if (op.isEmpty() || value.isEmpty()) {
+                return new Text(w);
+            }
+            switch (field) {
+                case "level" -> {
+                    return parseLevel(op, value);
+                }
+                case "tag", "pid", "tid", "uid", "buffer", "msg" -> {
+                    if (!op.equals(":") && !op.equals("=")) {
+                        throw new IllegalArgumentException("unsupported operator in " + w);
+                    }
+                }
+                default -> {
+                    return new Text(w);
+                }
+            }
+            if (field.equals("msg")) {
+                return new Text(value);
+            }
+            String[] values = value.split(",");
+            if (field.equals("tag")) {
+                return new Tag(values);
+            }
+            int[] ints = new int[values.length];
+            for (int i = 0; i < values.length; ++i) {
+                String v = values[i];
+                int x = switch (field) {
+                    case "uid" -> {
+                        byte[] b = v.getBytes(UTF_8);
+                        yield LogParser.parseUid(b, 0, b.length);
+                    }
+                    case "buffer" -> LogStore.getBufferId(v);
+                    default -> parseInt(v);
+                };
+                if (x == LogStore.UNKNOWN) {
+                    throw new IllegalArgumentException("invalid " + field + ": " + v);
+                }
+                ints[i] = x;
+            }
+            int f = switch (field) {
+                case "pid" -> FIELD_PID;
+                case "tid" -> FIELD_TID;
+                case "uid" -> FIELD_UID;
+                default -> FIELD_BUFFER;
+            };
+            return new IntColumn(f, ints);
+        }
+
+        private static int parseInt(String s) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                return LogStore.UNKNOWN;
+            }
+        }
+
+        private static Node parseLevel(String op, String value) {
+            byte l = LogParser.parseLevel((byte) Character.toUpperCase(value.charAt(0)));
+            if (l == LogStore.LEVEL_NONE) {
+                throw new IllegalArgumentException("invalid level: " + value);
+            }
+            final byte min = 2; // VERBOSE
+            final byte max = 7; // FATAL
+            return switch (op) {
+                case ":", ">=" -> new Level(l, max);
+                case ">" -> new Level((byte) (l + 1), max);
+                case "<=" -> new Level(min, l);
+                case "<" -> new Level(min, (byte) (l - 1));
+                case "=" -> new Level(l, l);
+                default -> throw new IllegalArgumentException("unsupported operator: level" + op);
+            };
+        }
+    }
+}
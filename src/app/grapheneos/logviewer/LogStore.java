@@ -0,0 +1,478 @@
+package app.grapheneos.logviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Columnar store of log rows. Text of each row is kept as UTF-8 in append-only blocks, parsed
+// fields are kept in primitive arrays.
+//
+// The store has a single writer at a time, e.g. its capture thread, or refreshes of shared stores,
+// which hold the store lock. Rows are published by the volatile write of size, which allows
+// readers on other threads to access rows below size() without locking.
+//
+// When spilling is enabled, only the most recent text blocks are kept on heap, older blocks are
+// moved to BlockSpill and are paged back in on access.
+class LogStore {
+    // rows that aren't log records, e.g. text lines of imported files
+    static final byte LEVEL_NONE = 0;
+    // "--------- beginning of main" and similar lines
+    static final byte LEVEL_DIVIDER = 1;
+    // other levels use android.util.Log values, VERBOSE (2) to ASSERT (7)
+
+    static final int UNKNOWN = -1;
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    // indexed by log id, see android/log.h
+    static final String[] BUFFER_NAMES = {
+        "main", "radio", "events", "system", "crash", "stats", "security", "kernel",
+    };
+
+    static int getBufferId(String name) {
+        for (int i = 0; i < BUFFER_NAMES.length; ++i) {
+            if (BUFFER_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    // Parsed fields of a single row
+    static class Record {
+        long time; // epoch millis
+        int uid;
+        int pid;
+        int tid;
+        byte level;
+        byte buffer;
+        int tag;
+        int msgStart; // offset of the message within the row text
+
+        void reset() {
+            uid = UNKNOWN;
+            pid = UNKNOWN;
+            tid = UNKNOWN;
+            level = LEVEL_NONE;
+            tag = UNKNOWN;
+            msgStart = 0;
+            // time and buffer are inherited from the previous row
+        }
+    }
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    // rows never span blocks, rows that are larger than BLOCK_SIZE get a dedicated block
+    private byte[][] blocks = new byte[16][];
+    private int numBlocks;
+    private int blockPos = BLOCK_SIZE;
+
+    // null if spilling is disabled
+    private BlockSpill spill;
+    // cleared if spilling fails, e.g. when storage is full
+    private boolean spillEnabled;
+    private int maxResidentBlocks;
+    // blocks below this index are spilled
+    private int firstResidentBlock;
+
+    private long[] rowPos = new long[0]; // block index << 32 | offset within block
+    private int[] rowLen = new int[0];
+    private long[] time = new long[0];
+    private int[] uid = new int[0];
+    private int[] pid = new int[0];
+    private int[] tid = new int[0];
+    private int[] tag = new int[0];
+    private int[] msgStart = new int[0];
+    private byte[] level = new byte[0];
+    private byte[] buffer = new byte[0];
+
+    private volatile int size;
+    private long textBytes;
+
+    final TagTable tags = new TagTable();
+
+    int size() {
+        return size;
+    }
+
+    // Limits the number of text blocks that are kept on heap, older blocks are compressed and
+    // written to a file in dir. Should be called before the first append().
+    void enableSpilling(File dir, int maxResidentBlocks, int maxPagedInBlocks) throws IOException {
+        spill = new BlockSpill(this, dir, maxPagedInBlocks);
+        spillEnabled = true;
+        this.maxResidentBlocks = Math.max(1, maxResidentBlocks);
+    }
+
+    int append(byte[] src, int start, int end, Record r) {
+        int len = end - start;
+        if (blockPos + len > BLOCK_SIZE) {
+            if (spillEnabled && numBlocks > 0) {
+                blockLengths = ensureLength(blockLengths, numBlocks);
+                blockLengths[numBlocks - 1] = blockPos;
+                if (numBlocks - firstResidentBlock >= maxResidentBlocks) {
+                    spillOldestBlock();
+                }
+            }
+            if (numBlocks == blocks.length) {
+                blocks = Arrays.copyOf(blocks, numBlocks * 2);
+            }
+            blocks[numBlocks++] = new byte[Math.max(BLOCK_SIZE, len)];
+            blockPos = 0;
+        }
+        int blockIdx = numBlocks - 1;
+        System.arraycopy(src, start, blocks[blockIdx], blockPos, len);
+
+        int row = size;
+        if (row == rowLen.length) {
+            grow(Math.max(1024, row + (row >> 1)));
+        }
+        rowPos[row] = ((long) blockIdx << 32) | blockPos;
+        rowLen[row] = len;
+        time[row] = r.time;
+        uid[row] = r.uid;
+        pid[row] = r.pid;
+        tid[row] = r.tid;
+        tag[row] = r.tag;
+        msgStart[row] = r.msgStart;
+        level[row] = r.level;
+        buffer[row] = r.buffer;
+
+        blockPos += len;
+        textBytes += len;
+        size = row + 1;
+        return row;
+    }
+
+    // appends a row of another store
+    int append(LogStore src, int srcRow, Record tmp) {
+        tmp.time = src.time[srcRow];
+        tmp.uid = src.uid[srcRow];
+        tmp.pid = src.pid[srcRow];
+        tmp.tid = src.tid[srcRow];
+        tmp.msgStart = src.msgStart[srcRow];
+        tmp.level = src.level[srcRow];
+        tmp.buffer = src.buffer[srcRow];
+        int srcTag = src.tag[srcRow];
+        tmp.tag = srcTag == UNKNOWN ? UNKNOWN : tags.intern(src.tags.getBytes(srcTag));
+        int start = src.textOffset(srcRow);
+        return append(src.textBlock(srcRow), start, start + src.rowLen[srcRow], tmp);
+    }
+
+    // returns time of the last log record, or NO_TIME if there are no records
+    long getLastRecordTime() {
+        for (int row = size - 1; row >= 0; --row) {
+            if (isRecord(row)) {
+                return time[row];
+            }
+        }
+        return NO_TIME;
+    }
+
+    // Appends rows of a capture that started at the time of the last record of this store, e.g.
+    // with "logcat -T <time>". Records that are already present in this store are skipped.
+    // Returns the number of appended rows.
+    int appendDelta(LogStore delta) {
+        int origSize = size;
+        long lastTime = getLastRecordTime();
+        // rows that might be repeated by the delta
+        int sameTimeStart = origSize;
+        while (sameTimeStart > 0 && time[sameTimeStart - 1] == lastTime) {
+            --sameTimeStart;
+        }
+        int curBuffer = origSize > 0 ? buffer[origSize - 1] : UNKNOWN;
+
+        var rec = new Record();
+        int count = 0;
+        for (int row = 0, deltaSize = delta.size(); row < deltaSize; ++row) {
+            if (delta.level[row] == LEVEL_DIVIDER) {
+                if (delta.buffer[row] == curBuffer) {
+                    continue;
+                }
+            } else {
+                long t = delta.time[row];
+                if (t < lastTime || (t == lastTime && containsRow(sameTimeStart, origSize, delta, row))) {
+                    continue;
+                }
+            }
+            append(delta, row, rec);
+            curBuffer = delta.buffer[row];
+            ++count;
+        }
+        return count;
+    }
+
+    private boolean containsRow(int from, int to, LogStore other, int otherRow) {
+        byte[] otherBlock = other.textBlock(otherRow);
+        int otherStart = other.textOffset(otherRow);
+        int otherEnd = otherStart + other.textLength(otherRow);
+        for (int row = from; row < to; ++row) {
+            int start = textOffset(row);
+            if (Arrays.equals(textBlock(row), start, start + rowLen[row], otherBlock, otherStart, otherEnd)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // used lengths of completed blocks, maintained only when spilling is enabled
+    private int[] blockLengths = new int[0];
+
+    private static int[] ensureLength(int[] a, int idx) {
+        return idx < a.length ? a : Arrays.copyOf(a, Math.max(16, idx * 2));
+    }
+
+    private void spillOldestBlock() {
+        int idx = firstResidentBlock;
+        try {
+            spill.spill(blocks, idx, blockLengths[idx]);
+        } catch (IOException e) {
+            // keep the remaining blocks on heap
+            spillEnabled = false;
+            return;
+        }
+        firstResidentBlock = idx + 1;
+    }
+
+    private void grow(int capacity) {
+        rowPos = Arrays.copyOf(rowPos, capacity);
+        rowLen = Arrays.copyOf(rowLen, capacity);
+        time = Arrays.copyOf(time, capacity);
+        uid = Arrays.copyOf(uid, capacity);
+        pid = Arrays.copyOf(pid, capacity);
+        tid = Arrays.copyOf(tid, capacity);
+        tag = Arrays.copyOf(tag, capacity);
+        msgStart = Arrays.copyOf(msgStart, capacity);
+        level = Arrays.copyOf(level, capacity);
+        buffer = Arrays.copyOf(buffer, capacity);
+    }
+
+    byte[] textBlock(int row) {
+        byte[][] blocks = this.blocks;
+        int idx = (int) (rowPos[row] >>> 32);
+        byte[] b = blocks[idx];
+        if (b == null) {
+            b = spill.pageIn(blocks, idx);
+        }
+        return b;
+    }
+
+    int textOffset(int row) {
+        return (int) rowPos[row];
+    }
+
+    int textLength(int row) {
+        return rowLen[row];
+    }
+
+    String getText(int row) {
+        return new String(textBlock(row), textOffset(row), rowLen[row], UTF_8);
+    }
+
+    long getTime(int row) {
+        return time[row];
+    }
+
+    int getUid(int row) {
+        return uid[row];
+    }
+
+    int getPid(int row) {
+        return pid[row];
+    }
+
+    int getTid(int row) {
+        return tid[row];
+    }
+
+    int getTag(int row) {
+        return tag[row];
+    }
+
+    int getMsgStart(int row) {
+        return msgStart[row];
+    }
+
+    byte getLevel(int row) {
+        return level[row];
+    }
+
+    byte getBuffer(int row) {
+        return buffer[row];
+    }
+
+    boolean isRecord(int row) {
+        return level[row] > LEVEL_DIVIDER;
+    }
+
+    long getTextBytes() {
+        return textBytes;
+    }
+
+    // Reduces memory usage of a store that has spilled blocks, without changing its contents.
+    // Can be called from any thread.
+    void releasePagedInBlocks() {
+        BlockSpill spill = this.spill;
+        if (spill != null) {
+            spill.releasePagedInBlocks();
+        }
+    }
+
+    long estimateMemoryUsage() {
+        long res = 0;
+        byte[][] blocks = this.blocks;
+        for (int i = 0; i < numBlocks; ++i) {
+            byte[] b = blocks[i];
+            if (b != null) {
+                res += b.length;
+            }
+        }
+        BlockSpill spill = this.spill;
+        if (spill != null) {
+            res += spill.estimateMemoryUsage();
+        }
+        // rowPos, rowLen, time, uid, pid, tid, tag, msgStart, level, buffer
+        res += (long) rowLen.length * (8 + 4 + 8 + 4 * 5 + 1 + 1);
+        return res;
+    }
+
+    // returned list decodes rows on access, it contains all rows if rows is null
+    List<String> createLineList(RowList rows) {
+        return new LineList(this, rows, rows != null ? rows.size() : size);
+    }
+
+    private static class LineList extends AbstractList<String> implements RandomAccess {
+        private final LogStore store;
+        private final RowList rows; // null means all rows
+        private final int size;
+
+        LineList(LogStore store, RowList rows, int size) {
+            this.store = store;
+            this.rows = rows;
+            this.size = size;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return store.getText(rows != null ? rows.get(index) : index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    // Interns tag names without creating a String for each row
+    // Tags are interned only by the writer of the store. Other threads can call getBytes() and
+    // getName() for ids of rows that were published by the store, since tags are added before the
+    // rows that refer to them. find() can be called from any thread, it's synchronized with add()
+    // since the slots can be updated or replaced while they are probed.
+    static class TagTable {
+        private int[] slots = new int[256]; // tag id + 1, 0 means empty slot
+        private int[] hashes = new int[64];
+        private byte[][] names = new byte[64][];
+        private String[] strings = new String[64];
+        private volatile int count;
+
+        int intern(byte[] b) {
+            return intern(b, 0, b.length);
+        }
+
+        int intern(byte[] b, int start, int end) {
+            int h = hash(b, start, end);
+            int mask = slots.length - 1;
+            for (int i = h & mask;; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == 0) {
+                    return add(b, start, end, h, i);
+                }
+                int id = slot - 1;
+                if (hashes[id] == h && Arrays.equals(names[id], 0, names[id].length, b, start, end)) {
+                    return id;
+                }
+            }
+        }
+
+        // the probe of intern() isn't synchronized, the writer is the only thread that modifies the
+        // table
+        private synchronized int add(byte[] b, int start, int end, int hash, int slotIdx) {
+            int id = count;
+            if (id == names.length) {
+                int cap = id * 2;
+                hashes = Arrays.copyOf(hashes, cap);
+                names = Arrays.copyOf(names, cap);
+                strings = Arrays.copyOf(strings, cap);
+            }
+            hashes[id] = hash;
+            names[id] = Arrays.copyOfRange(b, start, end);
+            slots[slotIdx] = id + 1;
+            count = id + 1;
+            if (count * 2 > slots.length) {
+                rehash(slots.length * 2);
+            }
+            return id;
+        }
+
+        private void rehash(int capacity) {
+            int[] newSlots = new int[capacity];
+            int mask = capacity - 1;
+            for (int id = 0; id < count; ++id) {
+                int i = hashes[id] & mask;
+                while (newSlots[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                newSlots[i] = id + 1;
+            }
+            slots = newSlots;
+        }
+
+        private static int hash(byte[] b, int start, int end) {
+            int h = 1;
+            for (int i = start; i < end; ++i) {
+                h = 31 * h + b[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        int size() {
+            return count;
+        }
+
+        byte[] getBytes(int id) {
+            return names[id];
+        }
+
+        String getName(int id) {
+            String s = strings[id];
+            if (s == null) {
+                s = new String(names[id], UTF_8);
+                strings[id] = s;
+            }
+            return s;
+        }
+
+        // returns UNKNOWN if there's no such tag
+        synchronized int find(String name) {
+            byte[] b = name.getBytes(UTF_8);
+            int h = hash(b, 0, b.length);
+            int mask = slots.length - 1;
+            for (int i = h & mask;; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == 0) {
+                    return UNKNOWN;
+                }
+                int id = slot - 1;
+                if (hashes[id] == h && Arrays.equals(names[id], b)) {
+                    return id;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package app.grapheneos.logviewer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// HTTP/1.1 endpoint that streams rows of a LogStore to desktop tools. On the device, it listens on
+// an abstract local socket, see LocalStreamListener, which is reached with e.g.
+// "adb forward tcp:8420 localabstract:app.grapheneos.logviewer.stream":
+//   curl -N 'http://localhost:8420/<token>/logs?format=jsonl&follow=1'
+// Rows are those of the source that is set by the UI, i.e. they have the same filters as the list
+// that is shown. They are formatted with LogExporter, "format" is one of FORMAT_PARAMS. With
+// "follow=1", the response stays open and rows are sent as they are appended to the source, until
+// the source is replaced, e.g. by a filter change or a new capture.
+//
+// Other apps can connect to abstract sockets too, so requests must include the random token that
+// is shown to the user.
+//
+// Connections are accepted on a dedicated thread and each one is served on its own thread, with
+// blocking writes. Responses use chunked transfer encoding. A connection formats the next chunk
+// only after the previous one was written, which bounds memory usage for slow clients, and rows of
+// a fast source are then sent as fast as the client reads them.
+class LogStreamServer {
+    // local port of the suggested "adb forward" command
+    static final int DEFAULT_PORT = 8420;
+    // indexed by LogExporter format
+    static final String[] FORMAT_PARAMS = { "jsonl", "csv", "trace" };
+    private static final String[] CONTENT_TYPES = {
+        "application/x-ndjson", "text/csv; charset=utf-8", "application/json",
+    };
+
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final int REQUEST_TIMEOUT_MS = 10_000;
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int CHUNK_SIZE = 1 << 14;
+    // interval of checks for new rows of followed sources
+    private static final long FOLLOW_POLL_MS = 250;
+
+    // Source of connections, it isn't tied to a socket type to allow running the server on the
+    // host, e.g. on a TCP socket.
+    interface Listener extends Closeable {
+        // blocks until a client connects, throws after close()
+        Client accept() throws IOException;
+
+        // unblocks accept()
+        @Override
+        void close() throws IOException;
+    }
+
+    interface Client extends Closeable {
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        void setReadTimeout(int ms) throws IOException;
+    }
+
+    // Rows that are served. Rows are read from connection threads, which is supported by the
+    // single writer model of LogStore and RowList.
+    static class Source {
+        final LogStore store;
+        // null means all rows of the store
+        final RowList rows;
+
+        Source(LogStore store, RowList rows) {
+            this.store = store;
+            this.rows = rows;
+        }
+
+        int size() {
+            return rows != null ? rows.size() : store.size();
+        }
+
+        int get(int index) {
+            return rows != null ? rows.get(index) : index;
+        }
+    }
+
+    private final Listener listener;
+    private final byte[] token;
+    private volatile Source source;
+    private volatile boolean closed;
+    // guarded by itself
+    private final ArrayList<Client> clients = new ArrayList<>();
+
+    LogStreamServer(Listener listener, String token) {
+        this.listener = listener;
+        this.token = token.getBytes(UTF_8);
+    }
+
+    // null stops serving rows, new requests get a 503 response
+    void setSource(Source source) {
+        this.source = source;
+    }
+
+    // called when the source is no longer shown, to not keep its store alive
+    void clearSource(LogStore store) {
+        Source s = source;
+        if (s != null && s.store == store) {
+            setSource(null);
+        }
+    }
+
+    void start() {
+        var t = new Thread(this::acceptLoop, "LogViewer-stream");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // the listener and open connections are closed, followed streams end without their last chunk
+    void close() {
+        closed = true;
+        try {
+            listener.close();
+        } catch (IOException ignored) {}
+        synchronized (clients) {
+            for (Client c : clients) {
+                closeClient(c);
+            }
+            clients.clear();
+        }
+    }
+
+    private void acceptLoop() {
+        try {
+            while (!closed) {
+                Client c = listener.accept();
+                synchronized (clients) {
+                    if (closed) {
+                        closeClient(c);
+                        break;
+                    }
+                    if (clients.size() >= MAX_CONNECTIONS) {
+                        // the response fits into the socket buffer, it doesn't block this thread
+                        try (c) {
+                            sendError(c.getOutputStream(), "503 Service Unavailable");
+                        } catch (IOException ignored) {}
+                        continue;
+                    }
+                    clients.add(c);
+                }
+                var t = new Thread(() -> serve(c), "LogViewer-stream-client");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // listener was closed or failed, nothing to recover
+        } finally {
+            try {
+                listener.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void serve(Client c) {
+        try {
+            c.setReadTimeout(REQUEST_TIMEOUT_MS);
+            OutputStream os = new BufferedOutputStream(c.getOutputStream(), CHUNK_SIZE + 32);
+            String requestLine = readRequestLine(c.getInputStream());
+            if (requestLine == null) {
+                sendError(os, "431 Request Header Fields Too Large");
+                return;
+            }
+            handleRequest(requestLine, os);
+        } catch (IOException e) {
+            // client went away, or the server was closed
+        } catch (InterruptedException e) {
+            // unreachable, connection threads aren't interrupted
+        } finally {
+            synchronized (clients) {
+                clients.remove(c);
+            }
+            closeClient(c);
+        }
+    }
+
+    // null if the request head is too large
+    private static String readRequestLine(InputStream is) throws IOException {
+        byte[] buf = new byte[MAX_REQUEST_SIZE];
+        int len = 0;
+        int end;
+        while ((end = indexOfHeaderEnd(buf, len)) < 0) {
+            if (len == buf.length) {
+                return null;
+            }
+            int n = is.read(buf, len, buf.length - len);
+            if (n < 0) {
+                throw new IOException("connection closed before the end of the request");
+            }
+            len += n;
+        }
+        // request body isn't expected, it's ignored
+        String head = new String(buf, 0, end, US_ASCII);
+        int lineEnd = head.indexOf("\r\n");
+        return lineEnd >= 0 ? head.substring(0, lineEnd) : head;
+    }
+
+    // request line, e.g. "GET /<token>/logs?format=csv&follow=1 HTTP/1.1"
+    private void handleRequest(String line, OutputStream os) throws IOException, InterruptedException {
+        String[] parts = line.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            sendError(os, "400 Bad Request");
+            return;
+        }
+        if (!"GET".equals(parts[0])) {
+            sendError(os, "405 Method Not Allowed");
+            return;
+        }
+        String target = parts[1];
+        int q = target.indexOf('?');
+        String path = q >= 0 ? target.substring(0, q) : target;
+        byte[] expectedPath = ("/" + new String(token, UTF_8) + "/logs").getBytes(UTF_8);
+        if (!MessageDigest.isEqual(path.getBytes(UTF_8), expectedPath)) {
+            // doesn't tell whether the token was wrong
+            sendError(os, "404 Not Found");
+            return;
+        }
+        int format = LogExporter.FORMAT_JSON_LINES;
+        boolean follow = false;
+        if (q >= 0) {
+            for (String param : target.substring(q + 1).split("&")) {
+                int eq = param.indexOf('=');
+                String name = eq >= 0 ? param.substring(0, eq) : param;
+                String value = eq >= 0 ? URLDecoder.decode(param.substring(eq + 1), UTF_8) : "";
+                switch (name) {
+                    case "format" -> format = indexOf(FORMAT_PARAMS, value);
+                    case "follow" -> follow = "1".equals(value) || "true".equals(value);
+                }
+            }
+        }
+        if (format < 0) {
+            sendError(os, "400 Bad Request");
+            return;
+        }
+        Source s = source;
+        if (s == null) {
+            sendError(os, "503 Service Unavailable");
+            return;
+        }
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + CONTENT_TYPES[format] + "\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Cache-Control: no-store\r\n"
+                + "Connection: close\r\n\r\n";
+        os.write(head.getBytes(US_ASCII));
+        streamRows(s, format, follow, os);
+    }
+
+    private void streamRows(Source s, int format, boolean follow, OutputStream os)
+            throws IOException, InterruptedException {
+        var e = new LogExporter(s.store, format);
+        RowWriter w = e.buffer;
+        e.appendHeader();
+        // index of the next row of s
+        int next = 0;
+        for (;;) {
+            int size = s.size();
+            while (w.len < CHUNK_SIZE && next < size) {
+                e.appendRow(s.get(next++));
+            }
+            boolean finished = next == size && (!follow || source != s);
+            if (finished) {
+                e.appendFooter();
+            }
+            if (w.len != 0) {
+                // blocks while the client doesn't read
+                os.write((Integer.toHexString(w.len) + "\r\n").getBytes(US_ASCII));
+                os.write(w.buf, 0, w.len);
+                os.write('\r');
+                os.write('\n');
+                w.reset();
+            }
+            if (finished) {
+                // the last chunk has zero length, trailers aren't sent
+                os.write("0\r\n\r\n".getBytes(US_ASCII));
+                os.flush();
+                return;
+            }
+            if (next == size) {
+                os.flush();
+                Thread.sleep(FOLLOW_POLL_MS);
+                if (closed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void sendError(OutputStream os, String status) throws IOException {
+        os.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(US_ASCII));
+        os.flush();
+    }
+
+    private static void closeClient(Client c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static int indexOfHeaderEnd(byte[] b, int len) {
+        for (int i = 0; i + 3 < len; ++i) {
+            if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(String[] a, String v) {
+        for (int i = 0; i < a.length; ++i) {
+            if (a[i].equals(v)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
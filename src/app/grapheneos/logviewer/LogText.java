@@ -0,0 +1,194 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Text processing steps of the log pipeline. This class doesn't depend on Android APIs, which
+// allows it to be used by host-side benchmarks.
+class LogText {
+
+    static List<String> splitLines(String s) {
+        return Arrays.asList(s.split("\n"));
+    }
+
+    // Returns start offsets of lines in the given UTF-8 text. Unlike splitLines(), this doesn't
+    // create a String for each line.
+    static int[] indexLines(byte[] text, int len) {
+        int[] starts = new int[Math.max(16, len / 64)];
+        int count = 0;
+        int pos = 0;
+        while (pos < len) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count + (count >> 1));
+            }
+            starts[count++] = pos;
+            int nl = indexOf(text, (byte) '\n', pos, len);
+            pos = nl < 0 ? len : nl + 1;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    static int indexOf(byte[] a, byte v, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (a[i] == v) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns index of the first line that fits into maxSize bytes together with all subsequent
+    // lines, assuming that each line is followed by '\n'
+    static int findTruncationStart(List<String> lines, int initialSize, int maxSize) {
+        int sumSize = initialSize;
+        for (int i = lines.size() - 1; i >= 0; --i) {
+            sumSize += utf8Length(lines.get(i)) + 1;
+            if (sumSize > maxSize) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    static int utf8Length(CharSequence s) {
+        int len = s.length();
+        int res = len;
+        for (int i = 0; i < len; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                res += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // 4 bytes for 2 chars
+                    res += 2;
+                    ++i;
+                }
+                // unpaired surrogates are encoded as '?'
+            } else {
+                res += 2;
+            }
+        }
+        return res;
+    }
+
+    static String createSnapshotText(List<String> headerLines, List<String> extraHeaderLines,
+                                     List<String> bodyLines, String description) {
+        var b = new StringBuilder();
+
+        for (String l : headerLines) {
+            b.append(l);
+            b.append('\n');
+        }
+
+        for (String l : extraHeaderLines) {
+            b.append(l);
+            b.append('\n');
+        }
+
+        if (headerLines.size() > 1) {
+            b.append('\n');
+        }
+
+        for (String l : bodyLines) {
+            b.append(l);
+            b.append('\n');
+        }
+
+        if (!description.isBlank()) {
+            b.append("\ndescription: ");
+            b.append(description);
+            b.append('\n');
+        }
+
+        return b.toString();
+    }
+
+    // Filters out most of the header lines of a native crash report to make it easier to read.
+    // Returns null if the given stack trace isn't a native crash report.
+    static String simplifyNativeCrash(String stackTrace) {
+        int nativeCrashMarkerIdx = stackTrace.indexOf("\nProcess uptime: ");
+        if (nativeCrashMarkerIdx <= 0) {
+            return null;
+        }
+        var sb = new StringBuilder();
+        String[] prefixes = { "signal ", "Abort message: " };
+        boolean backtraceStarted = false;
+        for (String line : stackTrace.substring(nativeCrashMarkerIdx).split("\n")) {
+            if (backtraceStarted) {
+                sb.append(line);
+                sb.append('\n');
+            }
+            for (String prefix : prefixes) {
+                if (line.startsWith(prefix)) {
+                    sb.append(line);
+                    sb.append('\n');
+                }
+            }
+            if (line.startsWith("backtrace:")) {
+                sb.append('\n');
+                sb.append(line);
+                sb.append('\n');
+                backtraceStarted = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Signature of a crash report, reports of the same crash have the same signature, e.g.
+    // successive crashes of a crash loop. Parts of the report that differ between occurrences,
+    // e.g. pids, timestamps, uptimes and absolute addresses, are skipped: digits and 0x-prefixed
+    // hex numbers are ignored. Native crash reports are simplified first, see simplifyNativeCrash().
+    static long crashSignature(String kind, String report) {
+        String s = simplifyNativeCrash(report);
+        if (s == null) {
+            s = report;
+        }
+        // 64-bit FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, m = kind.length(); i < m; ++i) {
+            h = (h ^ kind.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ '\n') * 0x100000001b3L;
+        for (int i = 0, m = s.length(); i < m; ++i) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (c == '0' && i + 1 < m && s.charAt(i + 1) == 'x') {
+                    i += 2;
+                    while (i < m && Character.digit(s.charAt(i), 16) >= 0) {
+                        ++i;
+                    }
+                    --i;
+                }
+                continue;
+            }
+            h = (h ^ c) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Returns the pid of a crash report, e.g. from "pid: 1234, tid: 1234, name: ..." of native
+    // crash reports or from "PID: 1234" of Java crash reports, or -1 if it wasn't found
+    static int findCrashPid(String report) {
+        int idx = report.indexOf("pid: ");
+        if (idx < 0) {
+            idx = report.indexOf("PID: ");
+        }
+        if (idx < 0) {
+            return -1;
+        }
+        int res = 0;
+        int i = idx + 5;
+        int start = i;
+        for (int m = Math.min(report.length(), start + 9); i < m; ++i) {
+            char c = report.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            res = res * 10 + (c - '0');
+        }
+        return i > start ? res : -1;
+    }
+}
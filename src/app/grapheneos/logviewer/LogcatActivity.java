@@ -2,11 +2,17 @@ package app.grapheneos.logviewer;
 
 import android.annotation.Nullable;
 import android.app.AlertDialog;
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.UserManager;
 import android.text.Editable;
 import android.text.TextUtils;
@@ -15,11 +21,14 @@ import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static android.text.TextUtils.isEmpty;
 import static java.lang.Math.max;
@@ -35,6 +44,13 @@ public class LogcatActivity extends BaseActivity {
     private static final String EXTRA_LOG_BUFFERS = LogcatActivity.class.getName() + ".LOG_BUFFERS";
     private static final String EXTRA_LOG_LEVEL = LogcatActivity.class.getName() + ".LOG_LEVEL";
     private static final String EXTRA_FILTER_REGEX = LogcatActivity.class.getName() + ".FILTER_REGEX";
+    // see LogQuery
+    private static final String EXTRA_QUERY = LogcatActivity.class.getName() + ".QUERY";
+    // see EventLogDecoder.Filter
+    private static final String EXTRA_EVENT_FILTER = LogcatActivity.class.getName() + ".EVENT_FILTER";
+    private static final String EXTRA_PARALLEL_CAPTURE = LogcatActivity.class.getName() + ".PARALLEL_CAPTURE";
+    // limits app log to the last N processes of the app, see ProcessIndex
+    private static final String EXTRA_PROCESS_INCARNATIONS = LogcatActivity.class.getName() + ".PROCESS_INCARNATIONS";
 
     static final int TYPE_APP_LOG = 1;
     static final int TYPE_SYSTEM_LOG = 2;
@@ -42,11 +58,38 @@ public class LogcatActivity extends BaseActivity {
     static final int TYPE_RADIO_LOG = 4;
 
     private boolean isSystemUser;
+    // set when the view model was created from SystemCaptureCache or from a prefetched capture
+    private boolean reusedSharedCapture;
+
+    // intent with the current in-app filters, see setFilters(). The system restores activities with
+    // their original intent.
+    private static final String KEY_INTENT = "intent";
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
+        ++liveInstances;
         isSystemUser = getSystemService(UserManager.class).isSystemUser();
+        if (savedInstanceState != null) {
+            Intent intent = savedInstanceState.getParcelable(KEY_INTENT, Intent.class);
+            if (intent != null) {
+                setIntent(intent);
+            }
+        }
         super.onCreate(savedInstanceState);
+        if (viewModel == null) {
+            return;
+        }
+        PendingCapture pending = viewModel.pendingCapture;
+        if (pending != null) {
+            pending.activity = this;
+            pollPendingCapture();
+        } else {
+            resolveUidLabels();
+            if (reusedSharedCapture && savedInstanceState == null) {
+                // shared capture might be outdated
+                refresh();
+            }
+        }
     }
 
     @Nullable
@@ -64,88 +107,165 @@ public class LogcatActivity extends BaseActivity {
             }
         }
 
-        var cmd = new ArrayList<String>();
-        cmd.add("logcat");
-
         ArrayList<String> logBuffers = getLogBuffers();
         String logBuffersStr = String.join(",", logBuffers);
-        cmd.add("--buffer=" + logBuffersStr);
-
-        cmd.add("-d");
-        cmd.add("--dividers");
-
-        var format = new ArrayList<String>();
-        format.add("epoch");
-        format.add("printable");
-        if (targetPkg == null) {
-            format.add("uid");
-        }
-        format.add("descriptive");
-        cmd.add("--format=" + String.join(",", format));
-
-        String filterRegex = getFilterRegex();
-        if (!isEmpty(filterRegex)) {
-            cmd.add("--regex=" + filterRegex);
-        }
-
-        int logLevel = getLogLevel();
-        String logLevelStr = LOG_LEVELS.get(logLevel);
-        cmd.add("*:" + logLevelStr.charAt(0));
+        String eventFilter = getEventFilter();
 
         long packageVersion = 0L;
+        ApplicationInfo targetApp = null;
 
         if (targetPkg != null) {
-            ApplicationInfo ai;
-            try {
-                ai = getPackageManager().getApplicationInfo(targetPkg, 0);
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.d(TAG, "", e);
+            targetApp = getTargetAppInfo();
+            if (targetApp == null) {
                 return null;
             }
-
-            cmd.add("--uid=" + ai.uid);
-            packageVersion = ai.longVersionCode;
+            packageVersion = targetApp.longVersionCode;
         }
 
-        var pb = new ProcessBuilder();
-        pb.command(cmd);
+        boolean parallel = isParallelCapture() && logBuffers.size() > 1;
+        String cacheKey = createCaptureCacheKey();
+        // shared capture contains logs of all apps of this user, don't use it for secondary users
+        SystemCaptureCache.Entry shared = isSystemUser ? SystemCaptureCache.get(cacheKey) : null;
+        int processIncarnations = getProcessIncarnations();
 
-        Log.d(TAG, "command: " + String.join(" ", cmd));
-
-        byte[] logcatBytes = null;
-        try {
-            Process proc = pb.start();
-            try (InputStream is = proc.getInputStream()) {
-                logcatBytes = is.readAllBytes();
-            }
-            int ret = proc.waitFor();
-            Log.d(TAG, "logcat return code: " + ret);
-        } catch (IOException|InterruptedException e) {
-            Log.e(TAG, "", e);
+        PendingCapture pending = null;
+        if (shared == null && targetApp != null && processIncarnations > 0) {
+            // process lifecycle events are logged by the system_server, they are absent from
+            // uid-filtered captures
+            LogcatCapture capture = createFullCapture(null);
+            shared = new SystemCaptureCache.Entry(cacheKey, capture.store);
+            pending = new PendingCapture(capture, shared);
         }
 
-        if (logcatBytes == null) {
-            return null;
+        LogStore store;
+        LogIndex index = null;
+        RowList rows = null;
+        if (shared != null) {
+            store = shared.store;
+            if (targetApp != null) {
+                index = shared.getIndex();
+                rows = processIncarnations > 0
+                        ? index.processes.getRows(index, targetPkg, targetApp.uid, processIncarnations)
+                        : index.getUidRows(targetApp.uid);
+            }
+            reusedSharedCapture = pending == null;
+        } else {
+            CapturePrefetcher.Entry prefetched = targetApp != null
+                    ? CapturePrefetcher.take(createAppCaptureKey(cacheKey, targetApp)) : null;
+            store = null;
+            if (prefetched != null && prefetched.isDone()) {
+                store = prefetched.getResult();
+                reusedSharedCapture = store != null;
+            } else if (prefetched != null) {
+                // rows are shown while the prefetched capture is still running, as with a new
+                // capture
+                store = prefetched.capture.store;
+                pending = new PendingCapture(prefetched);
+            }
+            if (store == null) {
+                LogcatCapture capture = createFullCapture(targetApp);
+                store = capture.store;
+                if (targetApp == null) {
+                    shared = new SystemCaptureCache.Entry(cacheKey, store);
+                }
+                pending = new PendingCapture(capture, shared);
+            }
         }
+        // app log is served from the system log capture
+        boolean projection = rows != null;
 
+        // level, filter regex and query are applied in-app, they are described by applyFilters()
         String header =
             "type: logcat"
             + "\nosVersion: " + Build.FINGERPRINT
             + (targetPkg != null ? "\npackageName: " + targetPkg + ":" + packageVersion : "")
             + "\nbuffers: " + logBuffersStr
-            + "\nlevel: " + logLevelStr.toLowerCase()
-            + (!isEmpty(filterRegex) ? ("\nfilterRegex: " + filterRegex) : "")
+            + (!isEmpty(eventFilter) ? ("\neventFilter: " + eventFilter) : "")
+            + (parallel ? "\ncapture: parallel" : "")
+            + (projection ? "\nsource: system log" : "")
+            + (processIncarnations > 0 ? "\nprocesses: last " + processIncarnations : "")
         ;
 
-        String text = new String(logcatBytes, StandardCharsets.UTF_8);
+        ViewModel vm = index != null
+                ? new ViewModel(targetPkg, "", header, index, rows)
+                : new ViewModel(targetPkg, "", header, store);
+        vm.appCapture = targetApp != null && !projection;
+        vm.unfilteredRows = rows;
+        if (projection && processIncarnations > 0) {
+            vm.incarnationsUid = targetApp.uid;
+        }
+        if (pending != null) {
+            pending.start(this, vm);
+        }
+        applyFilters(vm, getLogLevel(), getFilterRegex(), getQuery());
+        return vm;
+    }
+
+    // Applies in-app filters to the view model, without a new capture. Level and query predicates
+    // on indexed columns are evaluated with bitmaps of the LogIndex, see LogQuery, so changing
+    // them takes a few milliseconds even for large captures.
+    private void applyFilters(ViewModel vm, int logLevel, @Nullable String filterRegex, @Nullable String queryStr) {
+        long start = Metrics.FILTER.begin();
+        RegexFilter regexFilter = createRegexFilter(filterRegex);
+        LogQuery userQuery = createQuery(queryStr);
+        // level filter is a part of the query to make use of the level bitmaps
+        String spec = logLevel != Log.VERBOSE ? "level>=" + LOG_LEVELS.get(logLevel).charAt(0) : null;
+        if (userQuery != null) {
+            spec = spec != null ? spec + " (" + userQuery.spec + ')' : userQuery.spec;
+        }
 
+        RowList rows = vm.unfilteredRows;
+        if (spec != null || regexFilter != null) {
+            LogIndex index = getIndex(vm);
+            if (spec != null) {
+                rows = index.getFilteredRows(rows, LogQuery.parse(spec));
+            }
+            if (regexFilter != null) {
+                rows = index.getFilteredRows(rows, regexFilter);
+            }
+        }
+        vm.rows = rows;
+        vm.filterLevel = logLevel;
+        vm.filterRegex = regexFilter != null ? filterRegex : null;
+        vm.query = userQuery != null ? userQuery.spec : null;
+
+        var header = new ArrayList<String>();
+        header.add("level: " + LOG_LEVELS.get(logLevel).toLowerCase());
+        if (vm.filterRegex != null) {
+            header.add("filterRegex: " + vm.filterRegex);
+        }
+        if (vm.query != null) {
+            header.add("query: " + vm.query);
+        }
+        vm.filterHeaderLines = header;
+        vm.title = createTitle(vm);
+        Metrics.FILTER.end(start, 0, vm.getBodyRowCount());
+    }
+
+    private LogIndex getIndex(ViewModel vm) {
+        LogIndex index = vm.index;
+        if (index == null) {
+            // index of a shared capture is shared too
+            PendingCapture pending = vm.pendingCapture;
+            SystemCaptureCache.Entry shared = pending != null ? pending.cacheEntry
+                    : SystemCaptureCache.get(createCaptureCacheKey());
+            index = shared != null && shared.store == vm.store ? shared.getIndex() : new LogIndex(vm.store);
+            vm.index = index;
+        }
+        return index;
+    }
+
+    private String createTitle(ViewModel vm) {
+        int logType = getLogType();
         String title = switch (logType) {
-            case TYPE_APP_LOG -> getString(R.string.app_log_title, Utils.loadAppLabel(this, targetPkg));
+            case TYPE_APP_LOG -> getString(R.string.app_log_title, Utils.loadAppLabel(this, vm.sourcePackage));
             case TYPE_SYSTEM_LOG -> getString(R.string.system_log_title);
+            case TYPE_EVENT_LOG -> getString(R.string.event_log_title);
             default -> throw new IllegalStateException();
         };
 
-        if (!getDefaultLogBuffers().equals(logBuffers)) {
+        ArrayList<String> logBuffers = getLogBuffers();
+        if (!getDefaultLogBuffers(logType).equals(logBuffers)) {
             var b = new StringBuilder(" | ");
             for (String s : logBuffers) {
                 b.append(Character.toUpperCase(s.charAt(0)));
@@ -153,15 +273,476 @@ public class LogcatActivity extends BaseActivity {
             title += b.toString();
         }
 
-        if (logLevel != Log.VERBOSE) {
-            title += " | " + logLevelStr.charAt(0) + '+';
+        if (vm.filterLevel != Log.VERBOSE) {
+            title += " | " + LOG_LEVELS.get(vm.filterLevel).charAt(0) + '+';
+        }
+
+        if (!isEmpty(vm.filterRegex)) {
+            title += " | " + vm.filterRegex;
+        }
+
+        if (!isEmpty(vm.query)) {
+            title += " | " + vm.query;
+        }
+
+        String eventFilter = getEventFilter();
+        if (!isEmpty(eventFilter)) {
+            title += " | " + eventFilter;
+        }
+
+        int processIncarnations = getProcessIncarnations();
+        if (processIncarnations > 0) {
+            title += " | " + getResources().getQuantityString(R.plurals.last_processes,
+                    processIncarnations, processIncarnations);
+        }
+        return title;
+    }
+
+    // Changes in-app filters of the shown view model. Rows are re-filtered in place instead of
+    // relaunching the activity with a new capture.
+    private void setFilters(int logLevel, @Nullable String filterRegex, @Nullable String query) {
+        ViewModel vm = viewModel;
+        applyFilters(vm, logLevel, filterRegex, query);
+        // the view model might be evicted or the process might be killed, filters are reapplied
+        // from the intent when the activity is recreated
+        setIntent(createRelaunchIntent());
+        // filtered rows and indexes of the filters
+        onViewModelGrew(vm);
+        updateStreamSource();
+        setTitle(vm.title);
+        updateListItems();
+        scrollToBottom();
+    }
+
+    // intent for relaunching this activity with different capture parameters, in-app filters are
+    // carried over
+    private Intent createRelaunchIntent() {
+        var i = new Intent(getIntent());
+        ViewModel vm = viewModel;
+        i.putExtra(EXTRA_LOG_LEVEL, vm.filterLevel);
+        i.putExtra(EXTRA_FILTER_REGEX, vm.filterRegex);
+        i.putExtra(EXTRA_QUERY, vm.query);
+        return i;
+    }
+
+    private LogcatCapture createCapture(ArrayList<String> args) {
+        return createCapture(this, getLogBuffers(), args, isParallelCapture(), getEventFilter());
+    }
+
+    private static LogcatCapture createCapture(Context ctx, List<String> buffers, List<String> args,
+                                               boolean parallel, @Nullable String eventFilter) {
+        var capture = new LogcatCapture(buffers, args, parallel);
+        if (buffers.contains("events")) {
+            File cacheDir = ctx.getCacheDir();
+            // the first load parses the system tags file, it's done on the capture thread
+            capture.setEventDecoding(() -> {
+                EventLogTags tags = EventLogTags.getSystemTags(cacheDir, Build.FINGERPRINT);
+                if (tags == null) {
+                    Log.w(TAG, "unable to load event log tags");
+                }
+                return tags;
+            }, eventFilter);
+        }
+        if (buffers.contains("kernel")) {
+            // kernel log timestamps are based on a clock that doesn't advance during deep sleep
+            capture.setKernelLogFromDmesg(System.currentTimeMillis() - SystemClock.uptimeMillis());
+        }
+        return capture;
+    }
+
+    // full captures are spilled to disk when they get large, unlike refresh captures
+    private static LogcatCapture createFullCapture(Context ctx, List<String> buffers, List<String> args,
+                                                   boolean parallel, @Nullable String eventFilter) {
+        LogcatCapture capture = createCapture(ctx, buffers, args, parallel, eventFilter);
+        try {
+            capture.setSpillDir(new File(ctx.getCacheDir(), "spill"));
+        } catch (IOException e) {
+            Log.w(TAG, "unable to enable spilling", e);
+        }
+        return capture;
+    }
+
+    // Starts a background capture of the app log with default parameters, which is used by
+    // LogcatActivity if it's opened for the same app soon enough, see CapturePrefetcher
+    static void prefetchAppLog(Context ctx, String pkgName) {
+        ApplicationInfo appInfo = getAppInfo(ctx, pkgName);
+        if (appInfo == null) {
+            return;
+        }
+        ArrayList<String> buffers = getDefaultLogBuffers(TYPE_APP_LOG);
+        var capture = createFullCapture(ctx, buffers, createLogcatArgs(appInfo), false, null);
+        capture.setTimeout(CAPTURE_TIMEOUT_MS);
+        CapturePrefetcher.start(createDefaultAppCaptureKey(appInfo), capture);
+    }
+
+    static void cancelAppLogPrefetch(Context ctx, String pkgName) {
+        ApplicationInfo appInfo = getAppInfo(ctx, pkgName);
+        if (appInfo != null) {
+            CapturePrefetcher.cancel(createDefaultAppCaptureKey(appInfo));
+        }
+    }
+
+    private static String createDefaultAppCaptureKey(ApplicationInfo appInfo) {
+        String key = createCaptureCacheKey(getDefaultLogBuffers(TYPE_APP_LOG), null, false);
+        return createAppCaptureKey(key, appInfo);
+    }
+
+    private static String createAppCaptureKey(String captureKey, ApplicationInfo appInfo) {
+        return captureKey + '|' + appInfo.uid;
+    }
+
+    private LogcatCapture createFullCapture(@Nullable ApplicationInfo targetApp) {
+        var capture = createFullCapture(this, getLogBuffers(), createLogcatArgs(targetApp),
+                isParallelCapture(), getEventFilter());
+        capture.setTimeout(CAPTURE_TIMEOUT_MS);
+        return capture;
+    }
+
+    // Initial capture of a view model. It's run in background to keep the activity responsive:
+    // rows are shown while they are appended to the store, and the capture can be cancelled with
+    // the back button. Survives activity recreation, the view model refers to it until it finishes.
+    static class PendingCapture {
+        final LogcatCapture capture;
+        // published once the capture completes, null if the capture isn't shared
+        @Nullable
+        private final SystemCaptureCache.Entry cacheEntry;
+        // set if the capture is run by CapturePrefetcher
+        @Nullable
+        private final CapturePrefetcher.Entry prefetched;
+        // activity that shows the view model, accessed only on the main thread
+        @Nullable
+        private LogcatActivity activity;
+
+        PendingCapture(LogcatCapture capture, @Nullable SystemCaptureCache.Entry cacheEntry) {
+            this.capture = capture;
+            this.cacheEntry = cacheEntry;
+            this.prefetched = null;
+        }
+
+        // capture that was started by CapturePrefetcher and is still in progress
+        PendingCapture(CapturePrefetcher.Entry prefetched) {
+            this.capture = prefetched.capture;
+            this.cacheEntry = null;
+            this.prefetched = prefetched;
         }
 
-        if (!isEmpty(filterRegex)) {
-            title += " | " + filterRegex;
+        void start(Context ctx, ViewModel vm) {
+            vm.pendingCapture = this;
+            Executor mainExecutor = ctx.getMainExecutor();
+            CapturePrefetcher.Entry p = prefetched;
+            if (p != null) {
+                p.setOnDone(() -> mainExecutor.execute(() -> onFinished(vm, p.isSuccessful())));
+                return;
+            }
+            // not tied to the activity lifecycle, it's cancelled only when the activity is finishing
+            TaskExecutors.IO.execute(() -> {
+                boolean captured = false;
+                long captureStart = Metrics.CAPTURE.begin();
+                try {
+                    // commands depend on event log tags
+                    capture.loadEventTags();
+                    for (List<String> c : capture.createCommands()) {
+                        Log.d(TAG, "command: " + String.join(" ", c));
+                    }
+                    capture.run();
+                    Log.d(TAG, "logcat return codes: " + capture.exitCodes);
+                    captured = true;
+                } catch (IOException|InterruptedException e) {
+                    Log.e(TAG, "", e);
+                } finally {
+                    LogStore s = capture.store;
+                    Metrics.CAPTURE.end(captureStart, s.getTextBytes(), s.size());
+                }
+                final boolean success = captured;
+                mainExecutor.execute(() -> onFinished(vm, success));
+            });
+        }
+
+        private void onFinished(ViewModel vm, boolean success) {
+            vm.pendingCapture = null;
+            if (!success) {
+                vm.partialReason = "error";
+            } else {
+                vm.partialReason = capture.getPartialReason();
+            }
+            if (vm.partialReason == null && cacheEntry != null) {
+                SystemCaptureCache.put(cacheEntry);
+            }
+            BaseActivity.onViewModelGrew(vm);
+            LogcatActivity a = activity;
+            if (a != null && !a.isDestroyed()) {
+                a.onCaptureFinished();
+            }
         }
+    }
 
-        return new ViewModel(targetPkg, title, header, text);
+    private String createCaptureCacheKey() {
+        return createCaptureCacheKey(getLogBuffers(), getEventFilter(), isParallelCapture());
+    }
+
+    // level, filter regex and query aren't capture parameters, they are applied in-app to the
+    // capture
+    private static String createCaptureCacheKey(List<String> buffers, @Nullable String eventFilter,
+                                                boolean parallel) {
+        return String.join(",", buffers)
+                + '|' + (eventFilter != null ? eventFilter : "")
+                + '|' + parallel;
+    }
+
+    @Nullable
+    private ApplicationInfo getTargetAppInfo() {
+        return getAppInfo(this, getIntent().getStringExtra(Intent.EXTRA_PACKAGE_NAME));
+    }
+
+    @Nullable
+    private static ApplicationInfo getAppInfo(Context ctx, String pkgName) {
+        try {
+            return ctx.getPackageManager().getApplicationInfo(pkgName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.d(TAG, "", e);
+            return null;
+        }
+    }
+
+    // logcat arguments, except for the buffer list which is added by LogcatCapture
+    private static ArrayList<String> createLogcatArgs(@Nullable ApplicationInfo targetApp) {
+        var cmd = new ArrayList<String>();
+        cmd.add("-d");
+        cmd.add("--dividers");
+
+        var format = new ArrayList<String>();
+        format.add("epoch");
+        format.add("printable");
+        if (targetApp == null) {
+            format.add("uid");
+        }
+        format.add("descriptive");
+        cmd.add("--format=" + String.join(",", format));
+
+        // levels are filtered in-app, see applyFilters()
+        cmd.add("*:V");
+
+        if (targetApp != null) {
+            cmd.add("--uid=" + targetApp.uid);
+        }
+        return cmd;
+    }
+
+    // captures are cut short after this timeout, rows that were read by then are shown
+    private static final long CAPTURE_TIMEOUT_MS = 30_000;
+    // Rows of an in-progress capture are shown at this interval. The UI doesn't get notified of
+    // each appended row, so a slow UI thread can't make the capture thread queue up work for it.
+    private static final long CAPTURE_POLL_INTERVAL_MS = 250;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable capturePoller = this::pollPendingCapture;
+
+    private void pollPendingCapture() {
+        if (viewModel.pendingCapture == null) {
+            return;
+        }
+        viewModel.onStoreUpdated();
+        updateIncarnationRows();
+        onBodyRowsAppended();
+        handler.postDelayed(capturePoller, CAPTURE_POLL_INTERVAL_MS);
+    }
+
+    // Rows of the last process incarnations of the app are replaced when newer incarnations were
+    // started, see ProcessIndex.getRows(). Called after the index was updated.
+    private void updateIncarnationRows() {
+        ViewModel vm = viewModel;
+        if (vm.incarnationsUid == LogStore.UNKNOWN) {
+            return;
+        }
+        LogIndex index = vm.index;
+        RowList rows = index.processes.getRows(index, vm.sourcePackage, vm.incarnationsUid,
+                getProcessIncarnations());
+        if (rows != vm.unfilteredRows) {
+            vm.unfilteredRows = rows;
+            applyFilters(vm, vm.filterLevel, vm.filterRegex, vm.query);
+            updateListItems();
+            scrollToBottom();
+        }
+    }
+
+    private void onCaptureFinished() {
+        handler.removeCallbacks(capturePoller);
+        resolveUidLabels();
+        viewModel.onStoreUpdated();
+        updateIncarnationRows();
+        // header contains the partial capture marker
+        updateListItems();
+        scrollToBottom();
+    }
+
+    @Override
+    public void onBackPressed() {
+        PendingCapture pending = viewModel != null ? viewModel.pendingCapture : null;
+        if (pending != null) {
+            // keep the rows that were read so far
+            pending.capture.cancel();
+            return;
+        }
+        super.onBackPressed();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(capturePoller);
+        PendingCapture pending = viewModel != null ? viewModel.pendingCapture : null;
+        if (pending != null && pending.activity == this) {
+            pending.activity = null;
+            if (isFinishing()) {
+                pending.capture.cancel();
+            }
+        }
+        LogStreamServer server = streamServer;
+        --liveInstances;
+        if (server != null && liveInstances == 0 && !isChangingConfigurations()) {
+            // no activity is left to select rows or to turn streaming off
+            server.close();
+            streamServer = null;
+        } else if (server != null && viewModel != null && isFinishing()) {
+            server.clearSource(viewModel.store);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(KEY_INTENT, getIntent());
+    }
+
+    // Endpoint for desktop tools, see LogStreamServer. It serves rows of the LogcatActivity that
+    // was resumed last, with its in-app filters, and is closed when the last LogcatActivity is
+    // destroyed. Accessed only on the main thread.
+    @Nullable
+    private static LogStreamServer streamServer;
+    private static String streamToken;
+    // number of created LogcatActivity instances that weren't destroyed yet
+    private static int liveInstances;
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (viewModel != null) {
+            updateStreamSource();
+        }
+    }
+
+    private void updateStreamSource() {
+        LogStreamServer server = streamServer;
+        if (server != null) {
+            ViewModel vm = viewModel;
+            server.setSource(new LogStreamServer.Source(vm.store, vm.rows));
+        }
+    }
+
+    private void toggleStreamServer() {
+        LogStreamServer server = streamServer;
+        if (server != null) {
+            server.close();
+            streamServer = null;
+            return;
+        }
+        String token = UUID.randomUUID().toString().replace("-", "");
+        try {
+            server = new LogStreamServer(new LocalStreamListener(), token);
+        } catch (IOException e) {
+            ErrorDialog.show(this, getText(R.string.unable_to_start_stream), e);
+            return;
+        }
+        server.start();
+        streamServer = server;
+        streamToken = token;
+        updateStreamSource();
+        showStreamInfo();
+    }
+
+    private void showStreamInfo() {
+        int port = LogStreamServer.DEFAULT_PORT;
+        String commands = "adb forward tcp:" + port + " localabstract:" + LocalStreamListener.SOCKET_NAME + "\n"
+                + "curl -N 'http://localhost:" + port + '/' + streamToken + "/logs?follow=1'";
+        var b = new AlertDialog.Builder(this);
+        b.setTitle(R.string.stream_to_adb);
+        b.setMessage(getString(R.string.stream_to_adb_info, commands));
+        b.setPositiveButton(R.string.action_copy, (d, w) -> {
+            var cm = getSystemService(ClipboardManager.class);
+            cm.setPrimaryClip(ClipData.newPlainText(null, commands));
+        });
+        b.show();
+    }
+
+    private boolean refreshInProgress;
+
+    // Fetches only the rows that were logged after the last row of the current capture
+    private void refresh() {
+        if (refreshInProgress || viewModel.pendingCapture != null) {
+            return;
+        }
+        ApplicationInfo targetApp = null;
+        // projections are refreshed by refreshing the whole shared capture
+        if (viewModel.appCapture) {
+            targetApp = getTargetAppInfo();
+            if (targetApp == null) {
+                return;
+            }
+        }
+        LogStore store = viewModel.store;
+        ArrayList<String> args = createLogcatArgs(targetApp);
+        long lastTime = store.getLastRecordTime();
+        if (lastTime != LogStore.NO_TIME) {
+            args.add("-T");
+            args.add(String.format("%d.%03d", lastTime / 1000, lastTime % 1000));
+        }
+        LogcatCapture capture = createCapture(args);
+        capture.setTimeout(CAPTURE_TIMEOUT_MS);
+
+        refreshInProgress = true;
+        Runnable cancelHook = capture::cancel;
+        tasks.addCancelHook(cancelHook);
+        tasks.execute(TaskExecutors.IO, () -> {
+            boolean captured = false;
+            long start = Metrics.REFRESH.begin();
+            try {
+                capture.loadEventTags();
+                for (List<String> c : capture.createCommands()) {
+                    Log.d(TAG, "refresh command: " + String.join(" ", c));
+                }
+                capture.run();
+                // rows of a partial delta might be missing from its end, they'd be skipped by
+                // the next refresh
+                captured = capture.getPartialReason() == null;
+            } catch (IOException|InterruptedException e) {
+                Log.e(TAG, "", e);
+            } finally {
+                LogStore s = capture.store;
+                Metrics.REFRESH.end(start, s.getTextBytes(), s.size());
+            }
+            tasks.removeCancelHook(cancelHook);
+            if (captured) {
+                // Appended on this thread, it can spill blocks of the store to disk. The store
+                // might be shared with other activities (e.g. a SystemCaptureCache entry), their
+                // refreshes are serialized by the store lock. Rows that another refresh has
+                // appended in the meantime are skipped by appendDelta().
+                synchronized (store) {
+                    store.appendDelta(capture.store);
+                }
+            }
+            final boolean success = captured;
+            tasks.post(() -> {
+                refreshInProgress = false;
+                if (!success) {
+                    return;
+                }
+                viewModel.onStoreUpdated();
+                updateIncarnationRows();
+                onViewModelGrew(viewModel);
+                onBodyRowsAppended();
+                resolveUidLabels();
+            });
+        });
     }
 
     @Override
@@ -175,9 +756,34 @@ public class LogcatActivity extends BaseActivity {
     }
 
     @Override
-    String prepareLineForDisplay(String s) {
-        String res = s.replace('\t', ' ');
-        return res.trim();
+    int getDisplayFlags() {
+        return LineChars.REPLACE_TABS | LineChars.TRIM;
+    }
+
+    // rows of app logs all have the same uid, and they are captured without the uid format
+    private boolean showsUidLabels() {
+        return getLogType() != TYPE_APP_LOG;
+    }
+
+    // names of uids are resolved in the background after a capture, rows are rebound once they
+    // are available
+    private void resolveUidLabels() {
+        if (showsUidLabels()) {
+            UidLabelResolver.get(this).resolve(viewModel.store, () -> {
+                if (!isDestroyed()) {
+                    updateListItems();
+                }
+            });
+        }
+    }
+
+    @Nullable
+    @Override
+    String getRowLabel(LogStore store, int row) {
+        if (!showsUidLabels() || !store.isRecord(row)) {
+            return null;
+        }
+        return UidLabelResolver.get(this).getCachedLabel(store.getUid(row));
     }
 
     @Override
@@ -197,6 +803,14 @@ public class LogcatActivity extends BaseActivity {
                     return singletonList(bb);
                 }
             }
+            case TYPE_SYSTEM_LOG -> {
+                var bb = new BottomButton(getText(R.string.action_show_event_log), v -> {
+                    var i = new Intent(this, LogcatActivity.class);
+                    i.setAction(ACTION_SHOW_EVENT_LOG);
+                    startActivity(i);
+                });
+                return singletonList(bb);
+            }
         }
 
         return emptyList();
@@ -204,6 +818,9 @@ public class LogcatActivity extends BaseActivity {
 
     private int getLogType() {
         Intent i = getIntent();
+        if (ACTION_SHOW_EVENT_LOG.equals(i.getAction())) {
+            return TYPE_EVENT_LOG;
+        }
         String targetPkg = i.getStringExtra(Intent.EXTRA_PACKAGE_NAME);
         if (targetPkg != null) {
             return TYPE_APP_LOG;
@@ -234,35 +851,112 @@ public class LogcatActivity extends BaseActivity {
         return getIntent().getStringExtra(EXTRA_FILTER_REGEX);
     }
 
+    @Nullable
+    private String getQuery() {
+        return getIntent().getStringExtra(EXTRA_QUERY);
+    }
+
+    @Nullable
+    private static LogQuery createQuery(@Nullable String query) {
+        if (query == null || query.isBlank()) {
+            return null;
+        }
+        try {
+            return LogQuery.parse(query);
+        } catch (IllegalArgumentException e) {
+            // the query dialog rejects invalid queries
+            Log.w(TAG, "invalid query", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static RegexFilter createRegexFilter(@Nullable String regex) {
+        if (isEmpty(regex)) {
+            return null;
+        }
+        try {
+            return RegexFilter.compile(regex);
+        } catch (PatternSyntaxException e) {
+            // extras can be set by the caller, the filter dialog rejects invalid regexes
+            Log.w(TAG, "invalid filter regex", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private String getEventFilter() {
+        if (getLogType() != TYPE_EVENT_LOG) {
+            return null;
+        }
+        return getIntent().getStringExtra(EXTRA_EVENT_FILTER);
+    }
+
+    private boolean isParallelCapture() {
+        return getIntent().getBooleanExtra(EXTRA_PARALLEL_CAPTURE, false);
+    }
+
+    // 0 means that all logs of the app's uid are shown
+    private int getProcessIncarnations() {
+        if (getLogType() != TYPE_APP_LOG || !isSystemUser) {
+            return 0;
+        }
+        return max(0, getIntent().getIntExtra(EXTRA_PROCESS_INCARNATIONS, 0));
+    }
+
+    private MenuItem miRefresh;
     private MenuItem miLogBuffers;
     private MenuItem miLogLevel;
     private MenuItem miSetFilter;
+    private MenuItem miQuery;
+    private MenuItem miParallelCapture;
+    private MenuItem miStream;
+    private MenuItem miProcesses;
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
+        miRefresh = menu.add(R.string.action_refresh)
+                .setIcon(R.drawable.ic_refresh)
+                .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_IF_ROOM);
         miSetFilter = menu.add(R.string.set_filter)
                 .setIcon(R.drawable.ic_search)
                 .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_IF_ROOM);
+        miQuery = menu.add(R.string.query);
         if (getLogType() != TYPE_EVENT_LOG) {
             miLogLevel = menu.add(R.string.log_level)
                     .setIcon(R.drawable.ic_log_level)
                     .setShowAsActionFlags(MenuItem.SHOW_AS_ACTION_IF_ROOM);
         }
-        miLogBuffers = menu.add(R.string.log_buffers);
+        if (getLogType() == TYPE_APP_LOG && isSystemUser) {
+            miProcesses = menu.add(R.string.app_processes);
+        }
+        if (getLogType() != TYPE_EVENT_LOG) {
+            miLogBuffers = menu.add(R.string.log_buffers);
+        }
+        miParallelCapture = menu.add(R.string.parallel_capture)
+                .setCheckable(true)
+                .setChecked(isParallelCapture());
+        miStream = menu.add(R.string.stream_to_adb)
+                .setCheckable(true)
+                .setChecked(streamServer != null);
         return true;
     }
 
     private ArrayList<String> getLogBuffers() {
         ArrayList<String> l = getIntent().getStringArrayListExtra(EXTRA_LOG_BUFFERS);
         if (l == null) {
-            l = getDefaultLogBuffers();
+            l = getDefaultLogBuffers(getLogType());
         }
         return l;
     }
 
-    private static ArrayList<String> getDefaultLogBuffers() {
+    private static ArrayList<String> getDefaultLogBuffers(int logType) {
         var l = new ArrayList<String>();
+        if (logType == TYPE_EVENT_LOG) {
+            l.add("events");
+            return l;
+        }
         l.add("main");
         l.add("system");
         l.add("crash");
@@ -276,6 +970,11 @@ public class LogcatActivity extends BaseActivity {
             return true;
         }
 
+        if (item == miRefresh) {
+            refresh();
+            return true;
+        }
+
         if (item == miLogBuffers) {
             var b = new AlertDialog.Builder(this);
             b.setTitle(R.string.log_buffers);
@@ -298,7 +997,7 @@ public class LogcatActivity extends BaseActivity {
                 if (list.isEmpty()) {
                     return;
                 }
-                var i = new Intent(getIntent());
+                var i = createRelaunchIntent();
                 i.putExtra(EXTRA_LOG_BUFFERS, list);
                 startActivity(i);
             });
@@ -310,7 +1009,7 @@ public class LogcatActivity extends BaseActivity {
             var map = LOG_LEVELS;
             int numLevels = map.size();
 
-            int curLevel = getLogLevel();
+            int curLevel = viewModel.filterLevel;
             String[] items = new String[numLevels];
             int curLevelIdx = 0;
             for (int i = 0; i < numLevels; ++i) {
@@ -324,8 +1023,33 @@ public class LogcatActivity extends BaseActivity {
             var b = new AlertDialog.Builder(this);
             b.setTitle(R.string.log_level);
             b.setSingleChoiceItems(items, curLevelIdx, (d, idx) -> {
-                var i = new Intent(getIntent());
-                i.putExtra(EXTRA_LOG_LEVEL, map.keyAt(idx));
+                ViewModel vm = viewModel;
+                setFilters(map.keyAt(idx), vm.filterRegex, vm.query);
+                d.dismiss();
+            });
+            b.show();
+            return true;
+        }
+
+        if (item == miProcesses) {
+            int[] values = { 0, 1, 3, 5 };
+            String[] items = new String[values.length];
+            int curIdx = 0;
+            int cur = getProcessIncarnations();
+            for (int i = 0; i < values.length; ++i) {
+                int v = values[i];
+                items[i] = v == 0 ? getString(R.string.all_processes)
+                        : getResources().getQuantityString(R.plurals.last_processes, v, v);
+                if (v == cur) {
+                    curIdx = i;
+                }
+            }
+
+            var b = new AlertDialog.Builder(this);
+            b.setTitle(R.string.app_processes);
+            b.setSingleChoiceItems(items, curIdx, (d, idx) -> {
+                var i = createRelaunchIntent();
+                i.putExtra(EXTRA_PROCESS_INCARNATIONS, values[idx]);
                 startActivity(i);
                 d.dismiss();
             });
@@ -333,15 +1057,65 @@ public class LogcatActivity extends BaseActivity {
             return true;
         }
 
+        if (item == miStream) {
+            toggleStreamServer();
+            item.setChecked(streamServer != null);
+            return true;
+        }
+
+        if (item == miParallelCapture) {
+            var i = createRelaunchIntent();
+            i.putExtra(EXTRA_PARALLEL_CAPTURE, !isParallelCapture());
+            startActivity(i);
+            return true;
+        }
+
+        if (item == miQuery) {
+            String initial = viewModel.query;
+            EditorDialog.show(this, true, getText(R.string.query), initial, getText(R.string.query_editor_hint),
+                    (Editable res) -> {
+                String s = res.toString().trim();
+                if (!s.isEmpty()) {
+                    try {
+                        LogQuery.parse(s);
+                    } catch (IllegalArgumentException e) {
+                        ErrorDialog.show(this, getText(R.string.invalid_query), e);
+                        return;
+                    }
+                }
+                if (!isEmpty(s) || !isEmpty(initial)) {
+                    ViewModel vm = viewModel;
+                    setFilters(vm.filterLevel, vm.filterRegex, s);
+                }
+            });
+            return true;
+        }
+
         if (item == miSetFilter) {
-            String initial = getFilterRegex();
-            EditorDialog.show(this, true, getText(R.string.set_filter), initial,
-                    getText(R.string.set_filter_editor_hint), (Editable res) -> {
+            boolean eventLog = getLogType() == TYPE_EVENT_LOG;
+            String initial = eventLog ? getEventFilter() : viewModel.filterRegex;
+            CharSequence hint = getText(eventLog ? R.string.set_event_filter_editor_hint : R.string.set_filter_editor_hint);
+            EditorDialog.show(this, true, getText(R.string.set_filter), initial, hint, (Editable res) -> {
                 String s = res.toString();
-                if (!isEmpty(s) || !isEmpty(initial)) {
-                    var i = new Intent(getIntent());
-                    i.putExtra(EXTRA_FILTER_REGEX, s);
+                if (!eventLog && !isEmpty(s)) {
+                    try {
+                        Pattern.compile(s);
+                    } catch (PatternSyntaxException e) {
+                        ErrorDialog.show(this, getText(R.string.invalid_filter_regex), e);
+                        return;
+                    }
+                }
+                if (isEmpty(s) && isEmpty(initial)) {
+                    return;
+                }
+                if (eventLog) {
+                    // event filter is applied during capture
+                    var i = createRelaunchIntent();
+                    i.putExtra(EXTRA_EVENT_FILTER, s);
                     startActivity(i);
+                } else {
+                    ViewModel vm = viewModel;
+                    setFilters(vm.filterLevel, s, vm.query);
                 }
             });
             return true;
@@ -0,0 +1,407 @@
+package app.grapheneos.logviewer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Runs logcat and parses its output into a LogStore.
+// In parallel mode, a separate logcat process is spawned for each buffer and its output is parsed
+// on a separate thread. Per-buffer rows are merged by timestamp into the store while they are read.
+// When event log tags are available, the events buffer is read in the binary format and is decoded
+// in-app, and the kernel buffer can be read from dmesg. Both always require a separate process.
+// Output is parsed straight from the pipe into the store, without intermediate buffering: when
+// parsing falls behind, the pipe fills up and logcat blocks on write.
+// A capture can be cancelled or can time out, rows that were read up to that point are kept.
+// This class doesn't depend on Android APIs, captures can be run on the host with a stand-in for
+// the logcat binary, see setLogcatCommand().
+class LogcatCapture {
+    private static final String EVENTS_BUFFER = "events";
+    private static final String KERNEL_BUFFER = "kernel";
+
+    final List<String> buffers;
+    // logcat arguments, except for the buffer list
+    final List<String> args;
+    final boolean parallel;
+
+    final LogStore store = new LogStore();
+    final List<Integer> exitCodes = new ArrayList<>();
+
+    // guarded by itself
+    private final List<Process> processes = new ArrayList<>();
+    private boolean finished;
+    private volatile boolean cancelled;
+    private volatile boolean timedOut;
+    // 0 means no timeout
+    private long timeoutMs;
+
+    // null if the events buffer is read as text
+    private EventLogTags eventTags;
+    private EventLogDecoder.Filter eventFilter;
+    // loads eventTags on the capture thread, null if they are already set or aren't used
+    private Supplier<EventLogTags> eventTagsLoader;
+    private String eventFilterSpec;
+    // offset from the kernel log clock to epoch time, NO_TIME if the kernel buffer is read from logcat
+    private long kernelEpochOffset = LogStore.NO_TIME;
+    // null if stores are kept on heap
+    private File spillDir;
+    // logcat arguments are appended to it
+    private List<String> logcatCommand = List.of("logcat");
+
+    // bounds of on-heap text of stores, see LogStore.enableSpilling()
+    static final int MAX_RESIDENT_BLOCKS = 32;
+    static final int MAX_PAGED_IN_BLOCKS = 16;
+    // per-buffer stores are read only sequentially by the merge
+    private static final int MAX_RESIDENT_BUFFER_BLOCKS = 4;
+    // interval of merging rows of parallel readers into the store
+    private static final long MERGE_INTERVAL_MS = 50;
+
+    LogcatCapture(List<String> buffers, List<String> args, boolean parallel) {
+        this.buffers = buffers;
+        this.args = args;
+        this.parallel = parallel && buffers.size() > 1;
+    }
+
+    // Filter is applied during decoding, only events that match it are stored. Text filters
+    // (--regex) aren't applied to the binary output.
+    void setEventDecoding(EventLogTags tags, EventLogDecoder.Filter filter) {
+        eventTags = tags;
+        eventFilter = filter;
+    }
+
+    // Like setEventDecoding(), but tags are loaded by loadEventTags(), which can be slow on the first
+    // load, e.g. EventLogTags.getSystemTags(). The events buffer is read as text if the loader
+    // returns null. filterSpec can be null, see EventLogDecoder.Filter.parse().
+    void setEventDecoding(Supplier<EventLogTags> tagsLoader, String filterSpec) {
+        eventTagsLoader = tagsLoader;
+        eventFilterSpec = filterSpec;
+    }
+
+    // Loads event log tags of setEventDecoding(Supplier, String). Called by run(), it can be called
+    // earlier on the same thread, e.g. before createCommands().
+    void loadEventTags() {
+        Supplier<EventLogTags> loader = eventTagsLoader;
+        if (loader == null) {
+            return;
+        }
+        eventTagsLoader = null;
+        EventLogTags tags = loader.get();
+        if (tags != null) {
+            setEventDecoding(tags, eventFilterSpec != null ? EventLogDecoder.Filter.parse(eventFilterSpec, tags) : null);
+        }
+    }
+
+    // Cancels the capture if it doesn't finish within timeoutMs, e.g. when logd is stalled
+    void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    // Runs cmd instead of logcat, e.g. LogcatReplay of the benchmark module in host-side load tests
+    void setLogcatCommand(List<String> cmd) {
+        logcatCommand = List.copyOf(cmd);
+    }
+
+    // Bounds memory usage of large captures, old text blocks are moved to files in dir
+    void setSpillDir(File dir) throws IOException {
+        spillDir = dir;
+        store.enableSpilling(dir, MAX_RESIDENT_BLOCKS, MAX_PAGED_IN_BLOCKS);
+    }
+
+    // Reads kernel log with "dmesg -r" instead of reading the logcat kernel buffer, which isn't
+    // populated on all devices. Kernel timestamps are converted to epoch time by adding
+    // epochOffsetMs. Ignored when kernel log can't be filtered the same way as logcat output is,
+    // i.e. when --regex or --uid is used.
+    void setKernelLogFromDmesg(long epochOffsetMs) {
+        for (String arg : args) {
+            if (arg.startsWith("--regex=") || arg.startsWith("--uid=")) {
+                return;
+            }
+        }
+        kernelEpochOffset = epochOffsetMs;
+    }
+
+    // buffer list of each command
+    private List<String> getCommandBuffers() {
+        var res = new ArrayList<String>();
+        if (parallel) {
+            res.addAll(buffers);
+            return res;
+        }
+        var textBuffers = new ArrayList<String>();
+        var separate = new ArrayList<String>();
+        for (String b : buffers) {
+            (isBinary(b) || isDmesg(b) ? separate : textBuffers).add(b);
+        }
+        if (!textBuffers.isEmpty()) {
+            res.add(String.join(",", textBuffers));
+        }
+        res.addAll(separate);
+        return res;
+    }
+
+    private boolean isBinary(String cmdBuffers) {
+        return eventTags != null && cmdBuffers.equals(EVENTS_BUFFER);
+    }
+
+    private boolean isDmesg(String cmdBuffers) {
+        return kernelEpochOffset != LogStore.NO_TIME && cmdBuffers.equals(KERNEL_BUFFER);
+    }
+
+    List<List<String>> createCommands() {
+        var res = new ArrayList<List<String>>();
+        for (String b : getCommandBuffers()) {
+            res.add(createCommand(b));
+        }
+        return res;
+    }
+
+    private List<String> createCommand(String buffers) {
+        if (isDmesg(buffers)) {
+            return List.of("dmesg", "-r");
+        }
+        return createLogcatCommand(buffers);
+    }
+
+    private List<String> createLogcatCommand(String buffers) {
+        var cmd = new ArrayList<String>(logcatCommand.size() + args.size() + 2);
+        cmd.addAll(logcatCommand);
+        cmd.add("--buffer=" + buffers);
+        if (isBinary(buffers)) {
+            cmd.add("--binary");
+            for (String arg : args) {
+                // formatting arguments don't apply to the binary output
+                if (!arg.startsWith("--format=") && !arg.startsWith("--regex=") && !arg.equals("--dividers")) {
+                    cmd.add(arg);
+                }
+            }
+        } else {
+            cmd.addAll(args);
+        }
+        return cmd;
+    }
+
+    void run() throws IOException, InterruptedException {
+        loadEventTags();
+        ScheduledFuture<?> timeout = null;
+        if (timeoutMs > 0) {
+            timeout = TaskExecutors.SCHEDULER.schedule(() -> {
+                timedOut = true;
+                cancel();
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        try {
+            runInner();
+        } finally {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            synchronized (processes) {
+                finished = true;
+            }
+        }
+    }
+
+    private void runInner() throws IOException, InterruptedException {
+        List<String> cmdBuffers = getCommandBuffers();
+        if (cmdBuffers.size() == 1) {
+            read(cmdBuffers.get(0), store);
+            return;
+        }
+
+        int n = cmdBuffers.size();
+        var sources = new ArrayList<LogStore>(n);
+        var futures = new ArrayList<Future<?>>(n);
+        for (String b : cmdBuffers) {
+            var s = new LogStore();
+            if (spillDir != null) {
+                s.enableSpilling(spillDir, MAX_RESIDENT_BUFFER_BLOCKS, 2);
+            }
+            sources.add(s);
+            futures.add(TaskExecutors.IO.submit(() -> {
+                read(b, s);
+                return null;
+            }));
+        }
+
+        // rows are merged while they are read, readers only write to their own stores
+        var merger = new LogMerger(sources, store);
+        var finished = new boolean[n];
+        boolean completed = false;
+        try {
+            for (;;) {
+                boolean allFinished = true;
+                for (int i = 0; i < n; ++i) {
+                    Future<?> f = futures.get(i);
+                    finished[i] = f.isDone();
+                    if (finished[i]) {
+                        // a failed reader fails the capture without waiting for the others
+                        getResult(f);
+                    } else {
+                        allFinished = false;
+                    }
+                }
+                long mergeStart = Metrics.MERGE.begin();
+                long textBytes = store.getTextBytes();
+                int rows = merger.advance(finished);
+                if (rows != 0) {
+                    Metrics.MERGE.end(mergeStart, store.getTextBytes() - textBytes, rows);
+                }
+                if (allFinished) {
+                    break;
+                }
+                Thread.sleep(MERGE_INTERVAL_MS);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                // kills logcat processes of the remaining readers, their tasks would otherwise
+                // keep running until logcat exits
+                cancel();
+                for (Future<?> f : futures) {
+                    f.cancel(true);
+                }
+            }
+        }
+    }
+
+    private static void getResult(Future<?> f) throws IOException, InterruptedException {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void read(String cmdBuffers, LogStore dst) throws IOException, InterruptedException {
+        if (isDmesg(cmdBuffers)) {
+            int ret = read(createCommand(cmdBuffers), cmdBuffers, dst);
+            if (ret == 0 || dst.size() != 0) {
+                return;
+            }
+            if (cancelled) {
+                return;
+            }
+            // dmesg isn't allowed, fall back to the logcat kernel buffer
+            cmdBuffers = KERNEL_BUFFER;
+            read(createLogcatCommand(cmdBuffers), cmdBuffers, dst);
+            return;
+        }
+        read(createCommand(cmdBuffers), cmdBuffers, dst);
+    }
+
+    // Kills logcat processes, run() then returns soon. Rows that were read before cancellation stay
+    // in the store. No-op if the capture has already finished.
+    void cancel() {
+        synchronized (processes) {
+            if (finished) {
+                return;
+            }
+            cancelled = true;
+            for (Process p : processes) {
+                p.destroy();
+            }
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    // null if the capture was completed, otherwise the reason why it was cut short
+    String getPartialReason() {
+        if (!cancelled) {
+            return null;
+        }
+        return timedOut ? "timeout" : "cancelled";
+    }
+
+    private Process startProcess(List<String> cmd) throws IOException {
+        Process proc = new ProcessBuilder(cmd).start();
+        synchronized (processes) {
+            processes.add(proc);
+            if (cancelled) {
+                proc.destroy();
+            }
+        }
+        return proc;
+    }
+
+    // returns exit code of the process
+    private int read(List<String> cmd, String cmdBuffers, LogStore dst) throws IOException, InterruptedException {
+        Process proc = startProcess(cmd);
+        long start = Metrics.PARSE.begin();
+        long bytes = 0;
+        try (InputStream is = proc.getInputStream()) {
+            if (cmd.get(0).equals("dmesg")) {
+                var parser = new KernelLogParser(kernelEpochOffset);
+                parser.setMinLevel(getMinLevel());
+                parser.setMinTime(getMinTime());
+                bytes = parser.parse(is, dst);
+            } else if (isBinary(cmdBuffers)) {
+                bytes = new EventLogDecoder(eventTags, eventFilter).decode(new BufferedInputStream(is), dst);
+            } else {
+                var parser = new LogParser();
+                // output of multi-buffer commands contains dividers
+                int bufferId = LogStore.getBufferId(cmdBuffers);
+                if (bufferId != LogStore.UNKNOWN) {
+                    parser.setBuffer(bufferId);
+                }
+                bytes = parser.parse(is, dst);
+            }
+        } catch (IOException e) {
+            // pipe might be closed by cancel() while it's being read
+            if (!cancelled) {
+                throw e;
+            }
+        } finally {
+            Metrics.PARSE.end(start, bytes, dst.size());
+        }
+        int ret = proc.waitFor();
+        synchronized (exitCodes) {
+            exitCodes.add(ret);
+        }
+        return ret;
+    }
+
+    // logcat level filter, e.g. "*:W"
+    private byte getMinLevel() {
+        for (String arg : args) {
+            if (arg.length() == 3 && arg.startsWith("*:")) {
+                byte level = LogParser.parseLevel((byte) arg.charAt(2));
+                if (level != LogStore.LEVEL_NONE) {
+                    return level;
+                }
+            }
+        }
+        return 2; // VERBOSE
+    }
+
+    // logcat -T <sec.ms>
+    private long getMinTime() {
+        int i = args.indexOf("-T");
+        if (i < 0 || i + 1 == args.size()) {
+            return LogStore.NO_TIME;
+        }
+        String s = args.get(i + 1);
+        int dot = s.indexOf('.');
+        try {
+            if (dot < 0) {
+                return Long.parseLong(s) * 1000;
+            }
+            return Long.parseLong(s.substring(0, dot)) * 1000 + Long.parseLong(s.substring(dot + 1));
+        } catch (NumberFormatException e) {
+            return LogStore.NO_TIME;
+        }
+    }
+}
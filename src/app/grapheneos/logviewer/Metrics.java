@@ -0,0 +1,298 @@
+package app.grapheneos.logviewer;
+
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-process performance counters for the log pipeline. Recording is lock-free to keep overhead
+// low on hot paths, e.g. list item binding. Stages are also emitted as Trace sections, which makes
+// them visible in Perfetto traces.
+class Metrics {
+    static final Stage CAPTURE = new Stage("capture");
+    static final Stage PARSE = new Stage("parse");
+    static final Stage MERGE = new Stage("merge");
+    static final Stage REFRESH = new Stage("refresh");
+    static final Stage DECODE = new Stage("decode");
+    static final Stage INDEX = new Stage("index");
+    static final Stage FILTER = new Stage("filter");
+    static final Stage FIRST_FRAME = new Stage("firstFrame");
+    static final Stage BIND = new Stage("bind");
+    static final Stage SHARE = new Stage("share");
+    static final Stage SAVE = new Stage("save");
+
+    private static final Stage[] STAGES = {
+        CAPTURE, PARSE, MERGE, REFRESH, DECODE, INDEX, FILTER, FIRST_FRAME, BIND, SHARE, SAVE,
+    };
+
+    static final ExecutorStats IO_EXECUTOR = new ExecutorStats("ioExecutor");
+    static final ExecutorStats CPU_EXECUTOR = new ExecutorStats("cpuExecutor");
+
+    private static final ExecutorStats[] EXECUTORS = { IO_EXECUTOR, CPU_EXECUTOR };
+
+    // current values that are reported along with the counters, e.g. cache sizes, guarded by
+    // itself
+    private static final ArrayList<Gauge> gauges = new ArrayList<>();
+
+    private static class Gauge {
+        final String name;
+        final Supplier<String> value;
+
+        Gauge(String name, Supplier<String> value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    static void addGauge(String name, Supplier<String> value) {
+        synchronized (gauges) {
+            gauges.add(new Gauge(name, value));
+        }
+    }
+
+    // toggled from the debug panel
+    static volatile boolean includeInExports;
+
+    // cookies of async trace sections, they must be unique among concurrent sections of a stage
+    private static final AtomicInteger asyncCookies = new AtomicInteger();
+
+    static class AsyncSection {
+        final int cookie;
+        final long startNs;
+
+        AsyncSection(int cookie, long startNs) {
+            this.cookie = cookie;
+            this.startNs = startNs;
+        }
+    }
+
+    // Histogram with power-of-two buckets, bucket i holds values in [2^(i-1), 2^i)
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong max = new AtomicLong();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long v) {
+            if (v < 0) {
+                v = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+            count.increment();
+            sum.add(v);
+            long prevMax;
+            while ((prevMax = max.get()) < v) {
+                if (max.compareAndSet(prevMax, v)) {
+                    break;
+                }
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // returns the upper bound of the bucket that contains the given percentile
+        long percentile(double p) {
+            long total = 0;
+            long[] snapshot = new long[buckets.length()];
+            for (int i = 0; i < snapshot.length; ++i) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; ++i) {
+                seen += snapshot[i];
+                if (seen >= threshold) {
+                    if (i == 0) {
+                        // bucket 0 holds only zero values
+                        return 0;
+                    }
+                    return i == 63 ? max() : Math.min(max(), (1L << i) - 1);
+                }
+            }
+            return max();
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); ++i) {
+                buckets.set(i, 0);
+            }
+            max.set(0);
+            count.reset();
+            sum.reset();
+        }
+    }
+
+    static class Stage {
+        final String name;
+        final String traceName;
+        final Histogram durationNs = new Histogram();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder items = new LongAdder();
+
+        Stage(String name) {
+            this.name = name;
+            this.traceName = "LogViewer:" + name;
+        }
+
+        // begin() and end() must be called on the same thread, see Trace.beginSection()
+        long begin() {
+            Trace.beginSection(traceName);
+            return System.nanoTime();
+        }
+
+        void end(long startNs) {
+            end(startNs, 0, 0);
+        }
+
+        void end(long startNs, long bytes, long items) {
+            Trace.endSection();
+            record(System.nanoTime() - startNs, bytes, items);
+        }
+
+        // for stages that span multiple callbacks or threads
+        AsyncSection beginAsync() {
+            int cookie = asyncCookies.incrementAndGet();
+            Trace.beginAsyncSection(traceName, cookie);
+            return new AsyncSection(cookie, System.nanoTime());
+        }
+
+        void endAsync(AsyncSection s) {
+            Trace.endAsyncSection(traceName, s.cookie);
+            record(System.nanoTime() - s.startNs, 0, 0);
+        }
+
+        void record(long durationNs, long bytes, long items) {
+            this.durationNs.record(durationNs);
+            if (bytes != 0) {
+                this.bytes.add(bytes);
+            }
+            if (items != 0) {
+                this.items.add(items);
+            }
+        }
+
+        void reset() {
+            durationNs.reset();
+            bytes.reset();
+            items.reset();
+        }
+
+        String describe() {
+            Histogram h = durationNs;
+            long count = h.count();
+            var b = new StringBuilder(100);
+            b.append("count=").append(count);
+            if (count == 0) {
+                return b.toString();
+            }
+            b.append(" p50=").append(formatNs(h.percentile(0.5)));
+            b.append(" p90=").append(formatNs(h.percentile(0.9)));
+            b.append(" p99=").append(formatNs(h.percentile(0.99)));
+            b.append(" max=").append(formatNs(h.max()));
+            long bytes = this.bytes.sum();
+            if (bytes != 0) {
+                b.append(" bytes=").append(bytes);
+                long totalNs = h.sum();
+                if (totalNs > 0) {
+                    double mbPerSec = (bytes / (double) (1 << 20)) / (totalNs / 1e9);
+                    b.append(String.format(" (%.1f MiB/s)", mbPerSec));
+                }
+            }
+            long items = this.items.sum();
+            if (items != 0) {
+                b.append(" items=").append(items);
+            }
+            return b.toString();
+        }
+    }
+
+    // see TaskExecutors
+    static class ExecutorStats {
+        final String name;
+        // number of queued tasks at the time of submission
+        final Histogram queueDepth = new Histogram();
+        // time from submission to start
+        final Histogram waitNs = new Histogram();
+        final Histogram runNs = new Histogram();
+
+        ExecutorStats(String name) {
+            this.name = name;
+        }
+
+        void reset() {
+            queueDepth.reset();
+            waitNs.reset();
+            runNs.reset();
+        }
+
+        String describe() {
+            long count = runNs.count();
+            var b = new StringBuilder(100);
+            b.append("count=").append(count);
+            if (count == 0) {
+                return b.toString();
+            }
+            b.append(" wait.p50=").append(formatNs(waitNs.percentile(0.5)));
+            b.append(" wait.p99=").append(formatNs(waitNs.percentile(0.99)));
+            b.append(" run.p50=").append(formatNs(runNs.percentile(0.5)));
+            b.append(" run.max=").append(formatNs(runNs.max()));
+            b.append(" depth.p99=").append(queueDepth.percentile(0.99));
+            b.append(" depth.max=").append(queueDepth.max());
+            return b.toString();
+        }
+    }
+
+    static String formatNs(long ns) {
+        if (ns < 10_000) {
+            return ns + "ns";
+        }
+        if (ns < 10_000_000) {
+            return (ns / 1000) + "us";
+        }
+        return (ns / 1_000_000) + "ms";
+    }
+
+    static List<String> createReportLines() {
+        var l = new ArrayList<String>(STAGES.length + EXECUTORS.length);
+        for (Stage s : STAGES) {
+            l.add(s.name + ": " + s.describe());
+        }
+        for (ExecutorStats e : EXECUTORS) {
+            l.add(e.name + ": " + e.describe());
+        }
+        synchronized (gauges) {
+            for (Gauge g : gauges) {
+                l.add(g.name + ": " + g.value.get());
+            }
+        }
+        return l;
+    }
+
+    static void reset() {
+        for (Stage s : STAGES) {
+            s.reset();
+        }
+        for (ExecutorStats e : EXECUTORS) {
+            e.reset();
+        }
+    }
+}
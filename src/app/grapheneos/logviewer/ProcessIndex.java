@@ -0,0 +1,293 @@
+package app.grapheneos.logviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Time-ranged pid -> process index, built from process lifecycle events of the events buffer
+// (am_proc_start, am_proc_died, am_kill). It allows to attribute rows to processes even when pids
+// are reused, and to find rows of specific process incarnations.
+// Captures of the system log contain processes of all users and profiles, which have the same
+// process names, so processes of a package are matched by both name and uid.
+class ProcessIndex {
+    // see android.os.UserHandle.PER_USER_RANGE
+    private static final int PER_USER_RANGE = 100000;
+
+    static class Process {
+        final int pid;
+        final int userId;
+        // UNKNOWN if the start of the process isn't in the log
+        final int uid;
+        final String name;
+        // NO_TIME if the process was started before the beginning of the log
+        final long startTime;
+        long endTime = Long.MAX_VALUE;
+
+        Process(int pid, int userId, int uid, String name, long startTime) {
+            this.pid = pid;
+            this.userId = userId;
+            this.uid = uid;
+            this.name = name;
+            this.startTime = startTime;
+        }
+
+        boolean contains(long time) {
+            return time >= startTime && time <= endTime;
+        }
+
+        boolean belongsTo(String pkgName, int pkgUid) {
+            // death events don't have the uid, only the user
+            boolean sameUid = uid != LogStore.UNKNOWN ? uid == pkgUid
+                    : userId != LogStore.UNKNOWN && userId == pkgUid / PER_USER_RANGE;
+            return sameUid && (name.equals(pkgName) || (name.startsWith(pkgName)
+                    && name.length() > pkgName.length() && name.charAt(pkgName.length()) == ':'));
+        }
+    }
+
+    private final LogStore store;
+    // incarnations of each pid, ordered by start time
+    private final HashMap<Integer, ArrayList<Process>> processesByPid = new HashMap<>();
+    // all incarnations, in the order of their appearance in the log
+    private final ArrayList<Process> processes = new ArrayList<>();
+
+    // row lists returned by getRows(), they are extended by onRecordRow()
+    private final HashMap<String, PackageRows> packageRows = new HashMap<>();
+
+    private static class PackageRows {
+        final String pkgName;
+        final int uid;
+        final int maxIncarnations;
+        // start time of the oldest included incarnation
+        final long since;
+        final RowList rows;
+        // number of included incarnations, including the ones that were started later
+        int incarnations;
+        // set when more than maxIncarnations were started, the oldest ones have to be dropped,
+        // which is done by recomputing the rows
+        boolean stale;
+
+        PackageRows(String pkgName, int uid, int maxIncarnations, long since, int incarnations, RowList rows) {
+            this.pkgName = pkgName;
+            this.uid = uid;
+            this.maxIncarnations = maxIncarnations;
+            this.since = since;
+            this.incarnations = incarnations;
+            this.rows = rows;
+        }
+    }
+
+    private int tagProcStart = LogStore.UNKNOWN;
+    private int tagProcDied = LogStore.UNKNOWN;
+    private int tagKill = LogStore.UNKNOWN;
+    // size of the tag table when the tags were looked up
+    private int lookedUpTagCount;
+
+    ProcessIndex(LogStore store) {
+        this.store = store;
+    }
+
+    // called by LogIndex for each new row of the events buffer
+    void onEventRow(int row) {
+        LogStore s = store;
+        int tag = s.getTag(row);
+        if (tag == LogStore.UNKNOWN) {
+            return;
+        }
+        LogStore.TagTable tags = s.tags;
+        if ((tagProcStart == LogStore.UNKNOWN || tagProcDied == LogStore.UNKNOWN || tagKill == LogStore.UNKNOWN)
+                && tags.size() != lookedUpTagCount) {
+            // tags might not be interned yet, they are looked up again only when new tags were
+            // interned
+            lookedUpTagCount = tags.size();
+            tagProcStart = tags.find("am_proc_start");
+            tagProcDied = tags.find("am_proc_died");
+            tagKill = tags.find("am_kill");
+        }
+        if (tag != tagProcStart && tag != tagProcDied && tag != tagKill) {
+            return;
+        }
+
+        // [User=0,PID=1234,UID=10097,Process Name=com.example,...] or [0,1234,10097,com.example,...]
+        List<String> fields = parseEventFields(s, row);
+        long time = s.getTime(row);
+        if (tag == tagProcStart) {
+            // User, PID, UID, Process Name, Type, Component
+            if (fields.size() < 4) {
+                return;
+            }
+            int pid = parseInt(fields.get(1));
+            int uid = parseInt(fields.get(2));
+            if (pid == LogStore.UNKNOWN) {
+                return;
+            }
+            ArrayList<Process> l = getProcesses(pid);
+            if (!l.isEmpty()) {
+                Process prev = l.get(l.size() - 1);
+                if (prev.endTime == Long.MAX_VALUE) {
+                    // death of the previous incarnation wasn't logged
+                    prev.endTime = time - 1;
+                }
+            }
+            var p = new Process(pid, parseInt(fields.get(0)), uid, fields.get(3), time);
+            l.add(p);
+            processes.add(p);
+            for (PackageRows pr : packageRows.values()) {
+                if (!pr.stale && p.belongsTo(pr.pkgName, pr.uid) && ++pr.incarnations > pr.maxIncarnations) {
+                    pr.stale = true;
+                }
+            }
+        } else {
+            // User, PID, Process Name, ...
+            if (fields.size() < 3) {
+                return;
+            }
+            int pid = parseInt(fields.get(1));
+            if (pid == LogStore.UNKNOWN) {
+                return;
+            }
+            ArrayList<Process> l = getProcesses(pid);
+            Process last = l.isEmpty() ? null : l.get(l.size() - 1);
+            if (last != null && last.endTime == Long.MAX_VALUE) {
+                last.endTime = time;
+            } else if (last == null || last.endTime < time) {
+                // process was started before the beginning of the log
+                var p = new Process(pid, parseInt(fields.get(0)), LogStore.UNKNOWN, fields.get(2), LogStore.NO_TIME);
+                p.endTime = time;
+                l.add(last == null ? 0 : l.size(), p);
+                processes.add(p);
+            }
+        }
+    }
+
+    // called by LogIndex for each new record row, after onEventRow()
+    void onRecordRow(int row, int pid) {
+        if (packageRows.isEmpty()) {
+            return;
+        }
+        Process p = findProcess(pid, store.getTime(row));
+        if (p == null) {
+            return;
+        }
+        for (PackageRows pr : packageRows.values()) {
+            if (!pr.stale && p.startTime >= pr.since && p.belongsTo(pr.pkgName, pr.uid)) {
+                pr.rows.add(row);
+            }
+        }
+    }
+
+    private ArrayList<Process> getProcesses(int pid) {
+        return processesByPid.computeIfAbsent(pid, k -> new ArrayList<>());
+    }
+
+    // returns process that had the given pid at the given time, or null if it's unknown
+    Process findProcess(int pid, long time) {
+        ArrayList<Process> l = processesByPid.get(pid);
+        if (l == null) {
+            return null;
+        }
+        // last incarnation with startTime <= time
+        int lo = 0;
+        int hi = l.size() - 1;
+        int res = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (l.get(mid).startTime <= time) {
+                res = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (res < 0) {
+            return null;
+        }
+        Process p = l.get(res);
+        return p.contains(time) ? p : null;
+    }
+
+    // returns incarnations of processes of the given package and uid, most recent last
+    List<Process> getIncarnations(String pkgName, int uid) {
+        var res = new ArrayList<Process>();
+        for (Process p : processes) {
+            if (p.belongsTo(pkgName, uid)) {
+                res.add(p);
+            }
+        }
+        return res;
+    }
+
+    // Returns rows that were logged by the last maxIncarnations processes of the given package,
+    // uid is the uid of the package in the user whose processes are included. Processes of the
+    // package that were alive at the same time (e.g. ":remote" processes) are counted separately.
+    // Returned list is extended in place with rows of processes that are started later, until
+    // more than maxIncarnations processes were started. A new list is returned after that, callers
+    // that follow the store call this method again after LogIndex.update().
+    RowList getRows(LogIndex index, String pkgName, int uid, int maxIncarnations) {
+        String key = maxIncarnations + ":" + uid + ":" + pkgName;
+        PackageRows cached = packageRows.get(key);
+        if (cached != null && !cached.stale) {
+            return cached.rows;
+        }
+        List<Process> incarnations = getIncarnations(pkgName, uid);
+        int from = Math.max(0, incarnations.size() - maxIncarnations);
+        List<Process> included = incarnations.subList(from, incarnations.size());
+        long since = LogStore.NO_TIME;
+        if (!included.isEmpty()) {
+            since = Long.MAX_VALUE;
+            for (Process p : included) {
+                since = Math.min(since, p.startTime);
+            }
+        }
+        int[] rows = new int[0];
+        int numRows = 0;
+        for (Process p : included) {
+            RowList pidRows = index.getPidRows(p.pid);
+            for (int i = 0, m = pidRows.size(); i < m; ++i) {
+                int row = pidRows.get(i);
+                if (p.contains(store.getTime(row))) {
+                    if (numRows == rows.length) {
+                        rows = Arrays.copyOf(rows, Math.max(64, numRows * 2));
+                    }
+                    rows[numRows++] = row;
+                }
+            }
+        }
+        Arrays.sort(rows, 0, numRows);
+        var res = new RowList(numRows);
+        int prev = -1;
+        for (int i = 0; i < numRows; ++i) {
+            if (rows[i] != prev) {
+                res.add(rows[i]);
+                prev = rows[i];
+            }
+        }
+        packageRows.put(key, new PackageRows(pkgName, uid, maxIncarnations, since, included.size(), res));
+        return res;
+    }
+
+    static List<String> parseEventFields(LogStore s, int row) {
+        String msg = new String(s.textBlock(row), s.textOffset(row) + s.getMsgStart(row),
+                s.textLength(row) - s.getMsgStart(row), UTF_8).trim();
+        if (msg.length() < 2 || msg.charAt(0) != '[' || msg.charAt(msg.length() - 1) != ']') {
+            return List.of();
+        }
+        var res = new ArrayList<String>();
+        for (String f : msg.substring(1, msg.length() - 1).split(",")) {
+            // descriptive format prefixes values with field names
+            int eq = f.indexOf('=');
+            res.add(eq >= 0 ? f.substring(eq + 1) : f);
+        }
+        return res;
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return LogStore.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package app.grapheneos.logviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Regex filter of log messages, with the same semantics as "logcat --regex": a row matches if the
+// regex matches a part of its message.
+// Literal substrings that are contained in every match are extracted from the regex when it's
+// compiled. Messages are scanned for them in a single pass over raw UTF-8 bytes of the store, and
+// only messages that contain one of them are decoded and passed to the regex matcher. Most tag and
+// keyword filters have such literals. Literal extraction is conservative: when the regex has
+// constructs that it doesn't understand, no literals are extracted and every message is matched
+// with the regex.
+// Not thread-safe, the matcher is reused.
+class RegexFilter implements RowFilter {
+    final String regex;
+    private final Matcher matcher;
+    // null if there's no prefilter, otherwise each match contains at least one of these literals
+    private final byte[][] literals;
+    // literals are lowercase if ignoreCase is set, case is ignored only for ASCII letters, the
+    // same way as it's done by Pattern.CASE_INSENSITIVE
+    private final boolean ignoreCase;
+    // whether a byte is the first byte of one of the literals
+    private final boolean[] firstBytes = new boolean[256];
+
+    private RegexFilter(String regex, Pattern pattern, byte[][] literals, boolean ignoreCase) {
+        this.regex = regex;
+        this.matcher = pattern.matcher("");
+        this.literals = literals;
+        this.ignoreCase = ignoreCase;
+        if (literals != null) {
+            for (byte[] l : literals) {
+                firstBytes[l[0] & 0xff] = true;
+            }
+        }
+    }
+
+    // throws PatternSyntaxException if the regex is invalid
+    static RegexFilter compile(String regex) {
+        Pattern pattern = Pattern.compile(regex);
+        boolean ignoreCase = false;
+        String s = regex;
+        if (s.startsWith("(?i)")) {
+            ignoreCase = true;
+            s = s.substring(4);
+        }
+        byte[][] literals = null;
+        List<String> l = extractLiterals(s);
+        if (l != null) {
+            literals = new byte[l.size()][];
+            for (int i = 0; i < literals.length; ++i) {
+                String lit = l.get(i);
+                literals[i] = (ignoreCase ? toLowerAscii(lit) : lit).getBytes(UTF_8);
+            }
+        }
+        return new RegexFilter(regex, pattern, literals, ignoreCase);
+    }
+
+    @Override
+    public String getSpec() {
+        return regex;
+    }
+
+    boolean hasPrefilter() {
+        return literals != null;
+    }
+
+    @Override
+    public boolean matches(LogStore store, int row) {
+        int off = store.textOffset(row);
+        int msgStart = store.getMsgStart(row);
+        return matches(store.textBlock(row), off + msgStart, off + store.textLength(row));
+    }
+
+    // matches UTF-8 message text in b[start, end)
+    boolean matches(byte[] b, int start, int end) {
+        if (literals != null && !containsLiteral(b, start, end)) {
+            return false;
+        }
+        Matcher m = matcher;
+        m.reset(new String(b, start, end - start, UTF_8));
+        return m.find();
+    }
+
+    private boolean containsLiteral(byte[] b, int start, int end) {
+        boolean[] first = firstBytes;
+        byte[][] lits = literals;
+        boolean ic = ignoreCase;
+        for (int i = start; i < end; ++i) {
+            int c = b[i] & 0xff;
+            if (ic) {
+                c = toLowerAscii(c);
+            }
+            if (!first[c]) {
+                continue;
+            }
+            for (byte[] lit : lits) {
+                if ((lit[0] & 0xff) == c && regionMatches(b, i, end, lit, ic)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] b, int pos, int end, byte[] lit, boolean ignoreCase) {
+        if (end - pos < lit.length) {
+            return false;
+        }
+        for (int j = 1; j < lit.length; ++j) {
+            int c = b[pos + j] & 0xff;
+            if (ignoreCase) {
+                c = toLowerAscii(c);
+            }
+            if (c != (lit[j] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerAscii(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    private static String toLowerAscii(String s) {
+        var b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            b.append((char) toLowerAscii(s.charAt(i)));
+        }
+        return b.toString();
+    }
+
+    // Returns literals such that each match contains at least one of them, one literal for each
+    // top-level alternative. Returns null if there's an alternative without a required literal, or
+    // if the regex has unsupported constructs.
+    static List<String> extractLiterals(String regex) {
+        List<String> alternatives = splitAlternatives(regex);
+        if (alternatives == null) {
+            return null;
+        }
+        var res = new ArrayList<String>(alternatives.size());
+        for (String alt : alternatives) {
+            String lit = extractLongestLiteral(alt);
+            if (lit == null || lit.isEmpty()) {
+                return null;
+            }
+            if (!res.contains(lit)) {
+                res.add(lit);
+            }
+        }
+        return res;
+    }
+
+    // splits the regex at top-level '|' characters
+    private static List<String> splitAlternatives(String s) {
+        var res = new ArrayList<String>();
+        int depth = 0;
+        int altStart = 0;
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 < n && s.charAt(i + 1) == 'Q') {
+                        int e = s.indexOf("\\E", i + 2);
+                        i = e < 0 ? n : e + 1;
+                    } else {
+                        ++i;
+                    }
+                }
+                case '[' -> {
+                    i = skipClass(s, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                }
+                case '(' -> ++depth;
+                case ')' -> {
+                    if (--depth < 0) {
+                        return null;
+                    }
+                }
+                case '|' -> {
+                    if (depth == 0) {
+                        res.add(s.substring(altStart, i));
+                        altStart = i + 1;
+                    }
+                }
+            }
+        }
+        res.add(s.substring(altStart));
+        return res;
+    }
+
+    // returns index of the closing ']' of the character class that starts at i, -1 if it's unclosed
+    private static int skipClass(String s, int i) {
+        int n = s.length();
+        int depth = 0;
+        ++i;
+        if (i < n && s.charAt(i) == '^') {
+            ++i;
+        }
+        if (i < n && s.charAt(i) == ']') {
+            // literal ']'
+            ++i;
+        }
+        for (; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                ++i;
+            } else if (c == '[') {
+                ++depth;
+            } else if (c == ']') {
+                if (depth == 0) {
+                    return i;
+                }
+                --depth;
+            }
+        }
+        return -1;
+    }
+
+    // returns index after the group that starts at i, -1 if it's unclosed
+    private static int skipGroup(String s, int i) {
+        int depth = 0;
+        for (int n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                ++i;
+            } else if (c == '[') {
+                i = skipClass(s, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else if (c == '(') {
+                ++depth;
+            } else if (c == ')') {
+                if (--depth == 0) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Returns the longest literal that's contained in each match of an alternative without
+    // top-level '|', null if the alternative has unsupported constructs.
+    private static String extractLongestLiteral(String s) {
+        String best = "";
+        var run = new StringBuilder();
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            // literal text of the next item, null if it isn't a literal
+            String lit = null;
+            int next;
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 == n) {
+                        return null;
+                    }
+                    char e = s.charAt(i + 1);
+                    next = i + 2;
+                    if (e == 'Q') {
+                        int end = s.indexOf("\\E", next);
+                        lit = end < 0 ? s.substring(next) : s.substring(next, end);
+                        next = end < 0 ? n : end + 2;
+                    } else if (e == 't') {
+                        lit = "\t";
+                    } else if (e == 'n') {
+                        lit = "\n";
+                    } else if (!Character.isLetterOrDigit(e)) {
+                        // escaped metacharacter
+                        lit = String.valueOf(e);
+                    } else if ("dDsSwWbBAGzZ".indexOf(e) < 0) {
+                        // e.g. \p{...}, \x.., backreferences
+                        return null;
+                    }
+                }
+                case '[' -> {
+                    next = skipClass(s, i);
+                    if (next < 0) {
+                        return null;
+                    }
+                    ++next;
+                }
+                case '(' -> {
+                    if (i + 2 < n && s.charAt(i + 1) == '?' && "imsuxdU-".indexOf(s.charAt(i + 2)) >= 0) {
+                        // inline flags change how the rest of the regex is matched
+                        return null;
+                    }
+                    next = skipGroup(s, i);
+                    if (next < 0) {
+                        return null;
+                    }
+                }
+                case '.', '^', '$' -> next = i + 1;
+                case '*', '+', '?', '{', ')', ']', '}' -> {
+                    // quantifier without operand or unbalanced bracket, leave it to Pattern
+                    return null;
+                }
+                default -> {
+                    next = i + 1;
+                    if (Character.isHighSurrogate(c) && next < n) {
+                        ++next;
+                    }
+                    lit = s.substring(i, next);
+                }
+            }
+
+            int quantifier = getQuantifier(s, next);
+            if (lit == null) {
+                best = longer(best, run);
+                run.setLength(0);
+            } else if (quantifier == NO_QUANTIFIER) {
+                run.append(lit);
+            } else {
+                if (quantifier == OPTIONAL) {
+                    // quantifier applies only to the last code point
+                    lit = lit.isEmpty() ? lit : lit.substring(0, lit.offsetByCodePoints(lit.length(), -1));
+                }
+                // text after a repeated code point isn't adjacent to the run
+                run.append(lit);
+                best = longer(best, run);
+                run.setLength(0);
+            }
+            i = skipQuantifier(s, next);
+        }
+        return longer(best, run);
+    }
+
+    private static final int NO_QUANTIFIER = 0;
+    private static final int OPTIONAL = 1;
+    private static final int REPEATED = 2;
+
+    private static int getQuantifier(String s, int i) {
+        if (i >= s.length()) {
+            return NO_QUANTIFIER;
+        }
+        switch (s.charAt(i)) {
+            case '?', '*' -> {
+                return OPTIONAL;
+            }
+            case '+' -> {
+                return REPEATED;
+            }
+            case '{' -> {
+                int end = s.indexOf('}', i);
+                if (end < 0) {
+                    return OPTIONAL;
+                }
+                String min = s.substring(i + 1, end);
+                int comma = min.indexOf(',');
+                if (comma >= 0) {
+                    min = min.substring(0, comma);
+                }
+                return min.trim().equals("0") ? OPTIONAL : REPEATED;
+            }
+            default -> {
+                return NO_QUANTIFIER;
+            }
+        }
+    }
+
+    // returns index after the quantifier at i, or i if there's no quantifier
+    private static int skipQuantifier(String s, int i) {
+        int n = s.length();
+        if (getQuantifier(s, i) == NO_QUANTIFIER) {
+            return i;
+        }
+        if (s.charAt(i) == '{') {
+            int end = s.indexOf('}', i);
+            i = end < 0 ? n : end + 1;
+        } else {
+            ++i;
+        }
+        // lazy and possessive modifiers
+        if (i < n && (s.charAt(i) == '?' || s.charAt(i) == '+')) {
+            ++i;
+        }
+        return i;
+    }
+
+    private static String longer(String best, StringBuilder run) {
+        return run.length() > best.length() ? run.toString() : best;
+    }
+}
@@ -0,0 +1,344 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// Compressed set of LogStore row indices, in the style of Roaring bitmaps: rows are split into
+// chunks of 65536 rows by their high 16 bits, and each chunk is stored either as a sorted array of
+// the low 16 bits, when it has at most 4096 rows, or as a 65536-bit bitmap. Sparse sets, e.g. rows
+// of a rare tag, take 2 bytes per row, dense ones take at most 1 bit per row.
+// Bitmaps are built by appending rows in increasing order. and(), or() and andNot() create new
+// bitmaps that don't share state with the operands, they work a chunk at a time and skip chunks
+// that can't contribute to the result.
+// Not thread-safe.
+class RowBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = (1 << 16) / 64;
+
+    // high 16 bits of rows of each chunk, in increasing order
+    private int[] keys;
+    private Chunk[] chunks;
+    private int size;
+
+    RowBitmap() {
+        this(4);
+    }
+
+    private RowBitmap(int capacity) {
+        keys = new int[Math.max(1, capacity)];
+        chunks = new Chunk[keys.length];
+    }
+
+    private static class Chunk {
+        // exactly one of them is set
+        char[] array;
+        long[] bits;
+        int cardinality;
+
+        static Chunk ofArray(char[] array, int cardinality) {
+            var c = new Chunk();
+            c.array = array;
+            c.cardinality = cardinality;
+            return c;
+        }
+
+        // converts sparse bitmaps to arrays
+        static Chunk ofBits(long[] bits, int cardinality) {
+            var c = new Chunk();
+            c.cardinality = cardinality;
+            if (cardinality > ARRAY_MAX) {
+                c.bits = bits;
+                return c;
+            }
+            char[] a = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                long word = bits[w];
+                while (word != 0) {
+                    a[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            c.array = a;
+            return c;
+        }
+
+        boolean contains(int low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, (char) low) >= 0;
+        }
+
+        // low must be larger than the lows that were already added
+        void append(int low) {
+            if (bits != null) {
+                bits[low >>> 6] |= 1L << low;
+            } else if (cardinality < ARRAY_MAX) {
+                if (cardinality == array.length) {
+                    array = Arrays.copyOf(array, Math.min(ARRAY_MAX, cardinality * 2));
+                }
+                array[cardinality] = (char) low;
+            } else {
+                bits = toBits();
+                array = null;
+                bits[low >>> 6] |= 1L << low;
+            }
+            ++cardinality;
+        }
+
+        Chunk copy() {
+            return bits != null ? ofBits(bits.clone(), cardinality)
+                    : ofArray(Arrays.copyOf(array, cardinality), cardinality);
+        }
+
+        long[] toBits() {
+            if (bits != null) {
+                return bits.clone();
+            }
+            long[] b = new long[BITMAP_WORDS];
+            for (int i = 0; i < cardinality; ++i) {
+                int low = array[i];
+                b[low >>> 6] |= 1L << low;
+            }
+            return b;
+        }
+
+        long estimateMemoryUsage() {
+            return bits != null ? BITMAP_WORDS * 8L : array.length * 2L;
+        }
+    }
+
+    // row must be larger than the rows that were already added
+    void add(int row) {
+        int key = row >>> 16;
+        int n = size;
+        Chunk c;
+        if (n != 0 && keys[n - 1] == key) {
+            c = chunks[n - 1];
+        } else {
+            c = Chunk.ofArray(new char[4], 0);
+            appendChunk(key, c);
+        }
+        c.append(row & 0xffff);
+    }
+
+    private void appendChunk(int key, Chunk c) {
+        int n = size;
+        if (n == keys.length) {
+            keys = Arrays.copyOf(keys, n * 2);
+            chunks = Arrays.copyOf(chunks, n * 2);
+        }
+        keys[n] = key;
+        chunks[n] = c;
+        size = n + 1;
+    }
+
+    boolean contains(int row) {
+        int i = Arrays.binarySearch(keys, 0, size, row >>> 16);
+        return i >= 0 && chunks[i].contains(row & 0xffff);
+    }
+
+    int cardinality() {
+        int res = 0;
+        for (int i = 0; i < size; ++i) {
+            res += chunks[i].cardinality;
+        }
+        return res;
+    }
+
+    // passes rows to the consumer in increasing order
+    void forEach(IntConsumer consumer) {
+        for (int i = 0; i < size; ++i) {
+            int base = keys[i] << 16;
+            Chunk c = chunks[i];
+            if (c.bits != null) {
+                long[] bits = c.bits;
+                for (int w = 0; w < BITMAP_WORDS; ++w) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        consumer.accept(base | (w << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                char[] a = c.array;
+                for (int j = 0, n = c.cardinality; j < n; ++j) {
+                    consumer.accept(base | a[j]);
+                }
+            }
+        }
+    }
+
+    static RowBitmap and(RowBitmap a, RowBitmap b) {
+        var res = new RowBitmap(Math.min(a.size, b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            int ka = a.keys[i];
+            int kb = b.keys[j];
+            if (ka < kb) {
+                ++i;
+            } else if (ka > kb) {
+                ++j;
+            } else {
+                Chunk c = and(a.chunks[i++], b.chunks[j++]);
+                if (c.cardinality != 0) {
+                    res.appendChunk(ka, c);
+                }
+            }
+        }
+        return res;
+    }
+
+    static RowBitmap or(RowBitmap a, RowBitmap b) {
+        var res = new RowBitmap(a.size + b.size);
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            int ka = i < a.size ? a.keys[i] : Integer.MAX_VALUE;
+            int kb = j < b.size ? b.keys[j] : Integer.MAX_VALUE;
+            if (ka < kb) {
+                res.appendChunk(ka, a.chunks[i++].copy());
+            } else if (ka > kb) {
+                res.appendChunk(kb, b.chunks[j++].copy());
+            } else {
+                res.appendChunk(ka, or(a.chunks[i++], b.chunks[j++]));
+            }
+        }
+        return res;
+    }
+
+    // rows of a that aren't in b
+    static RowBitmap andNot(RowBitmap a, RowBitmap b) {
+        var res = new RowBitmap(a.size);
+        int j = 0;
+        for (int i = 0; i < a.size; ++i) {
+            int ka = a.keys[i];
+            while (j < b.size && b.keys[j] < ka) {
+                ++j;
+            }
+            if (j < b.size && b.keys[j] == ka) {
+                Chunk c = andNot(a.chunks[i], b.chunks[j]);
+                if (c.cardinality != 0) {
+                    res.appendChunk(ka, c);
+                }
+            } else {
+                res.appendChunk(ka, a.chunks[i].copy());
+            }
+        }
+        return res;
+    }
+
+    private static Chunk and(Chunk a, Chunk b) {
+        if (a.bits != null && b.bits != null) {
+            long[] res = new long[BITMAP_WORDS];
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                long word = a.bits[w] & b.bits[w];
+                res[w] = word;
+                card += Long.bitCount(word);
+            }
+            return Chunk.ofBits(res, card);
+        }
+        if (a.array == null) {
+            Chunk t = a;
+            a = b;
+            b = t;
+        }
+        // a is an array chunk
+        char[] res = new char[Math.min(a.cardinality, b.cardinality)];
+        int n = 0;
+        for (int i = 0; i < a.cardinality; ++i) {
+            char low = a.array[i];
+            if (b.contains(low)) {
+                res[n++] = low;
+            }
+        }
+        return Chunk.ofArray(res, n);
+    }
+
+    private static Chunk or(Chunk a, Chunk b) {
+        if (a.array != null && b.array != null && a.cardinality + b.cardinality <= ARRAY_MAX) {
+            char[] res = new char[a.cardinality + b.cardinality];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.cardinality && j < b.cardinality) {
+                char x = a.array[i];
+                char y = b.array[j];
+                if (x <= y) {
+                    ++i;
+                    if (x == y) {
+                        ++j;
+                    }
+                    res[n++] = x;
+                } else {
+                    ++j;
+                    res[n++] = y;
+                }
+            }
+            while (i < a.cardinality) {
+                res[n++] = a.array[i++];
+            }
+            while (j < b.cardinality) {
+                res[n++] = b.array[j++];
+            }
+            return Chunk.ofArray(res, n);
+        }
+        long[] res = a.toBits();
+        if (b.bits != null) {
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                res[w] |= b.bits[w];
+            }
+        } else {
+            for (int i = 0; i < b.cardinality; ++i) {
+                int low = b.array[i];
+                res[low >>> 6] |= 1L << low;
+            }
+        }
+        return Chunk.ofBits(res, bitCount(res));
+    }
+
+    private static Chunk andNot(Chunk a, Chunk b) {
+        if (a.array != null) {
+            char[] res = new char[a.cardinality];
+            int n = 0;
+            for (int i = 0; i < a.cardinality; ++i) {
+                char low = a.array[i];
+                if (!b.contains(low)) {
+                    res[n++] = low;
+                }
+            }
+            return Chunk.ofArray(res, n);
+        }
+        long[] res = a.toBits();
+        if (b.bits != null) {
+            for (int w = 0; w < BITMAP_WORDS; ++w) {
+                res[w] &= ~b.bits[w];
+            }
+        } else {
+            for (int i = 0; i < b.cardinality; ++i) {
+                int low = b.array[i];
+                res[low >>> 6] &= ~(1L << low);
+            }
+        }
+        return Chunk.ofBits(res, bitCount(res));
+    }
+
+    private static int bitCount(long[] bits) {
+        int res = 0;
+        for (long w : bits) {
+            res += Long.bitCount(w);
+        }
+        return res;
+    }
+
+    long estimateMemoryUsage() {
+        long res = keys.length * 8L;
+        for (int i = 0; i < size; ++i) {
+            res += chunks[i].estimateMemoryUsage();
+        }
+        return res;
+    }
+}
@@ -0,0 +1,9 @@
+package app.grapheneos.logviewer;
+
+// Predicate over records of a LogStore, see LogIndex.getFilteredRows()
+interface RowFilter {
+    boolean matches(LogStore store, int row);
+
+    // filters of the same class with equal specs match the same rows
+    String getSpec();
+}
@@ -0,0 +1,43 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+
+// Growable list of LogStore row indices. Like LogStore, it has a single writer, and readers on
+// other threads can access elements below size() without locking.
+class RowList {
+    private int[] rows;
+    private volatile int size;
+
+    RowList() {
+        this(16);
+    }
+
+    RowList(int capacity) {
+        rows = new int[Math.max(1, capacity)];
+    }
+
+    void add(int row) {
+        int s = size;
+        if (s == rows.length) {
+            rows = Arrays.copyOf(rows, s + (s >> 1) + 1);
+        }
+        rows[s] = row;
+        size = s + 1;
+    }
+
+    int get(int index) {
+        return rows[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(rows, size);
+    }
+
+    long estimateMemoryUsage() {
+        return rows.length * 4L;
+    }
+}
@@ -0,0 +1,96 @@
+package app.grapheneos.logviewer;
+
+import java.util.Arrays;
+
+// Formats rows in the layout of "logcat --format=epoch,printable,uid" output, for sources that
+// aren't read from logcat text output. Rows are written into a reusable buffer.
+class RowWriter {
+    byte[] buf = new byte[256];
+    int len;
+
+    void reset() {
+        len = 0;
+    }
+
+    // "<sec>.<ms> <uid> <pid> <tid> <level> "
+    void appendHeader(LogStore.Record r) {
+        appendNumber(r.time / 1000);
+        appendByte((byte) '.');
+        int ms = (int) (r.time % 1000);
+        appendByte((byte) ('0' + ms / 100));
+        appendByte((byte) ('0' + ms / 10 % 10));
+        appendByte((byte) ('0' + ms % 10));
+        appendPadded(r.uid, 6);
+        appendPadded(r.pid, 6);
+        appendPadded(r.tid, 6);
+        appendByte((byte) ' ');
+        appendByte((byte) LogParser.levelChar(r.level));
+        appendByte((byte) ' ');
+    }
+
+    void ensureCapacity(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    void appendByte(byte b) {
+        ensureCapacity(1);
+        buf[len++] = b;
+    }
+
+    void appendBytes(byte[] b, int start, int end) {
+        ensureCapacity(end - start);
+        System.arraycopy(b, start, buf, len, end - start);
+        len += end - start;
+    }
+
+    void appendAscii(String s) {
+        int n = s.length();
+        ensureCapacity(n);
+        for (int i = 0; i < n; ++i) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    void appendNumber(long v) {
+        if (v < 0) {
+            appendAscii(Long.toString(v));
+            return;
+        }
+        ensureCapacity(20);
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits were written in reverse order
+        for (int i = start, j = len - 1; i < j; ++i, --j) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    // right-aligned, padded with spaces
+    void appendPadded(long v, int width) {
+        int digits = v < 0 ? 2 : 1;
+        for (long x = Math.abs(v / 10); x != 0; x /= 10) {
+            ++digits;
+        }
+        for (int i = digits; i < width; ++i) {
+            appendByte((byte) ' ');
+        }
+        appendNumber(v);
+    }
+
+    // zero-padded to the given number of digits, v must be non-negative
+    void appendZeroPadded(long v, int digits) {
+        for (long x = v / 10, d = 1; d < digits; ++d, x /= 10) {
+            if (x == 0) {
+                appendByte((byte) '0');
+            }
+        }
+        appendNumber(v);
+    }
+}
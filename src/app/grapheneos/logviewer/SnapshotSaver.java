@@ -7,38 +7,119 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.util.LruCache;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import static app.grapheneos.logviewer.Utils.showToast;
 
 class SnapshotSaver {
     static final int MIN_REQUEST_CODE = 1000;
     private static int activityRequestCodeSrc = MIN_REQUEST_CODE;
-    private static LruCache<Integer, ViewModel.Snapshot> pendingSnapshots = new LruCache(5);
+    private static LruCache<Integer, Document> pendingSnapshots = new LruCache(5);
+
+    // pending documents are compressed, they aren't dropped since the user is picking where to
+    // save them
+    static final CacheManager.Cache CACHE = new CacheManager.Cache("pendingDocuments") {
+        @Override
+        long size() {
+            long res = 0;
+            for (Document d : pendingSnapshots.snapshot().values()) {
+                res += d.estimateMemoryUsage();
+            }
+            return res;
+        }
+
+        @Override
+        void compact() {
+            for (Map.Entry<Integer, Document> e : pendingSnapshots.snapshot().entrySet()) {
+                if (e.getValue() instanceof ViewModel.Snapshot s) {
+                    var compressed = new CompressedDocument(s);
+                    // LruCache locks itself, the entry might have been removed in the meantime
+                    synchronized (pendingSnapshots) {
+                        if (pendingSnapshots.get(e.getKey()) == s) {
+                            pendingSnapshots.put(e.getKey(), compressed);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        void trimToSize(long maxSize) {
+            compact();
+        }
+    };
+
+    // File that is saved or shared, e.g. ViewModel.Snapshot or ViewModel.Export. All of them use
+    // ViewModel.Snapshot.MIME_TYPE.
+    interface Document {
+        String getFileName();
+
+        // returns the number of bytes that were written
+        long writeTo(OutputStream os) throws IOException;
+
+        // heap usage of the document itself, e.g. of a formatted snapshot
+        default long estimateMemoryUsage() {
+            return 0;
+        }
+    }
+
+    // Snapshot with gzipped text, see CACHE
+    private static class CompressedDocument implements Document {
+        private final String fileName;
+        private final byte[] gzBytes;
+
+        CompressedDocument(ViewModel.Snapshot s) {
+            fileName = s.getFileName();
+            gzBytes = Gzip.compress(s.textBytes);
+        }
+
+        @Override
+        public String getFileName() {
+            return fileName;
+        }
+
+        @Override
+        public long writeTo(OutputStream os) throws IOException {
+            try (var s = new GZIPInputStream(new ByteArrayInputStream(gzBytes))) {
+                return s.transferTo(os);
+            }
+        }
+
+        @Override
+        public long estimateMemoryUsage() {
+            return gzBytes.length;
+        }
+    }
 
     static void start(BaseActivity ctx) {
-        ViewModel.Snapshot s = ViewModel.Snapshot.create(ctx.viewModel);
+        start(ctx, ViewModel.Snapshot.create(ctx.viewModel));
+    }
+
+    static void start(BaseActivity ctx, Document s) {
         var i = new Intent(Intent.ACTION_CREATE_DOCUMENT);
         i.setType(ViewModel.Snapshot.MIME_TYPE);
-        i.putExtra(Intent.EXTRA_TITLE, s.fileName);
+        i.putExtra(Intent.EXTRA_TITLE, s.getFileName());
         i.addCategory(Intent.CATEGORY_OPENABLE);
         int reqCode = activityRequestCodeSrc++;
         pendingSnapshots.put(Integer.valueOf(reqCode), s);
+        CacheManager.onCacheGrew();
         ctx.startActivityForResult(i, reqCode);
     }
 
     static void onActivityResult(BaseActivity ctx, int requestCode, Uri uri) {
-        ViewModel.Snapshot s = pendingSnapshots.remove(Integer.valueOf(requestCode));
+        Document s = pendingSnapshots.remove(Integer.valueOf(requestCode));
         if (s == null) {
             return;
         }
-        bgExecutor.execute(() -> writeToUri(ctx, s, uri));
+        // not tied to the activity lifecycle, the user has already picked the file
+        TaskExecutors.IO.execute(() -> writeToUri(ctx, s, uri));
     }
 
-    private static Executor bgExecutor = Executors.newCachedThreadPool();
-
-    static void writeToUri(Context ctx, ViewModel.Snapshot s, Uri uri) {
+    static void writeToUri(Context ctx, Document s, Uri uri) {
         ContentResolver cr = ctx.getContentResolver();
         ParcelFileDescriptor pfd;
         try {
@@ -55,14 +136,19 @@ class SnapshotSaver {
             return;
         }
 
+        long start = Metrics.SAVE.begin();
+        long bytes = 0;
+        // exports are streamed from the store, large logs aren't formatted into memory
         try (var os = new ParcelFileDescriptor.AutoCloseOutputStream(pfd)) {
-            os.write(s.textBytes);
+            bytes = s.writeTo(os);
         } catch (Exception e) {
             ctx.getMainExecutor().execute(() ->
                     ErrorDialog.show(ctx, ctx.getText(R.string.unable_to_save_file), e));
+        } finally {
+            Metrics.SAVE.end(start, bytes, 1);
         }
 
         ctx.getMainExecutor().execute(() ->
-                showToast(ctx, ctx.getString(R.string.toast_saved, s.fileName)));
+                showToast(ctx, ctx.getString(R.string.toast_saved, s.getFileName())));
     }
 }
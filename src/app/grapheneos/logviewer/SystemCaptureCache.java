@@ -0,0 +1,84 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+
+// Most recent system log capture of this process. It's shared by LogcatActivity instances: app
+// logs are served from it as uid projections and the system log is reopened without a recapture,
+// as long as capture parameters are the same.
+class SystemCaptureCache {
+    static class Entry {
+        final String key;
+        final LogStore store;
+        private LogIndex index;
+
+        Entry(String key, LogStore store) {
+            this.key = key;
+            this.store = store;
+        }
+
+        // index is created on first use, it's not needed when only the system log is viewed
+        LogIndex getIndex() {
+            if (index == null) {
+                index = new LogIndex(store);
+            } else {
+                index.update();
+            }
+            return index;
+        }
+    }
+
+    private static Entry entry;
+
+    // The store might also be referenced by view models, it's then counted by both caches. The
+    // index isn't counted, it's accessed only on the main thread.
+    static final CacheManager.Cache CACHE = new CacheManager.Cache("systemCapture") {
+        @Override
+        long size() {
+            Entry e = getEntry();
+            if (e == null) {
+                return 0;
+            }
+            return e.store.estimateMemoryUsage();
+        }
+
+        @Override
+        void compact() {
+            Entry e = getEntry();
+            if (e != null) {
+                e.store.releasePagedInBlocks();
+            }
+        }
+
+        @Override
+        void trimToSize(long maxSize) {
+            if (size() > maxSize) {
+                // recaptured on the next use
+                put(null);
+            }
+        }
+    };
+
+    // entry is published only after its capture has completed
+    static void put(@Nullable Entry e) {
+        synchronized (SystemCaptureCache.class) {
+            entry = e;
+        }
+        if (e != null) {
+            CacheManager.onCacheGrew();
+        }
+    }
+
+    @Nullable
+    private static synchronized Entry getEntry() {
+        return entry;
+    }
+
+    @Nullable
+    static synchronized Entry get(String key) {
+        Entry e = entry;
+        if (e != null && e.key.equals(key)) {
+            return e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,131 @@
+package app.grapheneos.logviewer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Executors that are shared by the whole app, instead of per-class thread pools.
+// IO is for tasks that block most of the time, e.g. reading logcat pipes or writing files. Tasks
+// run right away on one of up to MAX_IO_THREADS threads. Tasks are allowed to wait for other IO
+// tasks, e.g. capture waits for per-buffer readers.
+// CPU is for CPU-bound work, e.g. snapshot creation and compression. It has a thread per core and
+// a bounded queue.
+// When all threads of a pool are busy and its queue is full, tasks that are submitted by pool
+// threads are run by the submitting thread, which keeps nested tasks (e.g. per-buffer readers)
+// free of deadlocks. Tasks of other threads, most importantly of the main thread, are never run by
+// the submitter: they are queued to the overflow thread of the pool.
+// SCHEDULER is for delayed actions, e.g. timeouts. Its tasks must be short.
+// Queue depth and task latency of each executor are recorded in Metrics.
+class TaskExecutors {
+    private static final int MAX_IO_THREADS = 32;
+    private static final int CPU_QUEUE_CAPACITY = 64;
+    private static final long KEEP_ALIVE_SEC = 30;
+
+    static final Pool IO = new Pool("io", 0, MAX_IO_THREADS, new SynchronousQueue<>(), Metrics.IO_EXECUTOR);
+
+    static final Pool CPU;
+
+    static {
+        int n = Runtime.getRuntime().availableProcessors();
+        CPU = new Pool("cpu", n, n, new ArrayBlockingQueue<>(CPU_QUEUE_CAPACITY), Metrics.CPU_EXECUTOR);
+    }
+
+    static final ScheduledExecutorService SCHEDULER;
+
+    static {
+        var e = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("scheduler"));
+        // cancelled timeouts would otherwise stay queued until their deadline
+        e.setRemoveOnCancelPolicy(true);
+        SCHEDULER = e;
+    }
+
+    static class Pool implements Executor {
+        private final ThreadPoolExecutor executor;
+        private final Metrics.ExecutorStats stats;
+
+        Pool(String name, int coreThreads, int maxThreads, BlockingQueue<Runnable> queue, Metrics.ExecutorStats stats) {
+            var e = new ThreadPoolExecutor(coreThreads, maxThreads, KEEP_ALIVE_SEC, TimeUnit.SECONDS, queue,
+                    new NamedThreadFactory(name), new OverflowPolicy(name));
+            e.allowCoreThreadTimeOut(coreThreads > 0);
+            this.executor = e;
+            this.stats = stats;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            final long submitNs = System.nanoTime();
+            stats.queueDepth.record(executor.getQueue().size());
+            executor.execute(() -> {
+                long startNs = System.nanoTime();
+                stats.waitNs.record(startNs - submitNs);
+                try {
+                    task.run();
+                } finally {
+                    stats.runNs.record(System.nanoTime() - startNs);
+                }
+            });
+        }
+
+        <T> Future<T> submit(Callable<T> task) {
+            var f = new FutureTask<>(task);
+            execute(f);
+            return f;
+        }
+    }
+
+    private static class OverflowPolicy implements RejectedExecutionHandler {
+        // single thread with an unbounded queue, tasks are submitted to it only when the pool is
+        // saturated
+        private final ThreadPoolExecutor overflow;
+
+        OverflowPolicy(String poolName) {
+            var e = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new NamedThreadFactory(poolName + "-overflow"));
+            e.allowCoreThreadTimeOut(true);
+            overflow = e;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (Thread.currentThread() instanceof PoolThread) {
+                task.run();
+            } else {
+                overflow.execute(task);
+            }
+        }
+    }
+
+    private static class PoolThread extends Thread {
+        PoolThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.prefix = "LogViewer-" + name + '-';
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            var t = new PoolThread(r, prefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package app.grapheneos.logviewer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+// Background tasks that belong to an activity instance. Cancelling the scope, which is done when
+// the activity is destroyed, cancels queued tasks, interrupts running ones and runs the cancel
+// hooks, e.g. for killing logcat processes. Results are handed to the main thread with post(),
+// which drops them once the scope is cancelled.
+class TaskScope {
+    private final Executor mainExecutor;
+
+    // guarded by this
+    private final HashSet<FutureTask<?>> tasks = new HashSet<>();
+    private final ArrayList<Runnable> cancelHooks = new ArrayList<>();
+    // written under the lock, read by post() on the main thread
+    private volatile boolean cancelled;
+
+    TaskScope(Executor mainExecutor) {
+        this.mainExecutor = mainExecutor;
+    }
+
+    void execute(TaskExecutors.Pool pool, Runnable task) {
+        var f = new FutureTask<Void>(task, null) {
+            @Override
+            protected void done() {
+                remove(this);
+            }
+        };
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            tasks.add(f);
+        }
+        pool.execute(f);
+    }
+
+    private synchronized void remove(FutureTask<?> f) {
+        tasks.remove(f);
+    }
+
+    // hook is run when the scope is cancelled, or right away if it's already cancelled
+    void addCancelHook(Runnable hook) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelHooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    synchronized void removeCancelHook(Runnable hook) {
+        cancelHooks.remove(hook);
+    }
+
+    // runs r on the main thread, unless the scope is cancelled by then
+    void post(Runnable r) {
+        mainExecutor.execute(() -> {
+            if (!cancelled) {
+                r.run();
+            }
+        });
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        FutureTask<?>[] pendingTasks;
+        Runnable[] hooks;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            pendingTasks = tasks.toArray(new FutureTask<?>[0]);
+            tasks.clear();
+            hooks = cancelHooks.toArray(new Runnable[0]);
+            cancelHooks.clear();
+        }
+        for (Runnable hook : hooks) {
+            hook.run();
+        }
+        for (FutureTask<?> f : pendingTasks) {
+            f.cancel(true);
+        }
+    }
+}
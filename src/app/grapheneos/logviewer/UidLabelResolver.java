@@ -0,0 +1,113 @@
+package app.grapheneos.logviewer;
+
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.util.SparseArray;
+
+import java.util.concurrent.Executor;
+
+// Names of uids for attribution of log rows, e.g. "com.android.systemui" or "android.uid.system".
+// Names are resolved in batches on a background thread, for all distinct uids of a LogStore, and
+// are cached by uid. The bind path only reads the cache, it never calls PackageManager.
+// Entries of uids whose packages are added or removed are invalidated by package broadcasts.
+// Accessed only on the main thread.
+class UidLabelResolver {
+    @Nullable
+    private static UidLabelResolver instance;
+
+    private final Context appContext;
+    // empty string means that the uid has no name
+    private final SparseArray<String> labels = new SparseArray<>();
+    // incremented on invalidation, results of batches that started earlier are dropped
+    private int generation;
+
+    private UidLabelResolver(Context appContext) {
+        this.appContext = appContext;
+        var filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int uid = intent.getIntExtra(Intent.EXTRA_UID, LogStore.UNKNOWN);
+                if (uid != LogStore.UNKNOWN) {
+                    labels.delete(uid);
+                }
+                ++generation;
+            }
+        }, filter, Context.RECEIVER_NOT_EXPORTED);
+    }
+
+    static UidLabelResolver get(Context ctx) {
+        UidLabelResolver r = instance;
+        if (r == null) {
+            r = new UidLabelResolver(ctx.getApplicationContext());
+            instance = r;
+        }
+        return r;
+    }
+
+    // null if the uid wasn't resolved yet or if it has no name
+    @Nullable
+    String getCachedLabel(int uid) {
+        String s = labels.get(uid);
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    // Resolves uids of store rows that aren't cached yet, onResolved is called on the main thread
+    // if any new names were resolved.
+    void resolve(LogStore store, Runnable onResolved) {
+        SparseArray<String> known = labels.clone();
+        int startGeneration = generation;
+        PackageManager pm = appContext.getPackageManager();
+        Executor mainExecutor = appContext.getMainExecutor();
+        TaskExecutors.IO.execute(() -> {
+            var res = new SparseArray<String>();
+            int prevUid = LogStore.UNKNOWN;
+            for (int row = 0, n = store.size(); row < n; ++row) {
+                int uid = store.getUid(row);
+                // uids usually come in runs of rows
+                if (uid == prevUid || uid == LogStore.UNKNOWN) {
+                    continue;
+                }
+                prevUid = uid;
+                if (known.indexOfKey(uid) < 0 && res.indexOfKey(uid) < 0) {
+                    res.put(uid, resolve(pm, uid));
+                }
+            }
+            if (res.size() == 0) {
+                return;
+            }
+            mainExecutor.execute(() -> {
+                if (generation != startGeneration) {
+                    // packages have changed, names are resolved again by the next batch
+                    return;
+                }
+                for (int i = 0, m = res.size(); i < m; ++i) {
+                    labels.put(res.keyAt(i), res.valueAt(i));
+                }
+                onResolved.run();
+            });
+        });
+    }
+
+    private static String resolve(PackageManager pm, int uid) {
+        String[] pkgs = pm.getPackagesForUid(uid);
+        if (pkgs != null && pkgs.length == 1) {
+            return pkgs[0];
+        }
+        // shared uids, e.g. "android.uid.system:1000"
+        String name = pm.getNameForUid(uid);
+        if (name == null) {
+            return "";
+        }
+        int idx = name.indexOf(':');
+        return idx > 0 ? name.substring(0, idx) : name;
+    }
+}
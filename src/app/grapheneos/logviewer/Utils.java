@@ -9,7 +9,6 @@ import android.widget.Toast;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
-import java.util.Arrays;
 import java.util.List;
 
 public class Utils {
@@ -46,7 +45,7 @@ public class Utils {
     }
 
     public static List<String> splitLines(String s) {
-        return Arrays.asList(s.split("\n"));
+        return LogText.splitLines(s);
     }
 
     public static void showToast(Context ctx, CharSequence text) {
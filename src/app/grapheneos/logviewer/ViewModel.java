@@ -6,8 +6,12 @@ import android.content.ClipboardManager;
 import android.text.TextUtils;
 import android.util.Pair;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
@@ -15,48 +19,150 @@ import static java.util.Collections.emptyList;
 public class ViewModel {
     @Nullable
     final String sourcePackage; // e.g. app that crashed, app that logcat is filtered on
-    final String title;
+    // changed when in-app filters are changed
+    String title;
     final String header;
     final String body;
+    // body of logcat-based view models, body string is empty in that case
+    @Nullable
+    final LogStore store;
+    // rows of the store that are shown, all rows are shown if it's null
+    @Nullable
+    RowList rows;
+    // set when rows is a projection of a shared store, e.g. of a SystemCaptureCache entry, or when
+    // rows are filtered
+    @Nullable
+    LogIndex index;
 
     // editable by the user
     String description = "";
 
+    // set when the store was captured with the uid filter of sourcePackage, see LogcatActivity
+    boolean appCapture;
+    // uid of sourcePackage when unfilteredRows are its last process incarnations in a shared
+    // store, see ProcessIndex.getRows(). UNKNOWN otherwise.
+    int incarnationsUid = LogStore.UNKNOWN;
+
+    // in-progress capture that appends rows to the store, accessed only on the main thread
+    @Nullable
+    LogcatActivity.PendingCapture pendingCapture;
+    // in-progress import of a file into the store, accessed only on the main thread
+    @Nullable
+    ImportActivity.PendingImport pendingImport;
+    // index of an imported bugreport zip, keeps its cache file alive, accessed only on the main
+    // thread
+    @Nullable
+    ImportActivity.Bugreport bugreport;
+    // set when the capture was cut short, e.g. "timeout", accessed only on the main thread
+    @Nullable
+    String partialReason;
+    // occurrences of the crash of an error report, accessed only on the main thread
+    @Nullable
+    ErrorReportActivity.CrashGroup crashGroup;
+
+    // In-app filters of logcat view models, they are changed without a new capture, see
+    // LogcatActivity.applyFilters(). Accessed only on the main thread.
+    // rows before the filters are applied, all rows if it's null
+    @Nullable
+    RowList unfilteredRows;
+    int filterLevel;
+    @Nullable
+    String filterRegex;
+    @Nullable
+    String query;
+    // lines that describe the filters, shown after the header
+    List<String> filterHeaderLines = emptyList();
+
     ViewModel(@Nullable String sourcePackage, String title, String header, String body) {
+        this(sourcePackage, title, header, body, null, null, null);
+    }
+
+    ViewModel(@Nullable String sourcePackage, String title, String header, LogStore store) {
+        this(sourcePackage, title, header, "", store, null, null);
+    }
+
+    ViewModel(@Nullable String sourcePackage, String title, String header, LogIndex index, RowList rows) {
+        this(sourcePackage, title, header, "", index.store, rows, index);
+    }
+
+    private ViewModel(@Nullable String sourcePackage, String title, String header, String body,
+                      @Nullable LogStore store, @Nullable RowList rows, @Nullable LogIndex index) {
         this.sourcePackage = sourcePackage;
         this.title = title;
         this.header = header;
         this.body = body;
+        this.store = store;
+        this.rows = rows;
+        this.index = index;
+    }
+
+    int getBodyRowCount() {
+        if (store == null) {
+            return createBodyLines().size();
+        }
+        return rows != null ? rows.size() : store.size();
+    }
+
+    // called after rows were appended to the store
+    void onStoreUpdated() {
+        if (index != null) {
+            index.update();
+        }
+    }
+
+    int estimateMemoryUsage() {
+        int multiplier = 2; // at most 2 bytes per char
+        long res = (long) (header.length() + body.length() + description.length()) * multiplier;
+        if (store != null) {
+            res += store.estimateMemoryUsage();
+        }
+        if (index != null) {
+            res += index.estimateMemoryUsage();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, res);
     }
 
     List<String> createHeaderLines() {
         List<String> res = Utils.splitLines(header);
         if (res.size() == 1 && res.get(0).isBlank()) {
-            return emptyList();
+            res = emptyList();
+        }
+        if (!filterHeaderLines.isEmpty() || partialReason != null
+                || (crashGroup != null && crashGroup.count > 1)) {
+            res = new ArrayList<>(res);
+            res.addAll(filterHeaderLines);
+            if (partialReason != null) {
+                res.add("partial: " + partialReason);
+            }
+            if (crashGroup != null) {
+                crashGroup.addHeaderLines(res);
+            }
         }
         return res;
     }
 
+    // store row of a body line, the view model must have a store
+    int getBodyRow(int index) {
+        return rows != null ? rows.get(index) : index;
+    }
+
     List<String> createBodyLines() {
+        if (store != null) {
+            return store.createLineList(rows);
+        }
         return Utils.splitLines(body);
     }
 
     private Pair<ClipData, Boolean> asClipData(BaseActivity ctx) {
-        int sumSize = header.getBytes(UTF_8).length + description.getBytes(UTF_8).length;
-        int sumChars = 0;
-        int bodyStartIndex = 0;
-
         List<String> bodyLines = createBodyLines();
 
-        for (int i = bodyLines.size() - 1; i >= 0; --i) {
-            String line = bodyLines.get(i);
-            sumChars += line.length() + 1;
-            sumSize += line.getBytes(UTF_8).length + 1;
-            // avoid bumping into binder transaction size limits
-            if (sumSize > 200_000) {
-                bodyStartIndex = i + 1;
-                break;
-            }
+        // avoid bumping into binder transaction size limits
+        int bodyStartIndex = LogText.findTruncationStart(bodyLines,
+                LogText.utf8Length(header) + LogText.utf8Length(description), 200_000);
+
+        int sumChars = 0;
+        for (int i = bodyStartIndex, m = bodyLines.size(); i < m; ++i) {
+            sumChars += bodyLines.get(i).length() + 1;
         }
 
         var sb = new StringBuilder(sumChars + 1000);
@@ -104,7 +210,7 @@ public class ViewModel {
                 R.string.copied_to_clipboard_truncated : R.string.copied_to_clipboard));
     }
 
-    static class Snapshot {
+    static class Snapshot implements SnapshotSaver.Document {
         final String title;
         final String text;
         final byte[] textBytes;
@@ -125,35 +231,80 @@ public class ViewModel {
         }
 
         static Snapshot create(ViewModel vm) {
-            var b = new StringBuilder();
-
-            List<String> headerLines = vm.createHeaderLines();
+            return prepare(vm).get();
+        }
 
-            for (String l : headerLines) {
-                b.append(l);
-                b.append('\n');
+        // Called on the main thread, it captures the contents of the view model: header lines,
+        // the set of body rows and the description. Text is created by the returned supplier,
+        // which can be called on any thread, body lines are read from the store at that point.
+        static Supplier<Snapshot> prepare(ViewModel vm) {
+            List<String> metricsLines = emptyList();
+            if (Metrics.includeInExports) {
+                metricsLines = new ArrayList<>();
+                for (String l : Metrics.createReportLines()) {
+                    metricsLines.add("metrics." + l);
+                }
             }
+            List<String> extraHeaderLines = metricsLines;
+            List<String> headerLines = new ArrayList<>(vm.createHeaderLines());
+            // fixed set of rows of the store, the body string is split by the supplier
+            List<String> storeLines = vm.store != null ? vm.createBodyLines() : null;
+            String body = vm.body;
+            String description = vm.description;
+            String title = vm.title;
+
+            return () -> {
+                List<String> bodyLines = storeLines != null ? storeLines : Utils.splitLines(body);
+                String text = LogText.createSnapshotText(headerLines, extraHeaderLines, bodyLines, description);
+                return new Snapshot(title, text, text.getBytes(UTF_8));
+            };
+        }
 
-            if (headerLines.size() > 1) {
-                b.append('\n');
-            }
+        @Override
+        public String getFileName() {
+            return fileName;
+        }
 
-            for (String l : vm.createBodyLines()) {
-                b.append(l);
-                b.append('\n');
-            }
+        @Override
+        public long writeTo(OutputStream os) throws IOException {
+            os.write(textBytes);
+            return textBytes.length;
+        }
 
-            String desc = vm.description;
-            if (!desc.isBlank()) {
-                b.append("\ndescription: ");
-                b.append(desc);
-                b.append('\n');
-            }
+        @Override
+        public long estimateMemoryUsage() {
+            return (long) text.length() * 2 + textBytes.length;
+        }
+    }
 
-            String text = b.toString();
-            byte[] textBytes = text.getBytes(UTF_8);
+    // Body rows in a structured format, see LogExporter. Rows are formatted from the store when
+    // the export is written, only the set of rows is fixed when it's created.
+    static class Export implements SnapshotSaver.Document {
+        final String fileName;
+        private final LogStore store;
+        @Nullable
+        private final RowList rows;
+        private final int count;
+        private final int format;
+
+        // vm must have a store, called on the main thread
+        Export(ViewModel vm, int format) {
+            this.store = vm.store;
+            this.rows = vm.rows;
+            this.count = vm.getBodyRowCount();
+            this.format = format;
+            fileName = TextUtils.trimToSize(vm.title, 200) + ' '
+                    + UUID.randomUUID().toString().substring(24) + LogExporter.FILE_EXTENSIONS[format];
+        }
+
+        @Override
+        public String getFileName() {
+            return fileName;
+        }
 
-            return new Snapshot(vm.title, text, textBytes);
+        @Override
+        public long writeTo(OutputStream os) throws IOException {
+            return LogExporter.write(store, rows, count, format, os);
         }
     }
 }